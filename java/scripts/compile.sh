@@ -5,9 +5,32 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java $DIR/../src/aUser.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
+#Optional features are switched on through JAVA_OPTS, e.g.
+#  JAVA_OPTS="-Dmessenger.metrics.port=9100"   Prometheus metrics on /metrics
+#  -Dmessenger.cache.size=50 -Dmessenger.cache.ttl.ms=5000   recent message cache (size 0 disables)
+#  -Dmessenger.listen=true -Dmessenger.listen.poll.ms=500     push new messages via LISTEN/NOTIFY
+#  -Dmessenger.notify.watermark.members=100   larger chats keep read watermarks instead of NOTIFICATION rows
+#  -Dmessenger.replicas=jdbc:postgresql://localhost:5433/$DB_NAME   reads go to caught-up replicas
+#  -Dmessenger.shards=shard1:5432,shard2:5432   chats spread over shard databases, $DB_NAME is the
+#                             directory (sql/scripts/create_sharded_db.sh)
+#  -Dmessenger.phone.country=1   country code added to address book numbers that lack one
+#  -Dmessenger.archive.dir=messenger-archive -Dmessenger.archive.after.days=365
+#  -Dmessenger.archive.interval.ms=3600000   move old messages to compressed files (interval 0: read only)
+#  -Dmessenger.delete.chunk=1000 -Dmessenger.delete.pause.ms=20 -Dmessenger.delete.interval.ms=5000
+#                             deleted chats/accounts are removed in chunks in the background (interval 0: at once)
+#  -Dmessenger.journal.dir=messenger-journal -Dmessenger.journal.batch=500 -Dmessenger.journal.flush.ms=20
+#                             sends are acknowledged from a local journal and written to Postgres in batches
+#  -Dmessenger.api.port=9200   newline-delimited JSON API on localhost, see JsonApiServer
+#                             (-Dmessenger.api.only=true: serve the API without the menus)
+#  -Dmessenger.render=json   every screen is written as one JSON line instead of text
+#  -Dmessenger.fast.start=true   connect while the first menu is shown (fast_start.sh adds AppCDS)
+#  -Dmessenger.startup.report=true   print the time to the first menu and the first chat at exit
+#  -Dmessenger.store=memory   keep everything in memory instead of Postgres (no database needed)
+#  -Dmessenger.store=segment -Dmessenger.store.dir=messenger-data -Dmessenger.segment.bytes=4194304
+#                             embedded memory-mapped files instead of Postgres
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
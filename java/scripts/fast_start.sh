@@ -0,0 +1,33 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Fast start: the messenger with a class data sharing (AppCDS) archive and the
+# connection made while the first menu is shown (-Dmessenger.fast.start=true).
+# Archives need a java of version 13 or later on the PATH; the classes are
+# still compiled as by compile.sh.
+
+CLASSES=$DIR/../classes
+CDS=$DIR/../cds
+# archived classes must come from a jar, not a directory
+JAR=$CDS/messenger.jar
+ARCHIVE=$CDS/messenger.jsa
+CP=$JAR:$DIR/../lib/pg73jdbc3.jar
+mkdir -p $CLASSES $CDS
+
+# compile the java program when a source changed, the archive is recorded again then
+if [ ! -f $JAR ] || [ -n "$(find $DIR/../src -name '*.java' -newer $JAR)" ]; then
+  javac -d $CLASSES $DIR/../src/*.java && jar cf $JAR -C $CLASSES . && rm -f $ARCHIVE
+fi
+
+# Training run: the classes loaded by the main menu, a log in of $TRAIN_LOGIN
+# (if set) and a look at their chats are written to the archive at exit.
+if [ ! -f $ARCHIVE ]; then
+  if [ -n "$TRAIN_LOGIN" ]; then
+    TRAINING="2\n$TRAIN_LOGIN\n$TRAIN_PASSWORD\n2\n9\n9\n9\n"
+  else
+    TRAINING="9\n"
+  fi
+  printf "$TRAINING" | java -XX:ArchiveClassesAtExit=$ARCHIVE -Dmessenger.fast.start=true $JAVA_OPTS -cp $CP Messenger $DB_NAME $PGPORT $USER > /dev/null
+fi
+
+#run the java program, JAVA_OPTS as in compile.sh
+java -XX:SharedArchiveFile=$ARCHIVE -Dmessenger.fast.start=true -Dmessenger.startup.report=true $JAVA_OPTS -cp $CP Messenger $DB_NAME $PGPORT $USER
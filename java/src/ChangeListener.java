@@ -0,0 +1,132 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+/**
+ * Listens for Postgres change notifications on a dedicated connection and
+ * feeds them into a MessengerEvents bus.
+ *
+ * The bundled JDBC driver only reads asynchronous notifications while it
+ * processes a statement, so the listener thread issues a trivial query on its
+ * own connection every poll interval. That keeps the MESSAGE/NOTIFICATION
+ * queries on the session connection out of the loop entirely.
+ *
+ * A chat is pinned in the message cache only once its LISTEN has been
+ * executed, and every pin is dropped when the listener stops or fails, so
+ * a chat nobody listens to still expires after the cache's time to live.
+ */
+public class ChangeListener implements Runnable {
+
+   private final Connection conn;
+   private final MessengerEvents events;
+   private final long pollMillis;
+   private final int ownPid;
+   private final MessageCache cache;
+
+   // channels to LISTEN to ("+" prefix) or UNLISTEN ("-" prefix), only ever executed on the listener thread
+   private final ConcurrentLinkedQueue<String> commands = new ConcurrentLinkedQueue<String>();
+   private volatile boolean running = true;
+   private Thread thread;
+
+   /**
+    * Creates a listener, nothing is received until start() is called
+    *
+    * @param conn a connection used for nothing else
+    * @param events the bus notifications are published on
+    * @param pollMillis how often the connection is checked for notifications
+    * @param ownPid backend pid of the session connection, its own NOTIFYs are skipped
+    * @param cache the cache whose chats are pinned while listened to, or null
+    */
+   public ChangeListener(Connection conn, MessengerEvents events, long pollMillis, int ownPid, MessageCache cache){
+      this.conn = conn;
+      this.events = events;
+      this.pollMillis = pollMillis;
+      this.ownPid = ownPid;
+      this.cache = cache;
+   }
+
+   public void start(){
+      thread = new Thread(this, "change-listener");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public void listen(String channel){
+      commands.add("+" + channel);
+   }
+
+   public void unlisten(String channel){
+      // stop trusting the entry now, not when the UNLISTEN is executed
+      pin(channel, false);
+      commands.add("-" + channel);
+   }
+
+   public void run(){
+      try{
+         Statement stmt = conn.createStatement();
+         while(running){
+            String cmd;
+            while((cmd = commands.poll()) != null){
+               boolean listen = cmd.charAt(0) == '+';
+               String channel = cmd.substring(1);
+               stmt.execute((listen ? "LISTEN " : "UNLISTEN ") + MessengerEvents.quote(channel));
+               if(listen)
+                  pin(channel, true);
+            }
+            stmt.executeQuery("SELECT 1").close();
+            PGNotification[] received = ((PGConnection) conn).getNotifications();
+            if(received != null){
+               for(int i = 0; i < received.length; i++){
+                  if(received[i].getPID() == ownPid)
+                     continue;
+                  MessengerEvents.Event e = MessengerEvents.Event.fromChannel(received[i].getName());
+                  if(e != null)
+                     events.publish(e);
+               }
+            }
+            Thread.sleep(pollMillis);
+         }
+         stmt.close();
+      }catch(InterruptedException e){
+         // stopping
+      }catch(SQLException e){
+         if(running)
+            System.err.println("Change notifications stopped: " + e.getMessage());
+      }finally{
+         // nothing keeps cached chats current any more
+         if(cache != null)
+            cache.unpinAll();
+      }
+   }//end run
+
+   // pins or unpins the cache entry of a chat channel
+   private void pin(String channel, boolean on){
+      MessengerEvents.Event e = MessengerEvents.Event.fromChannel(channel);
+      if(cache == null || e == null || !e.chatEvent)
+         return;
+      if(on)
+         cache.pin(e.key);
+      else
+         cache.unpin(e.key);
+   }//end pin
+
+   /**
+    * Stops the listener thread and closes its connection
+    */
+   public void stop(){
+      running = false;
+      if(thread != null)
+         thread.interrupt();
+      try{
+         conn.close();
+      }catch(SQLException e){
+         // ignored.
+      }
+   }//end stop
+
+}//end ChangeListener
@@ -0,0 +1,278 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileLock;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Exports a chat to a gzip compressed NDJSON file and imports it again.
+ *
+ * The file has one JSON object per line: the chat, its members, then every
+ * message oldest first with its attachments.
+ *
+ *   {"type" : "chat", "version" : 1, "chat_id" : 7, "chat_type" : "group", "init_sender" : "bob"}
+ *   {"type" : "member", "login" : "bob"}
+ *   {"type" : "message", "msg_id" : 1, "text" : "hi", "ts" : "...", "destr" : null,
+ *    "sender" : "bob", "attachments" : [{"type" : "photo", "url" : "..."}]}
+ *
+ * Both directions run on their own connection in one transaction and hold
+ * a bounded number of rows in memory, whatever the size of the chat. The
+ * export reads MESSAGE through a server side cursor, FETCH_ROWS rows per
+ * round trip, after the messages of the archive. The import sends
+ * INSERT_ROWS messages per statement and lets Postgres parse the lines.
+ */
+public class ChatExport {
+
+   static final int FETCH_ROWS = 1000;
+   static final int INSERT_ROWS = 500;
+   private static final int BUFFER = 1 << 16;
+
+   private static final Pattern TYPE = Pattern.compile("^\\{\\s*\"type\"\\s*:\\s*\"(\\w+)\"");
+
+   /**
+    * Writes a chat to a file
+    *
+    * @return the number of messages written
+    * @throws java.sql.SQLException when the chat cannot be read
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public static int export(Messenger esql, String chatId, File file) throws SQLException, IOException {
+      int chat = Integer.parseInt(chatId);
+      int messages = 0;
+      Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+         Channels.newOutputStream(new FileOutputStream(file).getChannel()), BUFFER), "UTF-8"), BUFFER);
+      // the session's journaled sends belong to the chat too
+      if(esql.getStore() instanceof PostgresStore)
+         ((PostgresStore) esql.getStore()).flushed(chatId);
+      Connection conn = esql.openConnection();
+      try{
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(String.format(
+            "select json_build_object('type', 'chat', 'version', 1, 'chat_id', chat_id, 'chat_type', chat_type, " +
+            "'init_sender', init_sender)::text from CHAT where chat_id = %s", chat));
+         if(!rs.next())
+            throw new SQLException("chat " + chatId + " does not exist");
+         line(out, rs.getString(1));
+         rs = stmt.executeQuery(String.format(
+            "select json_build_object('type', 'member', 'login', member)::text from CHAT_LIST where chat_id = %s order by member", chat));
+         while(rs.next())
+            line(out, rs.getString(1));
+
+         // archived messages are older than every message left in MESSAGE. No
+         // batch may move between reading the archive and declaring the cursor,
+         // which reads MESSAGE as of its declaration, or it would be in neither.
+         MessageArchive archive = esql.getStore() instanceof PostgresStore ? ((PostgresStore) esql.getStore()).getArchive() : null;
+         FileLock lock = archive == null ? null : archive.lock(true);
+         try{
+            if(archive != null)
+               messages += exportArchive(archive, chatId, out);
+
+            stmt.execute(String.format(
+               "DECLARE chat_export NO SCROLL CURSOR FOR " +
+               "select json_build_object('type', 'message', 'msg_id', m.msg_id, 'text', m.msg_text, 'ts', m.msg_timestamp, " +
+               "'destr', m.destr_timestamp, 'sender', m.sender_login, 'attachments', coalesce((" +
+                  "select json_agg(json_build_object('type', a.media_type, 'url', a.URL) order by a.media_id) " +
+                  "from MEDIA_ATTACHMENT a where a.msg_id = m.msg_id and a.msg_timestamp = m.msg_timestamp), '[]'::json))::text " +
+               "from MESSAGE m where m.chat_id = %s order by m.msg_timestamp, m.msg_id", chat));
+         }finally{
+            if(lock != null)
+               archive.unlock(lock);
+         }
+         int fetched;
+         do{
+            rs = stmt.executeQuery("FETCH " + FETCH_ROWS + " FROM chat_export");
+            fetched = 0;
+            while(rs.next()){
+               line(out, rs.getString(1));
+               fetched++;
+            }
+            rs.close();
+            messages += fetched;
+         }while(fetched == FETCH_ROWS);
+         stmt.execute("CLOSE chat_export");
+         stmt.close();
+         conn.commit();
+      }finally{
+         out.close();
+         close(conn);
+      }
+      return messages;
+   }//end export
+
+   private static int exportArchive(MessageArchive archive, String chatId, Writer out) throws IOException {
+      // the archive pages newest first: chunks are taken from its old end, each written in reverse
+      int count = archive.count(chatId);
+      for(int start = 0; start < count; start += FETCH_ROWS){
+         int end = Math.min(count, start + FETCH_ROWS);
+         List<MessageCache.CachedMessage> page = archive.page(chatId, count - end, end - start);
+         for(int i = page.size() - 1; i >= 0; i--){
+            MessageCache.CachedMessage m = page.get(i);
+            StringBuilder json = new StringBuilder();
+            json.append("{\"type\" : \"message\", \"msg_id\" : ").append(m.row.get(0))
+                .append(", \"text\" : ").append(jsonString(m.row.get(1)))
+                .append(", \"ts\" : ").append(jsonString(m.row.get(2)))
+                .append(", \"destr\" : ").append(jsonString(m.row.get(3)))
+                .append(", \"sender\" : ").append(jsonString(m.row.get(4)))
+                .append(", \"attachments\" : [");
+            for(int a = 0; a < m.attachments.size(); a++){
+               if(a > 0)
+                  json.append(", ");
+               json.append("{\"type\" : ").append(jsonString(m.attachments.get(a).get(0)))
+                   .append(", \"url\" : ").append(jsonString(m.attachments.get(a).get(1))).append('}');
+            }
+            json.append("]}");
+            line(out, json.toString());
+         }
+      }
+      return count;
+   }//end exportArchive
+
+   /**
+    * Creates a new chat from an exported file. The importing user becomes
+    * its initial sender and a member; members and senders must exist.
+    *
+    * @return the id of the new chat
+    * @throws java.sql.SQLException when the rows cannot be inserted, nothing is imported then
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static int importChat(Messenger esql, String login, File file) throws SQLException, IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+         Channels.newInputStream(new FileInputStream(file).getChannel()), BUFFER), "UTF-8"), BUFFER);
+      IdAllocator msgIds = ((PostgresStore) esql.getStore()).messageIds();
+      Connection conn = esql.openConnection();
+      try{
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         String line = in.readLine();
+         if(line == null || !"chat".equals(type(line)))
+            throw new IOException(file + " is not a chat export");
+         ResultSet rs = stmt.executeQuery(String.format(
+            "insert into CHAT(chat_type, init_sender) select j->>'chat_type', '%s' from (select '%s'::json j) s returning chat_id",
+            PostgresStore.q(login), PostgresStore.q(line)));
+         rs.next();
+         int chatId = rs.getInt(1);
+
+         List<String> members = new ArrayList<String>();
+         members.add(String.format("('%s')", PostgresStore.q(login)));
+         List<String> batch = new ArrayList<String>();
+         boolean membersDone = false;
+         while((line = in.readLine()) != null){
+            String type = type(line);
+            if("member".equals(type) && !membersDone){
+               members.add(String.format("(('%s'::json)->>'login')", PostgresStore.q(line)));
+            }else if("message".equals(type)){
+               if(!membersDone){
+                  insertMembers(stmt, chatId, members);
+                  membersDone = true;
+               }
+               batch.add(String.format("('%s'::json, %s)", PostgresStore.q(line), msgIds.next()));
+               if(batch.size() == INSERT_ROWS){
+                  insertMessages(stmt, chatId, batch);
+                  batch.clear();
+               }
+            }else{
+               throw new IOException("unexpected line in " + file + ": " + line);
+            }
+         }
+         if(!membersDone)
+            insertMembers(stmt, chatId, members);
+         if(batch.size() > 0)
+            insertMessages(stmt, chatId, batch);
+         stmt.close();
+         conn.commit();
+         return chatId;
+      }finally{
+         in.close();
+         close(conn);
+      }
+   }//end importChat
+
+   private static void insertMembers(Statement stmt, int chatId, List<String> members) throws SQLException {
+      stmt.executeUpdate(String.format(
+         "insert into CHAT_LIST(chat_id, member) select distinct %s, login from (values %s) v(login)",
+         chatId, join(members)));
+   }
+
+   /**
+    * Inserts a batch of message lines with their attachments in one
+    * statement; the new ids come with the lines so attachments can refer
+    * to them
+    */
+   private static void insertMessages(Statement stmt, int chatId, List<String> batch) throws SQLException {
+      stmt.executeQuery(String.format(
+         "with src as (select j, id from (values %s) v(j, id)), " +
+         "m as (insert into MESSAGE(msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id) " +
+            "select id, j->>'text', (j->>'ts')::timestamp, (j->>'destr')::timestamp, j->>'sender', %s from src returning 1), " +
+         "a as (insert into MEDIA_ATTACHMENT(media_type, URL, msg_id, msg_timestamp) " +
+            "select e->>'type', e->>'url', id, (j->>'ts')::timestamp from src, json_array_elements(j->'attachments') e returning 1) " +
+         "select (select count(*) from m), (select count(*) from a)",
+         join(batch), chatId)).close();
+   }//end insertMessages
+
+   private static String join(List<String> values){
+      StringBuilder sb = new StringBuilder();
+      for(int i = 0; i < values.size(); i++){
+         if(i > 0)
+            sb.append(", ");
+         sb.append(values.get(i));
+      }
+      return sb.toString();
+   }
+
+   private static String type(String line){
+      Matcher m = TYPE.matcher(line);
+      return m.find() ? m.group(1) : null;
+   }
+
+   private static void line(Writer out, String json) throws IOException {
+      out.write(json);
+      out.write('\n');
+   }
+
+   static String jsonString(String s){
+      if(s == null)
+         return "null";
+      StringBuilder sb = new StringBuilder("\"");
+      for(int i = 0; i < s.length(); i++){
+         char c = s.charAt(i);
+         if(c == '"' || c == '\\')
+            sb.append('\\').append(c);
+         else if(c == '\n')
+            sb.append("\\n");
+         else if(c < 0x20)
+            sb.append(String.format("\\u%04x", (int) c));
+         else
+            sb.append(c);
+      }
+      return sb.append('"').toString();
+   }//end jsonString
+
+   private static void close(Connection conn){
+      try{
+         conn.rollback();
+         conn.close();
+      }catch(SQLException e){
+         // ignored.
+      }
+      MessengerMetrics.connectionsOpen.dec();
+   }//end close
+
+}//end ChatExport
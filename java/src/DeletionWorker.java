@@ -0,0 +1,190 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Removes deleted chats and accounts in the background of a session.
+ *
+ * PostgresStore only marks a chat or account deleted_at, hides it and
+ * queues a DELETION_QUEUE job. This worker takes the jobs oldest first and
+ * deletes their rows with statements of at most CHUNK_ROWS rows each
+ * (the notifications and attachments of a chat's messages go before the
+ * messages, so the cascade from MESSAGE finds nothing left), pausing
+ * between chunks so no statement holds its locks for long and the client's
+ * own statements get through. rows_deleted of the job is updated after
+ * every chunk. A Postgres advisory lock keeps the sessions of a database
+ * from working on the queue at the same time; a job that fails is retried
+ * on the next pass.
+ */
+public class DeletionWorker implements Runnable {
+
+   // advisory lock key of the queue
+   static final int LOCK_KEY = 0x44454c51;
+
+   private final Messenger esql;
+   private final int chunkRows;
+   private final long pauseMillis;
+   private final long intervalMillis;
+   private volatile boolean running = true;
+   private Thread thread;
+
+   public DeletionWorker(Messenger esql, int chunkRows, long pauseMillis, long intervalMillis){
+      this.esql = esql;
+      this.chunkRows = chunkRows;
+      this.pauseMillis = pauseMillis;
+      this.intervalMillis = intervalMillis;
+   }
+
+   /**
+    * Starts the worker configured by -Dmessenger.delete.chunk,
+    * -Dmessenger.delete.pause.ms and -Dmessenger.delete.interval.ms
+    *
+    * @return the running worker, or null when deletion in the background is off
+    */
+   public static DeletionWorker startFromProperties(Messenger esql){
+      int chunk = Integer.getInteger("messenger.delete.chunk", 1000);
+      long pause = Long.getLong("messenger.delete.pause.ms", 20);
+      long interval = Long.getLong("messenger.delete.interval.ms", 5000);
+      if(interval <= 0 || chunk <= 0)
+         return null;
+      DeletionWorker worker = new DeletionWorker(esql, chunk, pause, interval);
+      worker.start();
+      return worker;
+   }//end startFromProperties
+
+   public void start(){
+      thread = new Thread(this, "deletion-worker");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public void stop(){
+      running = false;
+      if(thread != null)
+         thread.interrupt();
+   }
+
+   public void run(){
+      while(running){
+         try{
+            deleteOnce();
+         }catch(InterruptedException e){
+            return;
+         }catch(Exception e){
+            System.err.println("Deletion failed: " + e.getMessage());
+         }
+         try{
+            Thread.sleep(intervalMillis);
+         }catch(InterruptedException e){
+            return;
+         }
+      }
+   }//end run
+
+   /**
+    * Works through every queued job, unless another session is doing so
+    *
+    * @return the number of rows deleted
+    */
+   public long deleteOnce() throws SQLException, InterruptedException {
+      if(!esql.executeQueryResultOnPrimary("select pg_try_advisory_lock(" + LOCK_KEY + ")::int").get(0).get(0).equals("1"))
+         return 0;
+      try{
+         long deleted = 0;
+         for(List<String> job : esql.executeQueryResultOnPrimary(
+               "select job_id, kind, target from DELETION_QUEUE where finished_at is null order by job_id")){
+            try{
+               deleted += runJob(Integer.parseInt(job.get(0)), job.get(1), job.get(2));
+            }catch(SQLException e){
+               System.err.println("Deleting " + job.get(1) + " " + job.get(2) + " failed: " + e.getMessage());
+            }
+         }
+         return deleted;
+      }finally{
+         esql.executeQueryResultOnPrimary("select pg_advisory_unlock(" + LOCK_KEY + ")::int");
+      }
+   }//end deleteOnce
+
+   private long runJob(int jobId, String kind, String target) throws SQLException, InterruptedException {
+      List<String> chunks = new ArrayList<String>();
+      String last;
+      if(kind.equals("chat")){
+         int chat = Integer.parseInt(target);
+         // the children first, or each MESSAGE chunk would cascade to all of theirs at once
+         chunks.add(String.format(
+            "delete from NOTIFICATION where (usr_login, msg_id, msg_timestamp) in " +
+            "(select n.usr_login, n.msg_id, n.msg_timestamp from NOTIFICATION n, MESSAGE m " +
+            "where m.chat_id = %s and n.msg_id = m.msg_id and n.msg_timestamp = m.msg_timestamp limit %s)", chat, chunkRows));
+         chunks.add(String.format(
+            "delete from MEDIA_ATTACHMENT where media_id in " +
+            "(select a.media_id from MEDIA_ATTACHMENT a, MESSAGE m " +
+            "where m.chat_id = %s and a.msg_id = m.msg_id and a.msg_timestamp = m.msg_timestamp limit %s)", chat, chunkRows));
+         chunks.add(String.format(
+            "delete from MESSAGE where chat_id = %s and (msg_id, msg_timestamp) in " +
+            "(select msg_id, msg_timestamp from MESSAGE where chat_id = %s limit %s)", chat, chat, chunkRows));
+         chunks.add(String.format(
+            "delete from CHAT_LIST where chat_id = %s and member in " +
+            "(select member from CHAT_LIST where chat_id = %s limit %s)", chat, chat, chunkRows));
+         last = String.format("delete from CHAT where chat_id = %s", chat);
+      }else{
+         String login = PostgresStore.q(target);
+         chunks.add(String.format(
+            "delete from NOTIFICATION where usr_login = '%s' and (msg_id, msg_timestamp) in " +
+            "(select msg_id, msg_timestamp from NOTIFICATION where usr_login = '%s' limit %s)", login, login, chunkRows));
+         chunks.add(String.format(
+            "delete from CHAT_LIST where member = '%s' and chat_id in " +
+            "(select chat_id from CHAT_LIST where member = '%s' limit %s)", login, login, chunkRows));
+         chunks.add(String.format(
+            "delete from USER_LIST_CONTAINS where list_member = '%s' and list_id in " +
+            "(select list_id from USER_LIST_CONTAINS where list_member = '%s' limit %s)", login, login, chunkRows));
+         chunks.add(String.format(
+            "delete from USER_LIST_CONTAINS where (list_id, list_member) in " +
+            "(select c.list_id, c.list_member from USER_LIST_CONTAINS c, USR u " +
+            "where u.login = '%s' and c.list_id in (u.block_list, u.contact_list) limit %s)", login, chunkRows));
+         chunks.add(String.format(
+            "delete from BLOCKED_BY where (blocked, blocker) in " +
+            "(select blocked, blocker from BLOCKED_BY where blocked = '%s' or blocker = '%s' limit %s)", login, login, chunkRows));
+         last = String.format(
+            "with u as (delete from USR where login = '%s' returning block_list, contact_list) " +
+            "delete from USER_LIST where list_id in (select block_list from u union select contact_list from u)", login);
+      }
+
+      long deleted = 0;
+      for(String chunk : chunks){
+         int n;
+         do{
+            n = esql.executeUpdate(chunk);
+            deleted += n;
+            if(n > 0){
+               esql.executeUpdate(String.format(
+                  "update DELETION_QUEUE set rows_deleted = rows_deleted + %s where job_id = %s", n, jobId));
+               MessengerMetrics.deletedRows.inc(n);
+               Thread.sleep(pauseMillis);
+            }
+         }while(n == chunkRows);
+      }
+      esql.executeUpdate(last + String.format(
+         ";update DELETION_QUEUE set finished_at = now() where job_id = %s", jobId));
+      if(kind.equals("chat"))
+         deleteArchive(target);
+      MessengerMetrics.deletionJobs.inc();
+      return deleted;
+   }//end runJob
+
+   // the archived messages of a chat, nothing refers to them any more
+   private void deleteArchive(String chatId){
+      MessageArchive archive = esql.getStore() instanceof PostgresStore ? ((PostgresStore) esql.getStore()).getArchive() : null;
+      if(archive == null)
+         return;
+      File chatDir = archive.chatDir(chatId);
+      File[] files = chatDir.listFiles();
+      if(files == null)
+         return;
+      for(File f : files)
+         f.delete();
+      chatDir.delete();
+   }//end deleteArchive
+
+}//end DeletionWorker
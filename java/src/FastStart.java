@@ -0,0 +1,102 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Fast start of a Postgres session, -Dmessenger.fast.start=true.
+ *
+ * The main menu is shown right away. Loading the driver, connecting, the
+ * services of Messenger.connect and a warm-up run of the statements every
+ * session starts with happen on a background thread meanwhile; the first
+ * choice waits for them only if it comes sooner. java/scripts/fast_start.sh
+ * adds a class data sharing archive recorded by a training run, so the
+ * classes of the menus and the driver are mapped instead of loaded.
+ *
+ * Whatever the mode, the time from JVM start to the first main menu and to
+ * the first chat shown are kept as gauges, and printed on stderr at exit
+ * with -Dmessenger.startup.report=true.
+ */
+public final class FastStart {
+
+   private FastStart(){
+   }
+
+   /**
+    * Starts connecting in the background
+    *
+    * @param args dbname, port and user
+    * @return the session once connected and warmed up
+    */
+   public static FutureTask<Messenger> connect(final String[] args){
+      FutureTask<Messenger> task = new FutureTask<Messenger>(new Callable<Messenger>(){
+         public Messenger call() throws Exception {
+            Messenger esql = Messenger.connect(args);
+            warmUp(esql);
+            return esql;
+         }
+      });
+      Thread t = new Thread(task, "fast-start");
+      t.setDaemon(true);
+      t.start();
+      return task;
+   }//end connect
+
+   /**
+    * @return the session of connect, waiting for it if need be
+    * @throws Exception what connecting failed with
+    */
+   public static Messenger await(FutureTask<Messenger> task) throws Exception {
+      try{
+         return task.get();
+      }catch(ExecutionException e){
+         if(e.getCause() instanceof Exception)
+            throw (Exception) e.getCause();
+         throw e;
+      }
+   }//end await
+
+   // the reads of logging in and of the first menus, for nobody in particular
+   private static void warmUp(Messenger esql){
+      try{
+         MessengerStore store = esql.getStore();
+         store.checkPassword("", "");
+         store.notifications("");
+         store.chatList("");
+         store.chatMembersOfUser("");
+         store.messagePage("0", 0, 10);
+      }catch(Exception e){
+         // the menus report what really fails
+      }
+   }//end warmUp
+
+   /*========================= timing ===========================*/
+
+   private static long sinceJvmStart(){
+      return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+   }
+
+   /**
+    * Called when the main menu is composed
+    */
+   public static void menuShown(){
+      if(MessengerMetrics.startupFirstMenu.get() == 0)
+         MessengerMetrics.startupFirstMenu.set(Math.max(1, sinceJvmStart()));
+   }
+
+   /**
+    * Called when the messages of a chat are composed
+    */
+   public static void chatShown(){
+      if(MessengerMetrics.startupFirstChat.get() == 0)
+         MessengerMetrics.startupFirstChat.set(Math.max(1, sinceJvmStart()));
+   }
+
+   public static void report(){
+      if(Boolean.getBoolean("messenger.startup.report"))
+         System.err.println("startup: first menu after " + MessengerMetrics.startupFirstMenu.get() +
+            " ms, first chat after " + MessengerMetrics.startupFirstChat.get() + " ms (0: not shown)");
+   }
+
+}//end FastStart
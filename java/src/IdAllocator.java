@@ -0,0 +1,69 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Hands out the ids of a sequence in process, a block at a time.
+ *
+ * The sequences of the schema step by their block size (INCREMENT BY 64 in
+ * create_tables.sql), so one nextval reserves the ids [value, value +
+ * increment) for this session alone. The ids of the current block are taken
+ * with an atomic increment; only the thread that exhausts a block goes back
+ * to the database. Inserts get their id before they run and need no currval
+ * round trip afterwards. Ids of a block left unused at exit are skipped,
+ * like the ids of rolled back inserts. Anything else drawing from the
+ * sequence, the column default included, takes whole blocks as well.
+ */
+public class IdAllocator {
+
+   private static class Block {
+      final AtomicInteger next;
+      final int end;
+
+      Block(int first, int end){
+         this.next = new AtomicInteger(first);
+         this.end = end;
+      }
+   }//end Block
+
+   private final Messenger esql;
+   private final String sequence;
+   private volatile Block block = new Block(0, 0);
+
+   /**
+    * @param esql the connection whose database owns the sequence
+    * @param sequence name of the DB sequence
+    */
+   public IdAllocator(Messenger esql, String sequence){
+      this.esql = esql;
+      this.sequence = sequence;
+   }
+
+   /**
+    * @return a new id of the sequence
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int next() throws SQLException {
+      while(true){
+         Block b = block;
+         int id = b.next.getAndIncrement();
+         if(id < b.end)
+            return id;
+         refill(b);
+      }
+   }//end next
+
+   private synchronized void refill(Block exhausted) throws SQLException {
+      if(block != exhausted)
+         return;
+      // the increment is read along, a sequence left at INCREMENT BY 1 gives blocks of one id
+      List<String> row = esql.executeQueryResultOnPrimary(String.format(
+         "select nextval('%s'), (select increment_by from pg_sequences " +
+         "where schemaname = current_schema() and sequencename = '%s')", sequence, sequence)).get(0);
+      int first = Integer.parseInt(row.get(0));
+      int size = row.get(1) == null ? 1 : Math.max(1, Integer.parseInt(row.get(1)));
+      block = new Block(first, first + size);
+   }//end refill
+
+}//end IdAllocator
@@ -0,0 +1,894 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * MessengerStore kept entirely in memory, for load testing the menu logic
+ * without Postgres. Nothing is persisted.
+ *
+ * Chats and contact/block lists live in int keyed maps split over lock
+ * stripes by id, users in a concurrent map holding their own chat index and
+ * pending notifications. At most one lock is held at a time. The foreign and
+ * primary keys of sql/src/create_tables.sql are checked and reported as
+ * SQLException with the matching SQL state.
+ */
+public class InMemoryStore implements MessengerStore {
+
+   private static final int STRIPES = 16;
+
+   private static final String UNIQUE_VIOLATION = "23505";
+   private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+   private static class User {
+      final String login;
+      final String password;
+      final String phone;
+      final int blockList;
+      final int contactList;
+      volatile String status;
+      final AtomicInteger chatsInitiated = new AtomicInteger();
+      final AtomicInteger messagesSent = new AtomicInteger();
+      // guarded by the user
+      final IntObjectMap<Chat> chats = new IntObjectMap<Chat>();
+      final List<Msg> notifications = new ArrayList<Msg>();
+
+      User(String login, String password, String phone, int blockList, int contactList){
+         this.login = login;
+         this.password = password;
+         this.phone = phone;
+         this.blockList = blockList;
+         this.contactList = contactList;
+      }
+   }//end User
+
+   private static class Chat {
+      final int id;
+      final String initSender;
+      final List<String> members = new ArrayList<String>();
+      // oldest first
+      final List<Msg> messages = new ArrayList<Msg>();
+      final IntObjectMap<Msg> byId = new IntObjectMap<Msg>();
+
+      Chat(int id, String initSender){
+         this.id = id;
+         this.initSender = initSender;
+      }
+   }//end Chat
+
+   private static class Msg {
+      final int id;
+      final int chatId;
+      final Timestamp ts;
+      final Timestamp destr;
+      final String sender;
+      volatile String text;
+      volatile boolean deleted;
+      // notifications not read yet
+      final AtomicInteger pending = new AtomicInteger();
+      // (media_id, media_type, URL), guarded by the stripe of the chat
+      final List<List<String>> attachments = new ArrayList<List<String>>();
+
+      Msg(int id, int chatId, String text, Timestamp ts, Timestamp destr, String sender){
+         this.id = id;
+         this.chatId = chatId;
+         this.text = text;
+         this.ts = ts;
+         this.destr = destr;
+         this.sender = sender;
+      }
+
+      List<String> row(){
+         List<String> row = new ArrayList<String>();
+         row.add(String.valueOf(id));
+         row.add(text);
+         row.add(ts.toString());
+         row.add(destr == null ? null : destr.toString());
+         row.add(sender);
+         row.add(String.valueOf(chatId));
+         return row;
+      }
+   }//end Msg
+
+   private static class Stripe {
+      final IntObjectMap<Chat> chats = new IntObjectMap<Chat>();
+      // sorted, listMembers pages through them
+      final IntObjectMap<TreeSet<String>> lists = new IntObjectMap<TreeSet<String>>();
+   }//end Stripe
+
+   private final Stripe[] stripes = new Stripe[STRIPES];
+   private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+   // PhoneNumbers.key of every phoneNum, unique as the usr_phone_key index
+   private final ConcurrentHashMap<String, String> phones = new ConcurrentHashMap<String, String>();
+   // reverse block index: owner of every block list, blockers of every login
+   private final ConcurrentHashMap<Integer, String> blockListOwners = new ConcurrentHashMap<Integer, String>();
+   private final ConcurrentHashMap<String, Set<String>> blockers = new ConcurrentHashMap<String, Set<String>>();
+
+   private final AtomicInteger listSeq = new AtomicInteger();
+   private final AtomicInteger chatSeq = new AtomicInteger();
+   private final AtomicInteger msgSeq = new AtomicInteger();
+   private final AtomicInteger mediaSeq = new AtomicInteger();
+
+   public InMemoryStore(){
+      for(int i = 0; i < STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+
+   private Stripe stripe(int id){
+      return stripes[id & (STRIPES - 1)];
+   }
+
+   private User user(String login) throws SQLException {
+      User u = users.get(login);
+      if(u == null)
+         throw new SQLException("Key (login)=(" + login + ") is not present in table \"usr\"", FOREIGN_KEY_VIOLATION);
+      return u;
+   }
+
+   // caller holds the stripe lock
+   private static Chat chat(Stripe s, int chatId) throws SQLException {
+      Chat c = s.chats.get(chatId);
+      if(c == null)
+         throw new SQLException("Key (chat_id)=(" + chatId + ") is not present in table \"chat\"", FOREIGN_KEY_VIOLATION);
+      return c;
+   }
+
+   // caller holds the stripe lock, null when the row no longer exists
+   private static Msg message(Stripe s, List<String> message){
+      Chat c = s.chats.get(Integer.parseInt(message.get(5)));
+      if(c == null)
+         return null;
+      Msg m = c.byId.get(Integer.parseInt(message.get(0)));
+      return m != null && m.ts.toString().equals(message.get(2)) ? m : null;
+   }
+
+   /*========================== users ===========================*/
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      String key = PhoneNumbers.key(phone);
+      if(phones.putIfAbsent(key, login) != null)
+         throw new SQLException("Key (phonenum)=(" + phone + ") already exists", UNIQUE_VIOLATION);
+      if(users.containsKey(login)){
+         phones.remove(key);
+         throw new SQLException("Key (login)=(" + login + ") already exists", UNIQUE_VIOLATION);
+      }
+      restoreUser(login, password, phone, listSeq.incrementAndGet(), listSeq.incrementAndGet());
+   }//end createUser
+
+   private void newList(int id){
+      Stripe s = stripe(id);
+      synchronized(s){
+         s.lists.put(id, new TreeSet<String>());
+      }
+   }
+
+   public boolean checkPassword(String login, String password){
+      User u = users.get(login);
+      return u != null && u.password.equals(password);
+   }
+
+   public List<String> getUser(String login){
+      User u = users.get(login);
+      if(u == null)
+         return null;
+      List<String> row = new ArrayList<String>();
+      row.add(u.login);
+      row.add(u.password);
+      row.add(u.phone);
+      row.add(u.status);
+      row.add(String.valueOf(u.blockList));
+      row.add(String.valueOf(u.contactList));
+      return row;
+   }//end getUser
+
+   public boolean userExists(String login){
+      return users.containsKey(login);
+   }
+
+   public List<String> logins(){
+      return new ArrayList<String>(users.keySet());
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      User u = users.get(login);
+      if(u != null)
+         u.status = status;
+   }
+
+   public boolean isInitSenderOfAnyChat(String login){
+      User u = users.get(login);
+      return u != null && u.chatsInitiated.get() > 0;
+   }
+
+   public boolean hasMessages(String login){
+      User u = users.get(login);
+      return u != null && u.messagesSent.get() > 0;
+   }
+
+   /**
+    * Chats, messages and notifications keep a user alive as their foreign
+    * keys do in Postgres, list memberships are cascaded
+    */
+   public void deleteUser(String login) throws SQLException {
+      User u = users.get(login);
+      if(u == null)
+         return;
+      boolean referenced;
+      synchronized(u){
+         dropDeleted(u);
+         referenced = u.chats.size() > 0 || u.notifications.size() > 0;
+      }
+      if(referenced || u.chatsInitiated.get() > 0 || u.messagesSent.get() > 0)
+         throw new SQLException("update or delete on table \"usr\" violates a foreign key constraint", FOREIGN_KEY_VIOLATION);
+      users.remove(login);
+      phones.remove(PhoneNumbers.key(u.phone));
+      for(Stripe s : stripes){
+         synchronized(s){
+            for(Set<String> members : s.lists.values())
+               members.remove(login);
+         }
+      }
+      blockListOwners.remove(u.blockList);
+      blockers.remove(login);
+      for(Set<String> set : blockers.values())
+         set.remove(login);
+   }//end deleteUser
+
+   /*================ contact and block lists ===================*/
+
+   public boolean listContains(int listId, String login){
+      Stripe s = stripe(listId);
+      synchronized(s){
+         Set<String> members = s.lists.get(listId);
+         return members != null && members.contains(login);
+      }
+   }
+
+   public void addToList(int listId, String login) throws SQLException {
+      user(login);
+      Stripe s = stripe(listId);
+      synchronized(s){
+         Set<String> members = s.lists.get(listId);
+         if(members == null)
+            throw new SQLException("Key (list_id)=(" + listId + ") is not present in table \"user_list\"", FOREIGN_KEY_VIOLATION);
+         if(!members.add(login))
+            throw new SQLException("Key (list_member, list_id)=(" + login + ", " + listId + ") already exists", UNIQUE_VIOLATION);
+      }
+      String owner = blockListOwners.get(listId);
+      if(owner != null)
+         blockersOf(login).add(owner);
+   }//end addToList
+
+   public void removeFromList(int listId, String login) throws SQLException {
+      Stripe s = stripe(listId);
+      synchronized(s){
+         Set<String> members = s.lists.get(listId);
+         if(members != null)
+            members.remove(login);
+      }
+      String owner = blockListOwners.get(listId);
+      if(owner != null)
+         blockersOf(login).remove(owner);
+   }
+
+   private Set<String> blockersOf(String login){
+      Set<String> set = blockers.get(login);
+      if(set == null){
+         Set<String> created = Collections.synchronizedSet(new LinkedHashSet<String>());
+         set = blockers.putIfAbsent(login, created);
+         if(set == null)
+            set = created;
+      }
+      return set;
+   }//end blockersOf
+
+   /**
+    * Block lists are indexed in reverse by addToList, replayed lists included
+    */
+   public void block(String login, int blockList, String target) throws SQLException {
+      addToList(blockList, target);
+   }
+
+   public void unblock(String login, int blockList, String target) throws SQLException {
+      removeFromList(blockList, target);
+   }
+
+   public List<String> blockedBy(String login, List<String> candidates){
+      List<String> result = new ArrayList<String>();
+      Set<String> set = blockers.get(login);
+      if(set == null)
+         return result;
+      for(String c : candidates)
+         if(set.contains(c))
+            result.add(c);
+      return result;
+   }//end blockedBy
+
+   public List<String> syncContacts(String login, int contactList, int blockList, List<String> phoneKeys) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      Set<String> seen = new HashSet<String>();
+      for(String key : phoneKeys){
+         String match = phones.get(key);
+         if(match == null || match.equals(login) || !seen.add(match)
+               || listContains(contactList, match) || listContains(blockList, match))
+            continue;
+         addToList(contactList, match);
+         result.add(match);
+      }
+      return result;
+   }//end syncContacts
+
+   public List<List<String>> listMembers(int listId, String prefix, String after, int limit){
+      List<String> logins = new ArrayList<String>();
+      Stripe s = stripe(listId);
+      synchronized(s){
+         TreeSet<String> members = s.lists.get(listId);
+         if(members != null){
+            String from = after != null && after.compareTo(prefix) >= 0 ? after : prefix;
+            for(String login : members.tailSet(from, !from.equals(after))){
+               if(!login.startsWith(prefix) || logins.size() == limit)
+                  break;
+               logins.add(login);
+            }
+         }
+      }
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for(String login : logins){
+         User u = users.get(login);
+         if(u == null)
+            continue;
+         List<String> row = new ArrayList<String>();
+         row.add(login);
+         row.add(u.status);
+         rows.add(row);
+      }
+      return rows;
+   }//end listMembers
+
+   /*========================== chats ===========================*/
+
+   public int createChat(String type, String initSender, List<String> members) throws SQLException {
+      User init = user(initSender);
+      List<User> memberUsers = new ArrayList<User>();
+      for(String login : members){
+         User u = user(login);
+         if(memberUsers.contains(u))
+            throw new SQLException("Key (member)=(" + login + ") already exists", UNIQUE_VIOLATION);
+         memberUsers.add(u);
+      }
+      int id = chatSeq.incrementAndGet();
+      putChat(id, init, members, memberUsers);
+      return id;
+   }//end createChat
+
+   private void putChat(int id, User init, List<String> members, List<User> memberUsers){
+      Chat c = new Chat(id, init.login);
+      c.members.addAll(members);
+      Stripe s = stripe(id);
+      synchronized(s){
+         s.chats.put(id, c);
+      }
+      init.chatsInitiated.incrementAndGet();
+      for(User u : memberUsers){
+         synchronized(u){
+            u.chats.put(id, c);
+         }
+      }
+   }//end putChat
+
+   public String findChat(List<String> members){
+      User me = users.get(members.get(0));
+      if(me == null)
+         return null;
+      List<Chat> candidates;
+      synchronized(me){
+         candidates = me.chats.values();
+      }
+      Set<String> wanted = new LinkedHashSet<String>(members);
+      for(Chat c : candidates){
+         Stripe s = stripe(c.id);
+         synchronized(s){
+            if(s.chats.get(c.id) == c && c.members.size() == wanted.size() && wanted.containsAll(c.members))
+               return String.valueOf(c.id);
+         }
+      }
+      return null;
+   }//end findChat
+
+   public boolean isInitSender(String chatId, String login){
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         return c != null && c.initSender.equals(login);
+      }
+   }
+
+   public boolean isMember(String chatId, String login){
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         return c != null && c.members.contains(login);
+      }
+   }
+
+   public void addMember(String chatId, String login) throws SQLException {
+      User u = user(login);
+      int id = Integer.parseInt(chatId);
+      Chat c;
+      Stripe s = stripe(id);
+      synchronized(s){
+         c = chat(s, id);
+         if(c.members.contains(login))
+            throw new SQLException("Key (chat_id, member)=(" + id + ", " + login + ") already exists", UNIQUE_VIOLATION);
+         c.members.add(login);
+      }
+      synchronized(u){
+         u.chats.put(id, c);
+      }
+   }//end addMember
+
+   public void removeMember(String chatId, String login) throws SQLException {
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         if(c == null || !c.members.remove(login))
+            return;
+      }
+      User u = users.get(login);
+      if(u != null){
+         synchronized(u){
+            u.chats.remove(id);
+         }
+      }
+   }//end removeMember
+
+   public List<String> chatMembers(String chatId){
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         return c == null ? new ArrayList<String>() : new ArrayList<String>(c.members);
+      }
+   }
+
+   public void deleteChat(String chatId) throws SQLException {
+      int id = Integer.parseInt(chatId);
+      Chat c;
+      List<Msg> messages;
+      Stripe s = stripe(id);
+      synchronized(s){
+         c = s.chats.remove(id);
+         if(c == null)
+            return;
+         messages = new ArrayList<Msg>(c.messages);
+         for(Msg m : messages)
+            m.deleted = true;
+      }
+      for(Msg m : messages)
+         sentBy(m, -1);
+      User init = users.get(c.initSender);
+      if(init != null)
+         init.chatsInitiated.decrementAndGet();
+      for(String login : c.members){
+         User u = users.get(login);
+         if(u != null){
+            synchronized(u){
+               u.chats.remove(id);
+            }
+         }
+      }
+   }//end deleteChat
+
+   public List<List<String>> chatList(String login){
+      User u = users.get(login);
+      if(u == null)
+         return new ArrayList<List<String>>();
+      List<Chat> chats;
+      IntObjectMap<int[]> unread = new IntObjectMap<int[]>();
+      synchronized(u){
+         chats = u.chats.values();
+         dropDeleted(u);
+         for(Msg m : u.notifications){
+            int[] n = unread.get(m.chatId);
+            if(n == null)
+               unread.put(m.chatId, n = new int[1]);
+            n[0]++;
+         }
+      }
+      final List<Timestamp> order = new ArrayList<Timestamp>();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for(Chat c : chats){
+         Timestamp last;
+         Stripe s = stripe(c.id);
+         synchronized(s){
+            if(c.messages.size() == 0)
+               continue;
+            last = c.messages.get(c.messages.size() - 1).ts;
+         }
+         int[] n = unread.get(c.id);
+         List<String> row = new ArrayList<String>();
+         row.add(String.valueOf(c.id));
+         row.add(last.toString());
+         row.add(String.valueOf(n == null ? 0 : n[0]));
+         rows.add(row);
+         order.add(last);
+      }
+      // newest activity first
+      List<Integer> idx = new ArrayList<Integer>();
+      for(int i = 0; i < rows.size(); i++)
+         idx.add(i);
+      Collections.sort(idx, new Comparator<Integer>(){
+         public int compare(Integer a, Integer b){
+            return order.get(b).compareTo(order.get(a));
+         }
+      });
+      List<List<String>> sorted = new ArrayList<List<String>>();
+      for(Integer i : idx)
+         sorted.add(rows.get(i));
+      return sorted;
+   }//end chatList
+
+   public List<List<String>> chatMembersOfUser(String login){
+      List<List<String>> rows = new ArrayList<List<String>>();
+      User u = users.get(login);
+      if(u == null)
+         return rows;
+      List<Chat> chats;
+      synchronized(u){
+         chats = u.chats.values();
+      }
+      for(String chatId : idsOf(chats)){
+         for(String member : chatMembers(chatId)){
+            List<String> row = new ArrayList<String>();
+            row.add(chatId);
+            row.add(member);
+            rows.add(row);
+         }
+      }
+      return rows;
+   }//end chatMembersOfUser
+
+   private static List<String> idsOf(List<Chat> chats){
+      List<String> ids = new ArrayList<String>();
+      for(Chat c : chats)
+         ids.add(String.valueOf(c.id));
+      return ids;
+   }
+
+   /*========================= messages =========================*/
+
+   public int sendMessage(String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                          List<String> attachmentPairs, List<String> recipients) throws SQLException {
+      User from = user(sender);
+      List<User> to = new ArrayList<User>();
+      for(String r : recipients)
+         to.add(user(r));
+      int id = Integer.parseInt(chatId);
+      Msg m = new Msg(msgSeq.incrementAndGet(), id, text, ts, destr, sender);
+      for(int y = 0; y + 1 < attachmentPairs.size(); y = y + 2)
+         m.attachments.add(attachment(attachmentPairs.get(y), attachmentPairs.get(y + 1)));
+      m.pending.set(to.size());
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = chat(s, id);
+         // keep the list ordered by timestamp, new messages almost always go last
+         int i = c.messages.size();
+         while(i > 0 && c.messages.get(i - 1).ts.after(ts))
+            i--;
+         c.messages.add(i, m);
+         c.byId.put(m.id, m);
+      }
+      from.messagesSent.incrementAndGet();
+      for(User u : to){
+         synchronized(u){
+            u.notifications.add(m);
+         }
+      }
+      return m.id;
+   }//end sendMessage
+
+   private List<String> attachment(String type, String url){
+      List<String> a = new ArrayList<String>();
+      a.add(String.valueOf(mediaSeq.incrementAndGet()));
+      a.add(type);
+      a.add(url);
+      return a;
+   }
+
+   public List<MessageCache.CachedMessage> messagePage(String chatId, int offset, int limit){
+      List<MessageCache.CachedMessage> page = new ArrayList<MessageCache.CachedMessage>();
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         if(c == null)
+            return page;
+         for(int i = c.messages.size() - 1 - offset; i >= 0 && page.size() < limit; i--){
+            Msg m = c.messages.get(i);
+            List<List<String>> att = new ArrayList<List<String>>();
+            for(List<String> a : m.attachments)
+               att.add(new ArrayList<String>(a.subList(1, 3)));
+            page.add(new MessageCache.CachedMessage(m.row(), att));
+         }
+      }
+      return page;
+   }//end messagePage
+
+   public boolean hasMessageAt(String chatId, int offset){
+      int id = Integer.parseInt(chatId);
+      Stripe s = stripe(id);
+      synchronized(s){
+         Chat c = s.chats.get(id);
+         return c != null && c.messages.size() > offset;
+      }
+   }
+
+   public boolean isSender(List<String> message, String login){
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         Msg m = message(s, message);
+         return m != null && m.sender.equals(login);
+      }
+   }
+
+   public void editMessageText(List<String> message, String login, String text) throws SQLException {
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         Msg m = message(s, message);
+         if(m != null && m.sender.equals(login))
+            m.text = text;
+      }
+   }
+
+   public void deleteMessage(List<String> message, String login){
+      Msg m;
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         m = message(s, message);
+         if(m == null || !m.sender.equals(login))
+            return;
+         Chat c = s.chats.get(m.chatId);
+         c.messages.remove(m);
+         c.byId.remove(m.id);
+         m.deleted = true;
+      }
+      sentBy(m, -1);
+      messageRemoved(m.chatId, m.id);
+   }//end deleteMessage
+
+   private void sentBy(Msg m, int delta){
+      User u = users.get(m.sender);
+      if(u != null)
+         u.messagesSent.addAndGet(delta);
+   }
+
+   public List<List<String>> attachments(List<String> message){
+      List<List<String>> rows = new ArrayList<List<String>>();
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         Msg m = message(s, message);
+         if(m == null)
+            return rows;
+         for(List<String> a : m.attachments){
+            List<String> row = new ArrayList<String>(a);
+            row.add(String.valueOf(m.id));
+            row.add(m.ts.toString());
+            rows.add(row);
+         }
+      }
+      return rows;
+   }//end attachments
+
+   public void addAttachment(List<String> message, String type, String url) throws SQLException {
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         Msg m = message(s, message);
+         if(m == null)
+            throw new SQLException("Key (msg_id, msg_timestamp) is not present in table \"message\"", FOREIGN_KEY_VIOLATION);
+         m.attachments.add(attachment(type, url));
+      }
+   }
+
+   public void updateAttachment(List<String> message, String mediaId, String type, String url) throws SQLException {
+      Stripe s = stripe(Integer.parseInt(message.get(5)));
+      synchronized(s){
+         Msg m = message(s, message);
+         if(m == null)
+            return;
+         for(List<String> a : m.attachments){
+            if(a.get(0).equals(mediaId)){
+               a.set(1, type);
+               a.set(2, url);
+            }
+         }
+      }
+   }//end updateAttachment
+
+   public int purgeExpired(){
+      Timestamp now = new Timestamp(System.currentTimeMillis());
+      List<Msg> purged = new ArrayList<Msg>();
+      for(Stripe s : stripes){
+         synchronized(s){
+            for(Chat c : s.chats.values()){
+               for(int i = c.messages.size() - 1; i >= 0; i--){
+                  Msg m = c.messages.get(i);
+                  if(m.destr != null && !m.destr.after(now) && m.pending.get() == 0){
+                     c.messages.remove(i);
+                     c.byId.remove(m.id);
+                     m.deleted = true;
+                     purged.add(m);
+                  }
+               }
+            }
+         }
+      }
+      for(Msg m : purged){
+         sentBy(m, -1);
+         messageRemoved(m.chatId, m.id);
+      }
+      return purged.size();
+   }//end purgeExpired
+
+   /*====================== notifications =======================*/
+
+   // caller holds the user, notifications of deleted messages cascade away
+   private static void dropDeleted(User u){
+      for(int i = u.notifications.size() - 1; i >= 0; i--)
+         if(u.notifications.get(i).deleted)
+            u.notifications.remove(i);
+   }
+
+   public List<List<String>> notifications(String login){
+      List<List<String>> rows = new ArrayList<List<String>>();
+      User u = users.get(login);
+      if(u == null)
+         return rows;
+      synchronized(u){
+         dropDeleted(u);
+         for(Msg m : u.notifications){
+            List<String> row = new ArrayList<String>();
+            row.add(String.valueOf(m.id));
+            row.add(m.ts.toString());
+            row.add(m.text);
+            row.add(m.sender);
+            row.add(String.valueOf(m.chatId));
+            row.add("0");
+            rows.add(row);
+         }
+      }
+      return rows;
+   }//end notifications
+
+   public void clearNotification(String login, List<String> notification) throws SQLException {
+      User u = users.get(login);
+      if(u == null)
+         return;
+      synchronized(u){
+         for(int i = 0; i < u.notifications.size(); i++){
+            Msg m = u.notifications.get(i);
+            if(String.valueOf(m.id).equals(notification.get(0)) && m.ts.toString().equals(notification.get(1))){
+               u.notifications.remove(i);
+               m.pending.decrementAndGet();
+               return;
+            }
+         }
+      }
+   }//end clearNotification
+
+   /*================= restore and change hooks =================*/
+
+   /**
+    * Called after a message left the store, deleted by its sender or
+    * purged, outside of any lock
+    */
+   protected void messageRemoved(int chatId, int msgId){
+   }
+
+   // moves a sequence past an id restored from elsewhere
+   private static void advance(AtomicInteger seq, int id){
+      int cur;
+      while((cur = seq.get()) < id && !seq.compareAndSet(cur, id))
+         ;
+   }
+
+   /**
+    * Adds a user with the given list ids, as they were assigned before
+    */
+   void restoreUser(String login, String password, String phone, int blockList, int contactList){
+      advance(listSeq, Math.max(blockList, contactList));
+      newList(blockList);
+      newList(contactList);
+      blockListOwners.put(blockList, login);
+      phones.put(PhoneNumbers.key(phone), login);
+      users.put(login, new User(login, password, phone, blockList, contactList));
+   }//end restoreUser
+
+   /**
+    * Adds a chat with the id it was assigned before
+    */
+   void restoreChat(int id, String initSender, List<String> members) throws SQLException {
+      List<User> memberUsers = new ArrayList<User>();
+      for(String login : members)
+         memberUsers.add(user(login));
+      advance(chatSeq, id);
+      putChat(id, user(initSender), members, memberUsers);
+   }//end restoreChat
+
+   /**
+    * Adds a message with the ids it was assigned before, nobody is notified
+    *
+    * @param attachments (media_id, media_type, URL) of every attachment
+    */
+   void restoreMessage(int chatId, int msgId, String text, Timestamp ts, Timestamp destr, String sender,
+                       List<List<String>> attachments) throws SQLException {
+      advance(msgSeq, msgId);
+      Msg m = new Msg(msgId, chatId, text, ts, destr, sender);
+      for(List<String> a : attachments){
+         advance(mediaSeq, Integer.parseInt(a.get(0)));
+         m.attachments.add(new ArrayList<String>(a));
+      }
+      Stripe s = stripe(chatId);
+      synchronized(s){
+         Chat c = chat(s, chatId);
+         int i = c.messages.size();
+         while(i > 0 && c.messages.get(i - 1).ts.after(ts))
+            i--;
+         c.messages.add(i, m);
+         c.byId.put(msgId, m);
+      }
+      User u = users.get(sender);
+      if(u != null)
+         u.messagesSent.incrementAndGet();
+   }//end restoreMessage
+
+   /**
+    * Adds a pending notification, skipped when the message is gone
+    */
+   void restoreNotification(String login, int chatId, int msgId){
+      User u = users.get(login);
+      Msg m;
+      Stripe s = stripe(chatId);
+      synchronized(s){
+         Chat c = s.chats.get(chatId);
+         m = c == null ? null : c.byId.get(msgId);
+      }
+      if(u == null || m == null)
+         return;
+      m.pending.incrementAndGet();
+      synchronized(u){
+         u.notifications.add(m);
+      }
+   }//end restoreNotification
+
+   boolean chatExists(int chatId){
+      Stripe s = stripe(chatId);
+      synchronized(s){
+         return s.chats.get(chatId) != null;
+      }
+   }
+
+   /**
+    * @return the row of a message as messagePage returns it, or null
+    */
+   List<String> messageRow(int chatId, int msgId){
+      Stripe s = stripe(chatId);
+      synchronized(s){
+         Chat c = s.chats.get(chatId);
+         Msg m = c == null ? null : c.byId.get(msgId);
+         return m == null ? null : m.row();
+      }
+   }//end messageRow
+
+}//end InMemoryStore
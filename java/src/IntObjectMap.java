@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Open addressing hash map from int keys to objects, without boxing the
+ * keys. Not thread safe, InMemoryStore guards every instance with the lock
+ * of its stripe.
+ */
+public class IntObjectMap<V> {
+
+   private static final int FREE = 0;
+
+   // key 0 marks a free slot, so it is kept aside
+   private int[] keys;
+   private Object[] values;
+   private int size;
+   private V zeroValue;
+   private boolean hasZero;
+
+   public IntObjectMap(){
+      this(16);
+   }
+
+   public IntObjectMap(int expected){
+      int capacity = 8;
+      while(capacity < expected * 2)
+         capacity <<= 1;
+      keys = new int[capacity];
+      values = new Object[capacity];
+   }
+
+   public int size(){
+      return size + (hasZero ? 1 : 0);
+   }
+
+   // spreads sequential ids over the table
+   private static int mix(int key){
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private int slot(int key){
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      while(keys[i] != FREE && keys[i] != key)
+         i = (i + 1) & mask;
+      return i;
+   }
+
+   @SuppressWarnings("unchecked")
+   public V get(int key){
+      if(key == FREE)
+         return hasZero ? zeroValue : null;
+      int i = slot(key);
+      return keys[i] == FREE ? null : (V) values[i];
+   }
+
+   @SuppressWarnings("unchecked")
+   public V put(int key, V value){
+      if(key == FREE){
+         V old = zeroValue;
+         zeroValue = value;
+         hasZero = true;
+         return old;
+      }
+      int i = slot(key);
+      if(keys[i] == key){
+         V old = (V) values[i];
+         values[i] = value;
+         return old;
+      }
+      keys[i] = key;
+      values[i] = value;
+      if(++size * 2 > keys.length)
+         grow();
+      return null;
+   }//end put
+
+   @SuppressWarnings("unchecked")
+   public V remove(int key){
+      if(key == FREE){
+         V old = zeroValue;
+         zeroValue = null;
+         hasZero = false;
+         return old;
+      }
+      int mask = keys.length - 1;
+      int i = slot(key);
+      if(keys[i] == FREE)
+         return null;
+      V old = (V) values[i];
+      keys[i] = FREE;
+      values[i] = null;
+      size--;
+      // move the following entries of the probe chain back into the hole
+      for(int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask){
+         int k = keys[j];
+         Object v = values[j];
+         keys[j] = FREE;
+         values[j] = null;
+         int s = slot(k);
+         keys[s] = k;
+         values[s] = v;
+      }
+      return old;
+   }//end remove
+
+   /**
+    * @return the values in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   public List<V> values(){
+      List<V> result = new ArrayList<V>(size());
+      if(hasZero)
+         result.add(zeroValue);
+      for(int i = 0; i < keys.length; i++)
+         if(keys[i] != FREE)
+            result.add((V) values[i]);
+      return result;
+   }//end values
+
+   private void grow(){
+      int[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new int[oldKeys.length * 2];
+      values = new Object[oldKeys.length * 2];
+      for(int i = 0; i < oldKeys.length; i++){
+         if(oldKeys[i] != FREE){
+            int j = slot(oldKeys[i]);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+         }
+      }
+   }//end grow
+
+}//end IntObjectMap
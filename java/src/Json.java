@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Just enough JSON for the JsonApiServer protocol.
+ *
+ * parse turns a document into Map (objects, keys in order), List, String,
+ * Long or Double, Boolean and null; write does the reverse for the same
+ * types. Strings are written as in ChatExport.
+ */
+public final class Json {
+
+   private final String s;
+   private int pos;
+
+   private Json(String s){
+      this.s = s;
+   }
+
+   /**
+    * @throws IllegalArgumentException when the text is not one JSON value
+    */
+   public static Object parse(String text){
+      Json p = new Json(text);
+      Object v = p.value();
+      p.skipSpace();
+      if(p.pos != text.length())
+         throw p.error("end of input expected");
+      return v;
+   }//end parse
+
+   public static String write(Object v){
+      StringBuilder sb = new StringBuilder();
+      write(sb, v);
+      return sb.toString();
+   }
+
+   @SuppressWarnings("unchecked")
+   private static void write(StringBuilder sb, Object v){
+      if(v == null || v instanceof String){
+         sb.append(ChatExport.jsonString((String) v));
+      }else if(v instanceof Map){
+         sb.append('{');
+         boolean first = true;
+         for(Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()){
+            if(!first)
+               sb.append(", ");
+            first = false;
+            sb.append(ChatExport.jsonString(e.getKey())).append(": ");
+            write(sb, e.getValue());
+         }
+         sb.append('}');
+      }else if(v instanceof List){
+         sb.append('[');
+         boolean first = true;
+         for(Object o : (List<Object>) v){
+            if(!first)
+               sb.append(", ");
+            first = false;
+            write(sb, o);
+         }
+         sb.append(']');
+      }else if(v instanceof Number || v instanceof Boolean){
+         sb.append(v);
+      }else{
+         sb.append(ChatExport.jsonString(v.toString()));
+      }
+   }//end write
+
+   /*========================= parser ===========================*/
+
+   private Object value(){
+      skipSpace();
+      if(pos >= s.length())
+         throw error("value expected");
+      char c = s.charAt(pos);
+      if(c == '{')
+         return object();
+      if(c == '[')
+         return array();
+      if(c == '"')
+         return string();
+      if(s.startsWith("true", pos)){
+         pos += 4;
+         return Boolean.TRUE;
+      }
+      if(s.startsWith("false", pos)){
+         pos += 5;
+         return Boolean.FALSE;
+      }
+      if(s.startsWith("null", pos)){
+         pos += 4;
+         return null;
+      }
+      return number();
+   }//end value
+
+   private Map<String, Object> object(){
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      pos++;
+      skipSpace();
+      if(peek() == '}'){
+         pos++;
+         return m;
+      }
+      while(true){
+         skipSpace();
+         if(peek() != '"')
+            throw error("key expected");
+         String key = string();
+         skipSpace();
+         expect(':');
+         m.put(key, value());
+         skipSpace();
+         if(peek() == ','){
+            pos++;
+            continue;
+         }
+         expect('}');
+         return m;
+      }
+   }//end object
+
+   private List<Object> array(){
+      List<Object> l = new ArrayList<Object>();
+      pos++;
+      skipSpace();
+      if(peek() == ']'){
+         pos++;
+         return l;
+      }
+      while(true){
+         l.add(value());
+         skipSpace();
+         if(peek() == ','){
+            pos++;
+            continue;
+         }
+         expect(']');
+         return l;
+      }
+   }//end array
+
+   private String string(){
+      StringBuilder sb = new StringBuilder();
+      pos++;
+      while(true){
+         if(pos >= s.length())
+            throw error("unterminated string");
+         char c = s.charAt(pos++);
+         if(c == '"')
+            return sb.toString();
+         if(c != '\\'){
+            sb.append(c);
+            continue;
+         }
+         if(pos >= s.length())
+            throw error("unterminated string");
+         char e = s.charAt(pos++);
+         switch(e){
+            case 'n': sb.append('\n'); break;
+            case 't': sb.append('\t'); break;
+            case 'r': sb.append('\r'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'u':
+               if(pos + 4 > s.length())
+                  throw error("bad escape");
+               try{
+                  sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+               }catch(NumberFormatException ex){
+                  throw error("bad escape");
+               }
+               pos += 4;
+               break;
+            default: sb.append(e); break;
+         }
+      }
+   }//end string
+
+   private Object number(){
+      int start = pos;
+      while(pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0)
+         pos++;
+      String n = s.substring(start, pos);
+      try{
+         if(n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0)
+            return Long.valueOf(n);
+         return Double.valueOf(n);
+      }catch(NumberFormatException e){
+         pos = start;
+         throw error("value expected");
+      }
+   }//end number
+
+   private char peek(){
+      return pos < s.length() ? s.charAt(pos) : 0;
+   }
+
+   private void expect(char c){
+      if(peek() != c)
+         throw error("'" + c + "' expected");
+      pos++;
+   }
+
+   private void skipSpace(){
+      while(pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+         pos++;
+   }
+
+   private IllegalArgumentException error(String what){
+      return new IllegalArgumentException(what + " at " + pos);
+   }
+
+}//end Json
@@ -0,0 +1,429 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Optional request/response API next to the menus, for programs driving the
+ * messenger. It is only started when -Dmessenger.api.port is given and only
+ * listens on the loopback interface.
+ *
+ * Every line a client sends is one JSON request, {"op": ..., ...}, answered
+ * by one line {"ok": true, ...} or {"ok": false, "error": ...}; an "id" in
+ * the request is echoed back. A connection logs in once and then acts as
+ * that user, with the checks of the menus, on the session's MessengerStore:
+ *
+ *    login          login, password
+ *    chats          -> chats: [{chat_id, last_update, unread, members}]
+ *    history        chat, [offset, limit] -> messages, newest first
+ *    send           chat, text, [attachments: [[type, url]], destr_ms] -> msg_id
+ *    edit           chat, msg_id, ts, text
+ *    delete         chat, msg_id, ts
+ *    notifications  [clear] -> notifications
+ *    contacts       [prefix, after, limit] -> contacts
+ *    add_contact    login
+ *    remove_contact login
+ */
+public class JsonApiServer implements Runnable {
+
+   // messages per history page unless the request asks otherwise
+   static final int PAGE = 10;
+   // the most rows one history or contacts request returns
+   static final int MAX_LIMIT = 1000;
+   // what the menus give a message without a destruction time
+   static final long DEFAULT_DESTR_MILLIS = 111111111L;
+
+   private final Messenger esql;
+   private final ServerSocket server;
+   private volatile boolean running = true;
+   private Thread thread;
+
+   /**
+    * Binds the API on the loopback interface, it is not serving until
+    * start() is called
+    *
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public JsonApiServer(Messenger esql, int port) throws IOException {
+      this.esql = esql;
+      this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+   }
+
+   /**
+    * Starts the API if -Dmessenger.api.port is set
+    *
+    * @return the running server or null when the API is disabled
+    */
+   public static JsonApiServer startFromProperties(Messenger esql){
+      String port = System.getProperty("messenger.api.port");
+      if(port == null || port.equals(""))
+         return null;
+      try{
+         JsonApiServer api = new JsonApiServer(esql, Integer.parseInt(port));
+         api.start();
+         Messenger.out.println("JSON API listening on localhost:" + api.getPort());
+         return api;
+      }catch(Exception e){
+         System.err.println("Unable to start JSON API: " + e.getMessage());
+         return null;
+      }
+   }//end startFromProperties
+
+   public void start(){
+      thread = new Thread(this, "json-api");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public void stop(){
+      running = false;
+      try{
+         server.close();
+      }catch(IOException e){
+         // ignored.
+      }
+   }
+
+   /**
+    * Blocks until the server is stopped, for sessions running the API only
+    */
+   public void join() throws InterruptedException {
+      if(thread != null)
+         thread.join();
+   }
+
+   public int getPort(){
+      return server.getLocalPort();
+   }
+
+   public void run(){
+      while(running){
+         try{
+            final Socket client = server.accept();
+            Thread t = new Thread(new Runnable(){
+               public void run(){
+                  serve(client);
+               }
+            }, "json-api-client");
+            t.setDaemon(true);
+            t.start();
+         }catch(IOException e){
+            if(running)
+               System.err.println("JSON API: " + e.getMessage());
+         }
+      }
+   }//end run
+
+   // answers the requests of one connection until it is closed
+   private void serve(Socket client){
+      try{
+         client.setTcpNoDelay(true);
+         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+         OutputStream out = client.getOutputStream();
+         Map<String, aUser> session = new HashMap<String, aUser>();
+         String line;
+         while((line = in.readLine()) != null){
+            if(line.trim().length() == 0)
+               continue;
+            out.write((Json.write(handle(line, session)) + "\n").getBytes("UTF-8"));
+            out.flush();
+         }
+      }catch(SocketException e){
+         // the client went away
+      }catch(IOException e){
+         System.err.println("JSON API: " + e.getMessage());
+      }finally{
+         try{
+            client.close();
+         }catch(IOException e){
+            // ignored.
+         }
+      }
+   }//end serve
+
+   /**
+    * Answers one request line
+    *
+    * @param session holds the logged in user of the connection under "user"
+    * @return the response object
+    */
+   @SuppressWarnings("unchecked")
+   Map<String, Object> handle(String line, Map<String, aUser> session){
+      Map<String, Object> res = new LinkedHashMap<String, Object>();
+      MessengerMetrics.apiRequests.inc();
+      Map<String, Object> req;
+      try{
+         Object parsed = Json.parse(line);
+         if(!(parsed instanceof Map))
+            throw new IllegalArgumentException("request must be an object");
+         req = (Map<String, Object>) parsed;
+      }catch(IllegalArgumentException e){
+         return fail(res, "bad request: " + e.getMessage());
+      }
+      if(req.containsKey("id"))
+         res.put("id", req.get("id"));
+      res.put("ok", Boolean.TRUE);
+      try{
+         String op = str(req, "op");
+         if(op.equals("login")){
+            String login = str(req, "login");
+            if(!esql.getStore().checkPassword(login, str(req, "password")))
+               return fail(res, "wrong login or password");
+            session.put("user", new aUser(esql, login));
+            return res;
+         }
+         aUser au = session.get("user");
+         if(au == null)
+            return fail(res, "log in first");
+         if(op.equals("chats"))
+            chats(au, res);
+         else if(op.equals("history"))
+            history(au, req, res);
+         else if(op.equals("send"))
+            send(au, req, res);
+         else if(op.equals("edit") || op.equals("delete"))
+            change(au, req, res, op.equals("delete"));
+         else if(op.equals("notifications"))
+            notifications(au, req, res);
+         else if(op.equals("contacts"))
+            contacts(au, req, res);
+         else if(op.equals("add_contact"))
+            addContact(au, req, res);
+         else if(op.equals("remove_contact"))
+            removeContact(au, req, res);
+         else
+            return fail(res, "unknown op " + op);
+         return res;
+      }catch(IllegalArgumentException e){
+         return fail(res, e.getMessage());
+      }catch(SQLException e){
+         return fail(res, e.getMessage());
+      }catch(RuntimeException e){
+         // a bug must not cost the client its connection
+         System.err.println("JSON API: " + e);
+         return fail(res, "internal error: " + e);
+      }
+   }//end handle
+
+   /*========================= operations =======================*/
+
+   private void chats(aUser au, Map<String, Object> res) throws SQLException {
+      Map<String, List<Object>> members = new HashMap<String, List<Object>>();
+      for(List<String> row : esql.getStore().chatMembersOfUser(au.login)){
+         List<Object> m = members.get(row.get(0));
+         if(m == null){
+            m = new ArrayList<Object>();
+            members.put(row.get(0), m);
+         }
+         m.add(row.get(1));
+      }
+      List<Object> chats = new ArrayList<Object>();
+      for(List<String> row : esql.getStore().chatList(au.login)){
+         Map<String, Object> c = new LinkedHashMap<String, Object>();
+         c.put("chat_id", Long.valueOf(row.get(0)));
+         c.put("last_update", row.get(1));
+         c.put("unread", Long.valueOf(row.get(2)));
+         c.put("members", members.containsKey(row.get(0)) ? members.get(row.get(0)) : new ArrayList<Object>());
+         chats.add(c);
+      }
+      res.put("chats", chats);
+   }//end chats
+
+   private void history(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      String chat = member(au, req);
+      int offset = (int) range(req, "offset", 0, 0, Integer.MAX_VALUE);
+      int limit = (int) range(req, "limit", PAGE, 1, MAX_LIMIT);
+      List<Object> messages = new ArrayList<Object>();
+      for(MessageCache.CachedMessage m : esql.getStore().messagePage(chat, offset, limit)){
+         Map<String, Object> o = message(m.row);
+         List<Object> atts = new ArrayList<Object>();
+         for(List<String> a : m.attachments){
+            List<Object> pair = new ArrayList<Object>();
+            pair.add(a.get(0));
+            pair.add(a.get(1));
+            atts.add(pair);
+         }
+         o.put("attachments", atts);
+         messages.add(o);
+      }
+      res.put("messages", messages);
+   }//end history
+
+   @SuppressWarnings("unchecked")
+   private void send(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      String chat = member(au, req);
+      String text = str(req, "text");
+      if(text.equals(""))
+         throw new IllegalArgumentException("must have a msg");
+      List<String> pairs = new ArrayList<String>();
+      if(req.get("attachments") instanceof List){
+         for(Object a : (List<Object>) req.get("attachments")){
+            if(!(a instanceof List) || ((List<Object>) a).size() != 2)
+               throw new IllegalArgumentException("attachments are [type, url] pairs");
+            for(Object v : (List<Object>) a)
+               pairs.add(String.valueOf(v));
+         }
+      }
+      Timestamp ts = new Timestamp(System.currentTimeMillis());
+      Timestamp destr = new Timestamp(ts.getTime() + num(req, "destr_ms", DEFAULT_DESTR_MILLIS));
+      List<String> recipients = esql.getStore().chatMembers(chat);
+      //notify all but the sender and those who blocked them, as the menus do
+      recipients.remove(au.login);
+      List<String> blockers = esql.getStore().blockedBy(au.login, new ArrayList<String>(recipients));
+      recipients.removeAll(blockers);
+      if(recipients.size() == 0)
+         throw new IllegalArgumentException(blockers.size() > 0 ? "blocked by " + blockers : "nobody to message");
+      int msgId = esql.getStore().sendMessage(chat, au.login, text, ts, destr, pairs, recipients);
+      MessengerMetrics.messagesSent.inc();
+      MessengerMetrics.notificationsFannedOut.inc(recipients.size());
+      res.put("msg_id", Long.valueOf(msgId));
+      res.put("ts", ts.toString());
+   }//end send
+
+   private void change(aUser au, Map<String, Object> req, Map<String, Object> res, boolean delete) throws SQLException {
+      String chat = member(au, req);
+      // the key columns are all the store needs of a message row
+      List<String> message = new ArrayList<String>();
+      message.add(String.valueOf(num(req, "msg_id", -1)));
+      message.add(null);
+      // the timestamp goes into SQL, only a well formed one gets there
+      try{
+         message.add(Timestamp.valueOf(str(req, "ts")).toString());
+      }catch(IllegalArgumentException e){
+         throw new IllegalArgumentException("\"ts\" must be a timestamp, yyyy-mm-dd hh:mm:ss[.f...]");
+      }
+      message.add(null);
+      message.add(au.login);
+      message.add(chat);
+      if(!esql.getStore().isSender(message, au.login))
+         throw new IllegalArgumentException("message doesn't exist or does not belong to the authorized user");
+      if(delete)
+         esql.getStore().deleteMessage(message, au.login);
+      else
+         esql.getStore().editMessageText(message, au.login, str(req, "text"));
+   }//end change
+
+   private void notifications(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      boolean clear = Boolean.TRUE.equals(req.get("clear"));
+      List<Object> list = new ArrayList<Object>();
+      for(List<String> n : esql.getStore().notifications(au.login)){
+         // messages of blocked users are not shown, as in the menu
+         if(esql.getStore().listContains(au.block_list, n.get(3)))
+            continue;
+         Map<String, Object> o = new LinkedHashMap<String, Object>();
+         o.put("msg_id", Long.valueOf(n.get(0)));
+         o.put("ts", n.get(1));
+         o.put("text", n.get(2));
+         o.put("sender", n.get(3));
+         o.put("chat_id", Long.valueOf(n.get(4)));
+         list.add(o);
+         if(clear){
+            esql.getStore().clearNotification(au.login, n);
+            MessengerMetrics.notificationsRead.inc();
+         }
+      }
+      res.put("notifications", list);
+   }//end notifications
+
+   private void contacts(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      String prefix = req.get("prefix") == null ? "" : str(req, "prefix");
+      String after = req.get("after") == null ? null : str(req, "after");
+      List<Object> list = new ArrayList<Object>();
+      for(List<String> row : esql.getStore().listMembers(au.contact_list, prefix, after, (int) range(req, "limit", 100, 1, MAX_LIMIT))){
+         Map<String, Object> o = new LinkedHashMap<String, Object>();
+         o.put("login", row.get(0));
+         o.put("status", row.get(1));
+         list.add(o);
+      }
+      res.put("contacts", list);
+   }//end contacts
+
+   private void addContact(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      String login = str(req, "login");
+      if(login.equals(au.login))
+         throw new IllegalArgumentException("you cannot add yourself as a contact");
+      if(!esql.getStore().userExists(login))
+         throw new IllegalArgumentException("user does not exist");
+      if(esql.getStore().listContains(au.contact_list, login))
+         return;
+      // adding a blocked user unblocks them, the menu asks first
+      boolean unblocked = esql.getStore().listContains(au.block_list, login);
+      if(unblocked)
+         esql.getStore().unblock(au.login, au.block_list, login);
+      esql.getStore().addToList(au.contact_list, login);
+      au.contacts = null;
+      res.put("unblocked", Boolean.valueOf(unblocked));
+   }//end addContact
+
+   private void removeContact(aUser au, Map<String, Object> req, Map<String, Object> res) throws SQLException {
+      String login = str(req, "login");
+      if(!esql.getStore().listContains(au.contact_list, login))
+         throw new IllegalArgumentException(login + " is not on your contact list");
+      esql.getStore().removeFromList(au.contact_list, login);
+      au.contacts = null;
+   }//end removeContact
+
+   /*========================= helpers ==========================*/
+
+   // the chat of a request, which the user must be a member of
+   private String member(aUser au, Map<String, Object> req) throws SQLException {
+      String chat = String.valueOf(num(req, "chat", -1));
+      if(!esql.getStore().isMember(chat, au.login))
+         throw new IllegalArgumentException("not a member of chat " + chat);
+      return chat;
+   }
+
+   private static Map<String, Object> message(List<String> row){
+      Map<String, Object> o = new LinkedHashMap<String, Object>();
+      o.put("msg_id", Long.valueOf(row.get(0)));
+      o.put("text", row.get(1));
+      o.put("ts", row.get(2));
+      o.put("destr", row.get(3));
+      o.put("sender", row.get(4));
+      o.put("chat_id", Long.valueOf(row.get(5)));
+      return o;
+   }//end message
+
+   private static Map<String, Object> fail(Map<String, Object> res, String error){
+      MessengerMetrics.apiErrors.inc();
+      res.put("ok", Boolean.FALSE);
+      res.put("error", error);
+      return res;
+   }
+
+   private static String str(Map<String, Object> req, String key){
+      Object v = req.get(key);
+      if(!(v instanceof String))
+         throw new IllegalArgumentException("\"" + key + "\" must be a string");
+      return (String) v;
+   }
+
+   private static long range(Map<String, Object> req, String key, long dflt, long min, long max){
+      long v = num(req, key, dflt);
+      if(v < min || v > max)
+         throw new IllegalArgumentException("\"" + key + "\" must be between " + min + " and " + max);
+      return v;
+   }
+
+   private static long num(Map<String, Object> req, String key, long dflt){
+      Object v = req.get(key);
+      if(v == null)
+         return dflt;
+      if(!(v instanceof Long))
+         throw new IllegalArgumentException("\"" + key + "\" must be an integer");
+      return ((Long) v).longValue();
+   }
+
+}//end JsonApiServer
@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Prefix index over logins for recipient autocompletion, kept in process.
+ *
+ * The logins live in one sorted String array; the logins starting with a
+ * prefix are a contiguous range of it, found by two binary searches, so a
+ * completion costs O(log n + k) whatever the number of users. Writes copy
+ * the array, they are rare (a user created or deleted by this session)
+ * next to the lookups, which read it without locking.
+ */
+public class LoginIndex {
+
+   private volatile String[] logins;
+
+   public LoginIndex(Collection<String> logins){
+      String[] sorted = logins.toArray(new String[logins.size()]);
+      Arrays.sort(sorted);
+      this.logins = sorted;
+   }
+
+   public int size(){
+      return logins.length;
+   }
+
+   public boolean contains(String login){
+      return Arrays.binarySearch(logins, login) >= 0;
+   }
+
+   public synchronized void add(String login){
+      String[] cur = logins;
+      int i = Arrays.binarySearch(cur, login);
+      if(i >= 0)
+         return;
+      i = -i - 1;
+      String[] next = new String[cur.length + 1];
+      System.arraycopy(cur, 0, next, 0, i);
+      next[i] = login;
+      System.arraycopy(cur, i, next, i + 1, cur.length - i);
+      logins = next;
+   }//end add
+
+   public synchronized void remove(String login){
+      String[] cur = logins;
+      int i = Arrays.binarySearch(cur, login);
+      if(i < 0)
+         return;
+      String[] next = new String[cur.length - 1];
+      System.arraycopy(cur, 0, next, 0, i);
+      System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+      logins = next;
+   }//end remove
+
+   /**
+    * @return at most k logins starting with prefix, in order
+    */
+   public List<String> complete(String prefix, int k){
+      return complete(prefix, k, null);
+   }
+
+   /**
+    * Completes a prefix with the logins of a preferred index first, e.g.
+    * the contacts of the user, then the remaining logins of this one
+    *
+    * @param first ranked before the rest, may be null
+    * @return at most k logins starting with prefix
+    */
+   public List<String> complete(String prefix, int k, LoginIndex first){
+      List<String> result = new ArrayList<String>();
+      if(first != null)
+         first.range(prefix, k, null, result);
+      range(prefix, k, first, result);
+      return result;
+   }//end complete
+
+   // appends the logins starting with prefix, not in skip, until result holds k
+   private void range(String prefix, int k, LoginIndex skip, List<String> result){
+      String[] cur = logins;
+      int i = Arrays.binarySearch(cur, prefix);
+      if(i < 0)
+         i = -i - 1;
+      for(; i < cur.length && result.size() < k && cur[i].startsWith(prefix); i++)
+         if(skip == null || !skip.contains(cur[i]))
+            result.add(cur[i]);
+   }//end range
+
+}//end LoginIndex
@@ -0,0 +1,459 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Cold tier of the message history, compressed columnar files per chat.
+ *
+ * MessageArchiver moves old messages out of MESSAGE into
+ * dir/chat_ID/SEQ.arc, a higher SEQ holding newer messages. A file is a
+ * run of blocks of up to BLOCK_ROWS messages, oldest first. Each block is
+ * gzip compressed on its own and stores the values of one column together
+ * (ids, timestamps, senders, texts, attachments), which compresses far
+ * better than rows. The footer indexes the blocks by position and time
+ * range, so a page only decompresses the blocks it touches:
+ *
+ *   block*  | int blockCount | (long offset, int length, int rows,
+ *   long minTs, long maxTs) per block | int firstMsgId | int footerLength | int MAGIC
+ *
+ * Timestamps are microseconds since the epoch. Archived messages are read
+ * only and have no self destruct time.
+ */
+public class MessageArchive {
+
+   static final int BLOCK_ROWS = 256;
+   private static final int MAGIC = 0x4d415243;
+   // decoded blocks kept for scrolling through them page by page
+   private static final int CACHED_BLOCKS = 16;
+
+   static class Block {
+      final long offset;
+      final int length;
+      final int rows;
+      final long minTs;
+      final long maxTs;
+
+      Block(long offset, int length, int rows, long minTs, long maxTs){
+         this.offset = offset;
+         this.length = length;
+         this.rows = rows;
+         this.minTs = minTs;
+         this.maxTs = maxTs;
+      }
+   }//end Block
+
+   static class ArchiveFile {
+      final File file;
+      final List<Block> blocks;
+      final int rows;
+      final int firstMsgId;
+
+      ArchiveFile(File file, List<Block> blocks, int firstMsgId){
+         this.file = file;
+         this.blocks = blocks;
+         int n = 0;
+         for(Block b : blocks)
+            n += b.rows;
+         this.rows = n;
+         this.firstMsgId = firstMsgId;
+      }
+   }//end ArchiveFile
+
+   // the archive files of a chat, newest first, as of the directory's mtime
+   private static class ChatIndex {
+      final long modified;
+      final List<ArchiveFile> files;
+      final int rows;
+
+      ChatIndex(long modified, List<ArchiveFile> files){
+         this.modified = modified;
+         this.files = files;
+         int n = 0;
+         for(ArchiveFile f : files)
+            n += f.rows;
+         this.rows = n;
+      }
+   }//end ChatIndex
+
+   private final File dir;
+   private final Map<String, ChatIndex> chats = new HashMap<String, ChatIndex>();
+   private final Map<String, List<MessageCache.CachedMessage>> decoded =
+      new LinkedHashMap<String, List<MessageCache.CachedMessage>>(CACHED_BLOCKS, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<String, List<MessageCache.CachedMessage>> eldest){
+            return size() > CACHED_BLOCKS;
+         }
+      };
+
+   // held while messages move in, or while the archive must stand still; see lock()
+   private final ReentrantLock moving = new ReentrantLock();
+   // dir/archive.lock, never closed: closing any channel of the file drops the locks of the process on it
+   private FileChannel lockChannel;
+
+   public MessageArchive(File dir){
+      this.dir = dir;
+   }
+
+   /**
+    * Opens the archive configured by -Dmessenger.archive.dir
+    *
+    * @return the archive, or null when none is configured
+    */
+   public static MessageArchive fromProperties(){
+      String prop = System.getProperty("messenger.archive.dir", "").trim();
+      if(prop.length() == 0)
+         return null;
+      return new MessageArchive(new File(prop));
+   }
+
+   File getDir(){
+      return dir;
+   }
+
+   File chatDir(String chatId){
+      return new File(dir, "chat_" + chatId);
+   }
+
+   /**
+    * Takes the archive lock, which keeps out the archivers of this and of
+    * every other session sharing the directory
+    *
+    * @param wait false to give up at once when it is held
+    * @return the lock to pass to unlock, null when it was not taken
+    */
+   FileLock lock(boolean wait) throws IOException {
+      if(wait)
+         moving.lock();
+      else if(!moving.tryLock())
+         return null;
+      FileLock lock = null;
+      try{
+         lock = wait ? lockChannel().lock() : lockChannel().tryLock();
+         return lock;
+      }finally{
+         if(lock == null)
+            moving.unlock();
+      }
+   }//end lock
+
+   void unlock(FileLock lock) throws IOException {
+      try{
+         lock.release();
+      }finally{
+         moving.unlock();
+      }
+   }//end unlock
+
+   private synchronized FileChannel lockChannel() throws IOException {
+      if(lockChannel == null){
+         if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+         lockChannel = new RandomAccessFile(new File(dir, "archive.lock"), "rw").getChannel();
+      }
+      return lockChannel;
+   }//end lockChannel
+
+   /*========================= reading ==========================*/
+
+   /**
+    * @return the number of archived messages of the chat
+    */
+   public synchronized int count(String chatId) throws IOException {
+      return index(chatId).rows;
+   }
+
+   /**
+    * Reads archived messages of a chat, newest first like the hot tier
+    *
+    * @param offset position in the archive, 0 is its newest message
+    * @return up to limit messages, fewer at the oldest end
+    */
+   public synchronized List<MessageCache.CachedMessage> page(String chatId, int offset, int limit) throws IOException {
+      List<MessageCache.CachedMessage> result = new ArrayList<MessageCache.CachedMessage>();
+      int skip = offset;
+      for(ArchiveFile f : index(chatId).files){
+         if(result.size() == limit)
+            break;
+         if(skip >= f.rows){
+            skip -= f.rows;
+            continue;
+         }
+         // newest first position k is row rows-1-k of the file
+         int end = f.rows - skip;
+         int begin = Math.max(0, end - (limit - result.size()));
+         skip = 0;
+         int blockStart = f.rows;
+         for(int b = f.blocks.size() - 1; b >= 0 && blockStart > begin; b--){
+            Block block = f.blocks.get(b);
+            blockStart -= block.rows;
+            if(blockStart >= end)
+               continue;
+            List<MessageCache.CachedMessage> rows = block(f, b, chatId);
+            for(int i = Math.min(end, blockStart + block.rows) - 1; i >= Math.max(begin, blockStart); i--)
+               result.add(rows.get(i - blockStart));
+         }
+      }
+      return result;
+   }//end page
+
+   private ChatIndex index(String chatId) throws IOException {
+      File chatDir = chatDir(chatId);
+      long modified = chatDir.lastModified();
+      ChatIndex idx = chats.get(chatId);
+      if(idx != null && idx.modified == modified)
+         return idx;
+      List<ArchiveFile> files = new ArrayList<ArchiveFile>();
+      for(int seq : seqs(chatDir, ".arc"))
+         files.add(0, readFooter(new File(chatDir, seq + ".arc")));
+      idx = new ChatIndex(modified, files);
+      chats.put(chatId, idx);
+      return idx;
+   }//end index
+
+   private List<MessageCache.CachedMessage> block(ArchiveFile f, int b, String chatId) throws IOException {
+      String key = f.file.getPath() + "#" + b;
+      List<MessageCache.CachedMessage> rows = decoded.get(key);
+      if(rows == null){
+         Block block = f.blocks.get(b);
+         byte[] buf = new byte[block.length];
+         RandomAccessFile raf = new RandomAccessFile(f.file, "r");
+         try{
+            raf.seek(block.offset);
+            raf.readFully(buf);
+         }finally{
+            raf.close();
+         }
+         rows = decode(buf, chatId);
+         decoded.put(key, rows);
+      }
+      return rows;
+   }//end block
+
+   /**
+    * @return the sequence numbers of the files with the suffix, ascending
+    */
+   static List<Integer> seqs(File chatDir, String suffix){
+      List<Integer> result = new ArrayList<Integer>();
+      String[] names = chatDir.list();
+      if(names == null)
+         return result;
+      for(String name : names){
+         if(!name.endsWith(suffix))
+            continue;
+         try{
+            result.add(Integer.parseInt(name.substring(0, name.length() - suffix.length())));
+         }catch(NumberFormatException e){
+            // not an archive file
+         }
+      }
+      Collections.sort(result);
+      return result;
+   }//end seqs
+
+   static ArchiveFile readFooter(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try{
+         long len = raf.length();
+         if(len < 12)
+            throw new IOException(file + " is truncated");
+         raf.seek(len - 8);
+         int footerLength = raf.readInt();
+         if(raf.readInt() != MAGIC || footerLength < 8 || footerLength > len - 8)
+            throw new IOException(file + " has no archive footer");
+         raf.seek(len - 8 - footerLength);
+         int count = raf.readInt();
+         List<Block> blocks = new ArrayList<Block>();
+         for(int i = 0; i < count; i++)
+            blocks.add(new Block(raf.readLong(), raf.readInt(), raf.readInt(), raf.readLong(), raf.readLong()));
+         return new ArchiveFile(file, blocks, raf.readInt());
+      }finally{
+         raf.close();
+      }
+   }//end readFooter
+
+   /*========================= writing ==========================*/
+
+   /**
+    * Writes and syncs an archive file
+    *
+    * @param rows the messages, oldest first, as MESSAGE rows
+    *        (msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id)
+    */
+   static void write(File file, List<MessageCache.CachedMessage> rows) throws IOException {
+      FileOutputStream fos = new FileOutputStream(file);
+      try{
+         DataOutputStream out = new DataOutputStream(fos);
+         ByteArrayOutputStream footer = new ByteArrayOutputStream();
+         DataOutputStream index = new DataOutputStream(footer);
+         int count = (rows.size() + BLOCK_ROWS - 1) / BLOCK_ROWS;
+         index.writeInt(count);
+         long offset = 0;
+         for(int start = 0; start < rows.size(); start += BLOCK_ROWS){
+            List<MessageCache.CachedMessage> part = rows.subList(start, Math.min(rows.size(), start + BLOCK_ROWS));
+            byte[] block = encode(part);
+            out.write(block);
+            index.writeLong(offset);
+            index.writeInt(block.length);
+            index.writeInt(part.size());
+            index.writeLong(micros(part.get(0).row.get(2)));
+            index.writeLong(micros(part.get(part.size() - 1).row.get(2)));
+            offset += block.length;
+         }
+         index.writeInt(rows.size() == 0 ? 0 : Integer.parseInt(rows.get(0).row.get(0)));
+         out.write(footer.toByteArray());
+         out.writeInt(footer.size());
+         out.writeInt(MAGIC);
+         out.flush();
+         fos.getFD().sync();
+      }finally{
+         fos.close();
+      }
+   }//end write
+
+   private static byte[] encode(List<MessageCache.CachedMessage> rows) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+      int n = rows.size();
+      out.writeInt(n);
+      // ids and timestamps as deltas, mostly small and alike
+      int lastId = 0;
+      long lastTs = 0;
+      for(MessageCache.CachedMessage m : rows){
+         int id = Integer.parseInt(m.row.get(0));
+         out.writeInt(id - lastId);
+         lastId = id;
+      }
+      for(MessageCache.CachedMessage m : rows){
+         long ts = micros(m.row.get(2));
+         out.writeLong(ts - lastTs);
+         lastTs = ts;
+      }
+      // a chat has few senders, each is stored once
+      List<String> senders = new ArrayList<String>();
+      Map<String, Integer> senderIds = new HashMap<String, Integer>();
+      int[] senderOf = new int[n];
+      for(int i = 0; i < n; i++){
+         String sender = rows.get(i).row.get(4);
+         Integer sid = senderIds.get(sender);
+         if(sid == null){
+            sid = senders.size();
+            senders.add(sender);
+            senderIds.put(sender, sid);
+         }
+         senderOf[i] = sid;
+      }
+      out.writeInt(senders.size());
+      for(String sender : senders)
+         writeString(out, sender);
+      for(int sid : senderOf)
+         out.writeInt(sid);
+      for(MessageCache.CachedMessage m : rows)
+         writeString(out, m.row.get(1));
+      for(MessageCache.CachedMessage m : rows)
+         out.writeInt(m.attachments.size());
+      for(MessageCache.CachedMessage m : rows){
+         for(List<String> a : m.attachments){
+            writeString(out, a.get(0));
+            writeString(out, a.get(1));
+         }
+      }
+      out.close();
+      return bytes.toByteArray();
+   }//end encode
+
+   private static List<MessageCache.CachedMessage> decode(byte[] block, String chatId) throws IOException {
+      DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(block)));
+      try{
+         int n = in.readInt();
+         int[] ids = new int[n];
+         long[] ts = new long[n];
+         int lastId = 0;
+         long lastTs = 0;
+         for(int i = 0; i < n; i++)
+            ids[i] = lastId = lastId + in.readInt();
+         for(int i = 0; i < n; i++)
+            ts[i] = lastTs = lastTs + in.readLong();
+         String[] senders = new String[in.readInt()];
+         for(int i = 0; i < senders.length; i++)
+            senders[i] = readString(in);
+         int[] senderOf = new int[n];
+         for(int i = 0; i < n; i++)
+            senderOf[i] = in.readInt();
+         String[] texts = new String[n];
+         for(int i = 0; i < n; i++)
+            texts[i] = readString(in);
+         int[] attachmentCount = new int[n];
+         for(int i = 0; i < n; i++)
+            attachmentCount[i] = in.readInt();
+         List<MessageCache.CachedMessage> result = new ArrayList<MessageCache.CachedMessage>(n);
+         for(int i = 0; i < n; i++){
+            List<String> row = new ArrayList<String>();
+            row.add(String.valueOf(ids[i]));
+            row.add(texts[i]);
+            row.add(timestamp(ts[i]).toString());
+            row.add(null);
+            row.add(senders[senderOf[i]]);
+            row.add(chatId);
+            List<List<String>> att = new ArrayList<List<String>>();
+            for(int a = 0; a < attachmentCount[i]; a++){
+               List<String> pair = new ArrayList<String>();
+               pair.add(readString(in));
+               pair.add(readString(in));
+               att.add(pair);
+            }
+            result.add(new MessageCache.CachedMessage(row, att));
+         }
+         return result;
+      }finally{
+         in.close();
+      }
+   }//end decode
+
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      if(s == null){
+         out.writeInt(-1);
+         return;
+      }
+      byte[] b = s.getBytes("UTF-8");
+      out.writeInt(b.length);
+      out.write(b);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      int len = in.readInt();
+      if(len < 0)
+         return null;
+      byte[] b = new byte[len];
+      in.readFully(b);
+      return new String(b, "UTF-8");
+   }
+
+   static long micros(String timestamp){
+      Timestamp ts = Timestamp.valueOf(timestamp);
+      return (ts.getTime() / 1000) * 1000000L + ts.getNanos() / 1000;
+   }
+
+   static Timestamp timestamp(long micros){
+      Timestamp ts = new Timestamp((micros / 1000000L) * 1000);
+      ts.setNanos((int) (micros % 1000000L) * 1000);
+      return ts;
+   }
+
+}//end MessageArchive
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Moves messages older than a configured age from MESSAGE into the
+ * MessageArchive, in the background of a session.
+ *
+ * Only messages nothing refers to any more are archived: no pending
+ * notification, no self destruct time, and never the newest message of a
+ * chat, which CHAT_LIST points at. Each batch of a chat is written and synced
+ * as SEQ.arc.pending, then deleted from MESSAGE (its attachments cascade),
+ * then renamed to SEQ.arc. A pending file left behind by a crash is completed
+ * when its messages are gone from MESSAGE and dropped otherwise. The lock of
+ * the archive (MessageArchive.lock) keeps the sessions sharing it from
+ * archiving at the same time, and a pass from running during an export.
+ */
+public class MessageArchiver implements Runnable {
+
+   // messages per archive file
+   static final int BATCH_ROWS = 10000;
+
+   private final Messenger esql;
+   private final MessageArchive archive;
+   private final long ageMillis;
+   private final long intervalMillis;
+   private volatile boolean running = true;
+   private Thread thread;
+
+   public MessageArchiver(Messenger esql, MessageArchive archive, long ageMillis, long intervalMillis){
+      this.esql = esql;
+      this.archive = archive;
+      this.ageMillis = ageMillis;
+      this.intervalMillis = intervalMillis;
+   }
+
+   /**
+    * Starts the archiver configured by -Dmessenger.archive.after.days and
+    * -Dmessenger.archive.interval.ms
+    *
+    * @return the running archiver, or null when archiving is off
+    */
+   public static MessageArchiver startFromProperties(Messenger esql, MessageArchive archive){
+      long days = Long.getLong("messenger.archive.after.days", 365);
+      long interval = Long.getLong("messenger.archive.interval.ms", 3600000);
+      if(archive == null || interval <= 0)
+         return null;
+      MessageArchiver archiver = new MessageArchiver(esql, archive, days * 24 * 3600 * 1000, interval);
+      archiver.start();
+      return archiver;
+   }//end startFromProperties
+
+   public void start(){
+      thread = new Thread(this, "message-archiver");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public void stop(){
+      running = false;
+      if(thread != null)
+         thread.interrupt();
+   }
+
+   public void run(){
+      while(running){
+         try{
+            archiveOnce();
+         }catch(Exception e){
+            System.err.println("Archiving failed: " + e.getMessage());
+         }
+         try{
+            Thread.sleep(intervalMillis);
+         }catch(InterruptedException e){
+            return;
+         }
+      }
+   }//end run
+
+   /**
+    * Runs one archiving pass, unless another session is running one
+    *
+    * @return the number of messages archived
+    */
+   public int archiveOnce() throws IOException, SQLException {
+      FileLock lock = archive.lock(false);
+      if(lock == null)
+         return 0;
+      try{
+         recover();
+         Timestamp cutoff = new Timestamp(System.currentTimeMillis() - ageMillis);
+         int archived = 0;
+         for(List<String> chat : esql.executeQueryResultOnPrimary(String.format(
+               "select distinct chat_id from MESSAGE where msg_timestamp < '%s' and destr_timestamp is null " +
+               "and chat_id not in (select chat_id from CHAT where deleted_at is not null)", cutoff)))
+            archived += archiveChat(chat.get(0), cutoff);
+         MessengerMetrics.archivedMessages.inc(archived);
+         return archived;
+      }finally{
+         archive.unlock(lock);
+      }
+   }//end archiveOnce
+
+   private int archiveChat(String chatId, Timestamp cutoff) throws IOException, SQLException {
+      int chat = Integer.parseInt(chatId);
+      File chatDir = archive.chatDir(chatId);
+      int archived = 0;
+      while(true){
+         List<List<String>> rows = esql.executeQueryResultOnPrimary(String.format(
+            "select msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id from MESSAGE m " +
+            "where chat_id = %s and msg_timestamp < '%s' and destr_timestamp is null " +
+            "and not exists (select 1 from NOTIFICATION n where n.msg_id = m.msg_id and n.msg_timestamp = m.msg_timestamp) " +
+            "and msg_id not in (select last_msg_id from CHAT where chat_id = %s and last_msg_id is not null) " +
+            "order by msg_timestamp, msg_id limit %s",
+            chat, cutoff, chat, BATCH_ROWS));
+         if(rows.size() == 0)
+            break;
+         StringBuilder ids = new StringBuilder();
+         for(int i = 0; i < rows.size(); i++){
+            if(i > 0)
+               ids.append(',');
+            ids.append(rows.get(i).get(0));
+         }
+         String last = rows.get(rows.size() - 1).get(2);
+         List<List<String>> att = esql.executeQueryResultOnPrimary(String.format(
+            "select msg_id, media_type, URL from MEDIA_ATTACHMENT where msg_id in (%s) and msg_timestamp <= '%s' order by media_id",
+            ids, last));
+         List<MessageCache.CachedMessage> batch = new ArrayList<MessageCache.CachedMessage>();
+         Map<String, List<List<String>>> byId = new HashMap<String, List<List<String>>>();
+         for(List<String> row : att){
+            List<List<String>> list = byId.get(row.get(0));
+            if(list == null){
+               list = new ArrayList<List<String>>();
+               byId.put(row.get(0), list);
+            }
+            list.add(row.subList(1, 3));
+         }
+         for(List<String> row : rows){
+            List<List<String>> list = byId.get(row.get(0));
+            batch.add(new MessageCache.CachedMessage(row, list == null ? new ArrayList<List<String>>() : list));
+         }
+
+         if(!chatDir.isDirectory() && !chatDir.mkdirs())
+            throw new IOException("cannot create " + chatDir);
+         List<Integer> seqs = MessageArchive.seqs(chatDir, ".arc");
+         int seq = seqs.size() == 0 ? 1 : seqs.get(seqs.size() - 1) + 1;
+         File pending = new File(chatDir, seq + ".arc.pending");
+         MessageArchive.write(pending, batch);
+         esql.executeUpdate(String.format(
+            "delete from MESSAGE where chat_id = %s and msg_timestamp <= '%s' and msg_id in (%s)", chat, last, ids));
+         if(!pending.renameTo(new File(chatDir, seq + ".arc")))
+            throw new IOException("cannot rename " + pending);
+         archived += rows.size();
+
+         if(esql.getMessageCache() != null)
+            esql.getMessageCache().invalidate(chatId);
+         esql.publish(MessengerEvents.chatChannel(chatId));
+         if(rows.size() < BATCH_ROWS)
+            break;
+      }
+      return archived;
+   }//end archiveChat
+
+   /**
+    * Completes or drops the pending files of an interrupted pass
+    */
+   private void recover() throws IOException, SQLException {
+      String[] chats = archive.getDir().list();
+      if(chats == null)
+         return;
+      for(String name : chats){
+         if(!name.startsWith("chat_"))
+            continue;
+         File chatDir = new File(archive.getDir(), name);
+         for(int seq : MessageArchive.seqs(chatDir, ".arc.pending")){
+            File pending = new File(chatDir, seq + ".arc.pending");
+            boolean deleted;
+            try{
+               MessageArchive.ArchiveFile f = MessageArchive.readFooter(pending);
+               // a batch is deleted in one statement, one message tells for all
+               deleted = esql.executeQueryResultOnPrimary(String.format(
+                  "select msg_id from MESSAGE where chat_id = %s and msg_id = %s",
+                  Integer.parseInt(name.substring(5)), f.firstMsgId)).size() == 0;
+            }catch(IOException e){
+               // not completely written, so nothing was deleted yet
+               deleted = false;
+            }
+            if(deleted ? !pending.renameTo(new File(chatDir, seq + ".arc")) : !pending.delete())
+               throw new IOException("cannot recover " + pending);
+         }
+      }
+   }//end recover
+
+}//end MessageArchiver
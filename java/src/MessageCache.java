@@ -0,0 +1,278 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.sql.Timestamp;
+
+
+/**
+ * Write-through cache of the most recent messages of each chat.
+ *
+ * Every chat gets a ring buffer holding its newest N messages (newest first,
+ * like the paging query in cMessage) together with their attachments. The
+ * buffer is filled when the head of a chat is read and kept current by the
+ * send, edit and delete paths, so re-rendering an active chat does not touch
+ * the database. Messages written by other sessions are picked up once the
+ * entry is older than the configured time to live, unless the chat is
+ * pinned: then the change notifications invalidate it instead.
+ */
+public class MessageCache {
+
+   private final int capacity;
+   private final long ttlMillis;
+   private final Map<String, Ring> chats = new HashMap<String, Ring>();
+   // chats whose change notifications are being received, they do not expire
+   private final Set<String> pinned = new HashSet<String>();
+
+   /**
+    * Creates a new cache
+    *
+    * @param capacity the number of messages kept per chat
+    * @param ttlMillis how long a chat entry is trusted after it was loaded
+    */
+   public MessageCache(int capacity, long ttlMillis){
+      this.capacity = capacity;
+      this.ttlMillis = ttlMillis;
+   }
+
+   /**
+    * Builds the cache from -Dmessenger.cache.size (default 50, 0 disables)
+    * and -Dmessenger.cache.ttl.ms (default 5000)
+    *
+    * @return the configured cache or null when caching is disabled
+    */
+   public static MessageCache fromProperties(){
+      int size = Integer.parseInt(System.getProperty("messenger.cache.size", "50"));
+      long ttl = Long.parseLong(System.getProperty("messenger.cache.ttl.ms", "5000"));
+      if(size <= 0)
+         return null;
+      return new MessageCache(size, ttl);
+   }//end fromProperties
+
+   public int capacity(){
+      return capacity;
+   }
+
+   /**
+    * Trusts the entry of a chat until it is invalidated, to be called once
+    * a LISTEN on the chat's channel is in effect. What was cached before
+    * then may have missed a change and is dropped.
+    */
+   public synchronized void pin(String chatId){
+      chats.remove(chatId);
+      pinned.add(chatId);
+   }//end pin
+
+   /**
+    * Lets the entry of a chat expire again, its changes are no longer received
+    */
+   public synchronized void unpin(String chatId){
+      pinned.remove(chatId);
+   }
+
+   /**
+    * Lets every entry expire again, e.g. when the change listener stopped
+    */
+   public synchronized void unpinAll(){
+      pinned.clear();
+   }
+
+   /**
+    * Returns a page of the newest-first message list of a chat
+    *
+    * @param chatId the chat
+    * @param offset number of newer messages to skip
+    * @param limit maximum number of messages returned
+    * @return the page, or null when the cache cannot answer it
+    */
+   public synchronized List<CachedMessage> page(String chatId, int offset, int limit){
+      Ring r = live(chatId);
+      if(r == null)
+         return null;
+      // only answer pages we hold completely, unless we hold the whole chat
+      if(offset + limit > r.size && !r.complete)
+         return null;
+      List<CachedMessage> result = new ArrayList<CachedMessage>();
+      for(int i = offset; i < offset + limit && i < r.size; i++)
+         result.add(r.get(i));
+      return result;
+   }//end page
+
+   /**
+    * Replaces the entry of a chat with freshly read messages
+    *
+    * @param chatId the chat
+    * @param newestFirst up to capacity() messages ordered newest first
+    * @param complete true when newestFirst holds every message of the chat
+    */
+   public synchronized void fill(String chatId, List<CachedMessage> newestFirst, boolean complete){
+      Ring r = new Ring(capacity);
+      for(int i = newestFirst.size() - 1; i >= 0; i--)
+         r.push(newestFirst.get(i));
+      r.complete = complete;
+      chats.put(chatId, r);
+   }//end fill
+
+   /**
+    * Adds a message that was just sent to the head of its chat
+    *
+    * @param chatId the chat
+    * @param m the new message
+    */
+   public synchronized void append(String chatId, CachedMessage m){
+      Ring r = chats.get(chatId);
+      if(r == null)
+         return;
+      r.push(m);
+   }//end append
+
+   /**
+    * Replaces the text of a cached message after it was edited
+    */
+   public synchronized void editText(String chatId, String msgId, String text){
+      Ring r = chats.get(chatId);
+      if(r == null)
+         return;
+      int i = r.indexOf(msgId);
+      if(i >= 0)
+         r.get(i).row.set(1, text);
+   }//end editText
+
+   /**
+    * Drops a deleted message from its chat
+    */
+   public synchronized void remove(String chatId, String msgId){
+      Ring r = chats.get(chatId);
+      if(r == null)
+         return;
+      int i = r.indexOf(msgId);
+      if(i >= 0)
+         r.removeAt(i);
+   }//end remove
+
+   /**
+    * Forgets everything cached for a chat
+    */
+   public synchronized void invalidate(String chatId){
+      chats.remove(chatId);
+   }
+
+   /**
+    * Invalidates every chat holding a message whose destruction time has
+    * passed, since the purge may have deleted it from MESSAGE
+    *
+    * @param now the time the purge ran
+    */
+   public synchronized void expire(Timestamp now){
+      List<String> stale = new ArrayList<String>();
+      for(Map.Entry<String, Ring> e : chats.entrySet()){
+         Ring r = e.getValue();
+         for(int i = 0; i < r.size; i++){
+            String destr = r.get(i).row.get(3);
+            if(destr != null && Timestamp.valueOf(destr).compareTo(now) <= 0){
+               stale.add(e.getKey());
+               break;
+            }
+         }
+      }
+      for(String chatId : stale)
+         chats.remove(chatId);
+   }//end expire
+
+   // returns the entry of a chat if it is still within its time to live
+   private Ring live(String chatId){
+      Ring r = chats.get(chatId);
+      if(r == null)
+         return null;
+      if(!pinned.contains(chatId) && System.currentTimeMillis() - r.loadedAt > ttlMillis){
+         chats.remove(chatId);
+         return null;
+      }
+      return r;
+   }//end live
+
+   /**
+    * One cached message: the MESSAGE row as returned by "select *"
+    * (msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id)
+    * and its (media_type, URL) attachment rows
+    */
+   public static class CachedMessage {
+      public final List<String> row;
+      public final List<List<String>> attachments;
+
+      public CachedMessage(List<String> row, List<List<String>> attachments){
+         this.row = row;
+         this.attachments = attachments;
+      }
+
+      /**
+       * Builds the cache entry of a message that was just inserted
+       *
+       * @param attachmentPairs media type and URL, alternating, as collected by the send menus
+       */
+      public static CachedMessage sent(int msgId, String text, Timestamp ts, Timestamp destr,
+                                       String sender, String chatId, List<String> attachmentPairs){
+         List<String> row = new ArrayList<String>();
+         row.add(String.valueOf(msgId));
+         row.add(text);
+         row.add(ts.toString());
+         row.add(destr == null ? null : destr.toString());
+         row.add(sender);
+         row.add(chatId);
+         List<List<String>> att = new ArrayList<List<String>>();
+         for(int i = 0; i + 1 < attachmentPairs.size(); i += 2){
+            List<String> a = new ArrayList<String>();
+            a.add(attachmentPairs.get(i));
+            a.add(attachmentPairs.get(i + 1));
+            att.add(a);
+         }
+         return new CachedMessage(row, att);
+      }//end sent
+   }//end CachedMessage
+
+   /**
+    * Fixed size ring buffer, index 0 is the newest message
+    */
+   private static class Ring {
+      final CachedMessage[] buf;
+      int head = -1;
+      int size = 0;
+      boolean complete = false;
+      final long loadedAt = System.currentTimeMillis();
+
+      Ring(int capacity){
+         buf = new CachedMessage[capacity];
+      }
+
+      CachedMessage get(int i){
+         return buf[(head - i + buf.length) % buf.length];
+      }
+
+      void push(CachedMessage m){
+         head = (head + 1) % buf.length;
+         buf[head] = m;
+         if(size < buf.length)
+            size++;
+         else
+            complete = false; // the oldest message fell off
+      }
+
+      int indexOf(String msgId){
+         for(int i = 0; i < size; i++)
+            if(get(i).row.get(0).equals(msgId))
+               return i;
+         return -1;
+      }
+
+      void removeAt(int i){
+         // move every older message one slot towards the head
+         for(int j = i; j < size - 1; j++)
+            buf[(head - j + buf.length) % buf.length] = get(j + 1);
+         buf[(head - (size - 1) + buf.length) % buf.length] = null;
+         size--;
+      }
+   }//end Ring
+
+}//end MessageCache
@@ -0,0 +1,73 @@
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * Full-text search over the messages of the chats a user is a member of.
+ *
+ * Matches come from the GIN index on MESSAGE.msg_tsv and are ordered by
+ * ts_rank, best first. Pages are keyset paginated on (rank, msg_id), so
+ * later pages cost the same as the first one.
+ */
+public class MessageSearch {
+
+   public static final int PAGE_SIZE = 10;
+
+   /**
+    * Position after the last row of a page
+    */
+   public static class Cursor {
+      final String rank;
+      final String msgId;
+
+      Cursor(String rank, String msgId){
+         this.rank = rank;
+         this.msgId = msgId;
+      }
+   }//end Cursor
+
+   /**
+    * One page of search results. Each row is
+    * (msg_id, msg_timestamp, chat_id, sender_login, msg_text, rank)
+    */
+   public static class Page {
+      public final List<List<String>> rows;
+      public final Cursor next;
+
+      Page(List<List<String>> rows, Cursor next){
+         this.rows = rows;
+         this.next = next;
+      }
+   }//end Page
+
+   /**
+    * Searches the messages visible to a user
+    *
+    * @param esql the database connection
+    * @param login the user, only chats they are a CHAT_LIST member of are searched
+    * @param chatId restricts the search to one chat, or null for every chat
+    * @param terms the search terms, in web search syntax ("quoted phrase", or, -word)
+    * @param after the cursor of the previous page, or null for the first page
+    * @return the page, its next cursor is null when there are no more results
+    * @throws java.sql.SQLException when the query failed
+    */
+   public static Page search(Messenger esql, String login, String chatId, String terms, Cursor after) throws SQLException {
+      String chatFilter = chatId == null ? "" : String.format(" and m.chat_id = %s", Integer.parseInt(chatId));
+      String keyset = after == null ? "" : String.format(" where (s.rank, s.msg_id) < (%s::real, %s)", after.rank, after.msgId);
+      String query = String.format(
+         "select * from (" +
+            "select m.msg_id, m.msg_timestamp, m.chat_id, m.sender_login, m.msg_text, ts_rank(m.msg_tsv, q) as rank " +
+            "from MESSAGE m, CHAT_LIST cl, websearch_to_tsquery('english', '%s') q " +
+            "where cl.member = '%s' and m.chat_id = cl.chat_id and m.msg_tsv @@ q%s" +
+         ") s%s order by s.rank DESC, s.msg_id DESC limit %s",
+         terms.replace("'", "''"), login.replace("'", "''"), chatFilter, keyset, PAGE_SIZE);
+      List<List<String>> rows = esql.executeQueryResult(query);
+      Cursor next = null;
+      if(rows.size() == PAGE_SIZE){
+         List<String> last = rows.get(rows.size() - 1);
+         next = new Cursor(last.get(5), last.get(0));
+      }
+      return new Page(rows, next);
+   }//end search
+
+}//end MessageSearch
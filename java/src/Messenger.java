@@ -23,9 +23,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
 
 
 
@@ -39,11 +46,47 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // recent messages per chat, null when caching is disabled
+   private MessageCache _cache = MessageCache.fromProperties();
+
+   // connection details, kept to open the change notification connection
+   private String _url;
+   private String _user;
+   private String _passwd;
+
+   // change notifications received for this session
+   private MessengerEvents _events = new MessengerEvents();
+   private ChangeListener _listener = null;
+
+   // where users, chats and messages are kept
+   private MessengerStore _store;
+
+   // sends reads to replicas, null when none are configured
+   private ReadRouter _router = null;
+
+   // moves old messages into the archive, null when not running
+   private MessageArchiver _archiver = null;
+
+   // removes deleted chats and accounts, null when not running
+   private DeletionWorker _deleter = null;
+
+   // write-behind journal of sends, null when they go straight to Postgres
+   private SendJournal _journal = null;
+
+   // the journal's own session, its batches do not queue behind the menus' statements
+   private Messenger _journalSession = null;
+
+   // every login for recipient autocompletion, built on first use
+   private LoginIndex _logins = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // the menus compose their output here, it is rendered before every read
+   static final Screen out = Screen.fromProperties();
+
    /**
     * Creates a new instance of Messenger
     *
@@ -55,39 +98,106 @@ public class Messenger {
     */
    public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
 
-      System.out.print("Connecting to database...");
+      out.print("Connecting to database...");
       try{
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         out.println ("Connection URL: " + url + "\n");
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         MessengerMetrics.connectionsOpen.inc();
+         this._store = new PostgresStore(this);
+         out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
+         out.println("Make sure you started postgres on this machine");
+         out.flush();
          System.exit(-1);
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates a new instance of Messenger on a store that needs no database
+    * connection, such as InMemoryStore
+    *
+    * @param store the store users, chats and messages are kept in
+    */
+   public Messenger (MessengerStore store) {
+      this._store = store;
+      this._cache = null;
+   }//end Messenger
+
+   /**
+    * Creates a second session on its own connection to the database of
+    * another, for background work. Its store caches and publishes through
+    * the other session.
+    *
+    * @param other the session whose database and cache are used
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   Messenger (Messenger other) throws SQLException {
+      this._url = other._url;
+      this._user = other._user;
+      this._passwd = other._passwd;
+      this._connection = other.openConnection();
+      this._cache = null;
+      this._store = new PostgresStore(this, other);
+   }//end Messenger
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql) throws SQLException {
+      long start = beginStatement();
+      try{
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the update instruction
+         int rows = stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+         if(this._router != null)
+            this._router.wrote();
+         return rows;
+      }catch(SQLException e){
+         MessengerMetrics.queryErrors.inc();
+         throw e;
+      }finally{
+         endStatement(start, MessengerMetrics.updateLatency);
+      }
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Marks a statement as holding the connection and starts its timer
+    *
+    * @return the start time in nanoseconds
+    */
+   private static long beginStatement(){
+      MessengerMetrics.statementsInFlight.inc();
+      return System.nanoTime();
+   }//end beginStatement
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * Releases the in-flight slot of a statement and records its latency
+    *
+    * @param start the value returned by beginStatement()
+    * @param latency the histogram the statement is accounted to
+    */
+   private static void endStatement(long start, MessengerMetrics.Histogram latency){
+      latency.observe(System.nanoTime() - start);
+      MessengerMetrics.statementsInFlight.dec();
+   }//end endStatement
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -99,6 +209,8 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = beginStatement();
+      try{
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
@@ -118,24 +230,92 @@ public class Messenger {
       while (rs.next()){
 	 if(outputHeader){
 	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
+		out.print(rsmd.getColumnName(i) + "\t");
 	    }
-	    System.out.println();
+	    out.println();
 	    outputHeader = false;
 	 }
          for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
+            out.print (rs.getString (i) + "\t");
+         out.println ();
          ++rowCount;
       }//end while
       stmt.close ();
       return rowCount;
+      }catch(SQLException e){
+         MessengerMetrics.queryErrors.inc();
+         throw e;
+      }finally{
+         endStatement(start, MessengerMetrics.queryLatency);
+      }
    }//end executeQuery
 
 
-public List<List<String>> executeQueryResult (String query) throws SQLException {
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return its rows. With replicas configured the query may run on one of
+    * them, see ReadRouter.
+    *
+    * @param query the input query string
+    * @return the rows, every column as a string
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryResult (String query) throws SQLException {
+      Connection conn = readConnection();
+      try{
+         return executeQueryResult(query, conn);
+      }catch(SQLException e){
+         if(conn == this._connection)
+            throw e;
+         // the primary tells whether the query or the replica was at fault
+         List<List<String>> result = executeQueryResult(query, this._connection);
+         this._router.failed(conn);
+         return result;
+      }
+   }//end executeQueryResult
+
+   /**
+    * Method to execute a query on the primary even when replicas are
+    * configured, for reads that must see every committed write
+    *
+    * @param query the input query string
+    * @return the rows, every column as a string
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryResultOnPrimary (String query) throws SQLException {
+      return executeQueryResult(query, this._connection);
+   }
+
+   /**
+    * Method to execute a writing statement that returns rows, e.g. an
+    * INSERT ... RETURNING, on the primary. Like executeUpdate it makes the
+    * session's next reads wait for a replica that has replayed the write.
+    *
+    * @param query the input statement string
+    * @return the rows, every column as a string
+    * @throws java.sql.SQLException when failed to execute the statement
+    */
+   public List<List<String>> executeUpdateReturning (String query) throws SQLException {
+      List<List<String>> result = executeQueryResult(query, this._connection);
+      if(this._router != null)
+         this._router.wrote();
+      return result;
+   }//end executeUpdateReturning
+
+   /**
+    * @return the connection the next read runs on
+    */
+   private Connection readConnection() throws SQLException {
+      if(this._router == null)
+         return this._connection;
+      return this._router.route(this._connection);
+   }//end readConnection
+
+   private List<List<String>> executeQueryResult (String query, Connection conn) throws SQLException {
+      long start = beginStatement();
+      try{
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -158,6 +338,12 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
       }//end while
       stmt.close ();
       return result;
+      }catch(SQLException e){
+         MessengerMetrics.queryErrors.inc();
+         throw e;
+      }finally{
+         endStatement(start, MessengerMetrics.queryLatency);
+      }
    }//end executeQuery
 
    /**
@@ -169,8 +355,23 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       Connection conn = readConnection();
+       try{
+          return executeQuery(query, conn);
+       }catch(SQLException e){
+          if(conn == this._connection)
+             throw e;
+          int rows = executeQuery(query, this._connection);
+          this._router.failed(conn);
+          return rows;
+       }
+   }//end executeQuery
+
+   private int executeQuery (String query, Connection conn) throws SQLException {
+       long start = beginStatement();
+       try{
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Statement stmt = conn.createStatement ();
 
        // issues the query instruction
        ResultSet rs = stmt.executeQuery (query);
@@ -183,33 +384,236 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
        }//end while
        stmt.close ();
        return rowCount;
+       }catch(SQLException e){
+          MessengerMetrics.queryErrors.inc();
+          throw e;
+       }finally{
+          endStatement(start, MessengerMetrics.queryLatency);
+       }
+   }
+
+   /**
+    * @return the store the menus read and write through
+    */
+   public MessengerStore getStore(){
+      return this._store;
+   }
+
+   /**
+    * Replaces the store, e.g. by a ShardedStore over this connection
+    */
+   public void setStore(MessengerStore store){
+      this._store = store;
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
+    * Sends the reads of this session through the router
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param router the router, or null to read from the primary only
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   public void setReadRouter(ReadRouter router){
+      this._router = router;
+   }
+
+   /**
+    * @return the index of every login, loaded from the store on first use
+    */
+   public synchronized LoginIndex getLoginIndex() throws SQLException {
+      if(this._logins == null)
+         this._logins = new LoginIndex(this._store.logins());
+      return this._logins;
    }
 
+   /**
+    * Keeps the login index, once loaded, current with a user created
+    * (added true) or deleted by this session
+    */
+   public synchronized void updateLoginIndex(String login, boolean added){
+      if(this._logins == null)
+         return;
+      if(added)
+         this._logins.add(login);
+      else
+         this._logins.remove(login);
+   }
+
+   /**
+    * @return the recent message cache, or null when caching is disabled
+    */
+   public MessageCache getMessageCache(){
+      return this._cache;
+   }
+
+   /**
+    * @return the bus change notifications of this session are published on
+    */
+   public MessengerEvents getEvents(){
+      return this._events;
+   }
+
+   /**
+    * @return the change notification listener, or null when it is not running
+    */
+   public ChangeListener getChangeListener(){
+      return this._listener;
+   }
+
+   /**
+    * Opens a dedicated connection and starts listening for change
+    * notifications. Cached chats being listened to are then kept current by
+    * the notifications instead of expiring after their time to live.
+    *
+    * @param pollMillis how often the listener connection is checked
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public void startChangeListener(long pollMillis) throws SQLException {
+      List<List<String>> pid = executeQueryResult("SELECT pg_backend_pid()", this._connection);
+      Connection conn = openConnection();
+      this._listener = new ChangeListener(conn, this._events, pollMillis, Integer.parseInt(pid.get(0).get(0)), this._cache);
+      if(this._cache != null){
+         final MessageCache cache = this._cache;
+         this._events.subscribe(new MessengerEvents.Listener(){
+            public void onEvent(MessengerEvents.Event e){
+               if(e.chatEvent)
+                  cache.invalidate(e.key);
+            }
+         });
+      }
+      this._listener.start();
+   }//end startChangeListener
+
+   /**
+    * Opens another connection to the session's database, for work that
+    * must not hold up the session connection. The caller closes it and
+    * decrements MessengerMetrics.connectionsOpen.
+    *
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openConnection() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      MessengerMetrics.connectionsOpen.inc();
+      return conn;
+   }//end openConnection
+
+   /**
+    * Continues the chat histories into the archive and starts moving old
+    * messages there, see MessageArchiver
+    *
+    * @param archive the archive configured for this session
+    */
+   public void startArchiver(MessageArchive archive){
+      ((PostgresStore) this._store).setArchive(archive);
+      this._archiver = MessageArchiver.startFromProperties(this, archive);
+   }//end startArchiver
+
+   /**
+    * Hands the removal of deleted chats and accounts to a background
+    * DeletionWorker, unless it is switched off
+    */
+   public void startDeletionWorker(){
+      this._deleter = DeletionWorker.startFromProperties(this);
+      if(this._deleter != null)
+         ((PostgresStore) this._store).setDeferredDeletes(true);
+   }//end startDeletionWorker
+
+   /**
+    * Acknowledges sends once they are forced to the local journal and
+    * writes them to Postgres in batches behind the session, when
+    * -Dmessenger.journal.dir is set, on a connection of their own. Sends left
+    * there by an earlier run are written first.
+    */
+   public void startJournal(){
+      if(System.getProperty("messenger.journal.dir") == null)
+         return;
+      try{
+         this._journalSession = new Messenger(this);
+         this._journal = SendJournal.startFromProperties((PostgresStore) this._journalSession.getStore());
+         ((PostgresStore) this._store).setJournal(this._journal);
+      }catch(IOException e){
+         System.err.println("Journal not started: " + e.getMessage());
+      }catch(SQLException e){
+         System.err.println("Journal not started: " + e.getMessage());
+      }
+      if(this._journal == null && this._journalSession != null){
+         this._journalSession.cleanup();
+         this._journalSession = null;
+      }
+   }//end startJournal
+
+   /**
+    * Makes the session's next reads wait for a replica that has replayed
+    * what another connection just wrote on its behalf
+    */
+   void wrote(){
+      if(this._router != null)
+         this._router.wrote();
+   }
+
+   /**
+    * Method to publish change notifications, all channels are notified in
+    * one round trip
+    *
+    * @param channels the channels to notify
+    * @throws java.sql.SQLException when the notification failed
+    */
+   public void publish(List<String> channels) throws SQLException {
+      if(channels.size() == 0)
+         return;
+      StringBuilder sql = new StringBuilder();
+      for(int i = 0; i < channels.size(); i++)
+         sql.append("NOTIFY ").append(MessengerEvents.quote(channels.get(i))).append(";");
+      executeUpdate(sql.toString());
+   }//end publish
+
+   /**
+    * Method to publish a change notification on a single channel
+    */
+   public void publish(String channel) throws SQLException {
+      List<String> channels = new ArrayList<String>();
+      channels.add(channel);
+      publish(channels);
+   }//end publish
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._journal != null){
+         this._journal.close();
+         this._journal = null;
+      }//end if
+      if (this._journalSession != null){
+         this._journalSession.cleanup();
+         this._journalSession = null;
+      }//end if
+      if (this._store instanceof SegmentStore){
+         ((SegmentStore) this._store).close();
+      }//end if
+      if (this._store instanceof ShardedStore){
+         ((ShardedStore) this._store).close();
+      }//end if
+      if (this._archiver != null){
+         this._archiver.stop();
+         this._archiver = null;
+      }//end if
+      if (this._deleter != null){
+         this._deleter.stop();
+         this._deleter = null;
+      }//end if
+      if (this._router != null){
+         this._router.close();
+         this._router = null;
+      }//end if
+      if (this._listener != null){
+         this._listener.stop();
+         this._listener = null;
+         MessengerMetrics.connectionsOpen.dec();
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
+            this._connection = null;
+            MessengerMetrics.connectionsOpen.dec();
          }//end if
       }catch (SQLException e){
          // ignored.
@@ -226,44 +630,70 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      String storeKind = System.getProperty("messenger.store", "postgres");
+      boolean embedded = storeKind.equals("memory") || storeKind.equals("segment");
+      if (args.length != 3 && !embedded) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Messenger.class.getName () +
             " <dbname> <port> <user>");
+         out.flush();
          return;
       }//end if
       
       Greeting();
       Messenger esql = null;
+      MetricsServer metrics = MetricsServer.startFromProperties();
+      JsonApiServer api = null;
+      // connecting in the background, see FastStart
+      FutureTask<Messenger> connecting = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Messenger object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Messenger (dbname, dbport, user, "");
+         if(storeKind.equals("memory")) {
+            // nothing is persisted, the data lives as long as this process
+            esql = new Messenger (new InMemoryStore());
+         }else if(storeKind.equals("segment")) {
+            // embedded files, see SegmentStore
+            esql = new Messenger (SegmentStore.fromProperties());
+         }else if(Boolean.getBoolean("messenger.fast.start") && !Boolean.getBoolean("messenger.api.only")) {
+            connecting = FastStart.connect(args);
+         }else{
+            esql = connect(args);
+         }//end if
+         if(esql != null) {
+            api = JsonApiServer.startFromProperties(esql);
+            if(api != null && Boolean.getBoolean("messenger.api.only")) {
+               // no menus, the session serves the API until it is killed
+               out.flush();
+               api.join();
+            }//end if
+         }//end if
 
 
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
-            System.out.println();
+            out.println();
             String mainTitle = "MAIN MENU";
-            System.out.println(mainTitle);
+            out.println(mainTitle);
             printDashes(mainTitle.length());
-            System.out.println();
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            System.out.println();
+            out.println();
+            out.println("1. Create user");
+            out.println("2. Log in");
+            out.println("9. < EXIT");
+            out.println();
+            FastStart.menuShown();
             String authorisedUser = null;
 			aUser au = null;
 			int pUpdate = 0;
-            switch (readChoice()){
+            int choice = readChoice();
+            if(connecting != null) {
+               // connected while the menu was shown
+               esql = FastStart.await(connecting);
+               connecting = null;
+               api = JsonApiServer.startFromProperties(esql);
+            }//end if
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql);
 						if(authorisedUser != null) 
@@ -272,12 +702,13 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 						}
 						break;
                case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
+               default : out.println("Unrecognized choice!"); break;
             }//end main switch
 
             if (authorisedUser != null) {
             //user menu
                 boolean usermenu = true;
+				MessengerEvents.Listener alerts = watchUser(esql, authorisedUser);
 
                 String userTitle = au.login + "'s Menu";
 				String userS = "";
@@ -292,18 +723,19 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 						au = new aUser(esql, authorisedUser);
 						pUpdate = 0;
 					} 
-	                System.out.println(userTitle);
+	                out.println(userTitle);
 					if(sint == 1)
 					{
-						System.out.println(au.status);
+						out.println(au.status);
 					}
                     printDashes(userTitle.length());
-                    System.out.println();
-                    System.out.println("1. View Notifications");
-                    System.out.println("2. View Chats");
-                    System.out.println("3. New Message");
-                    System.out.println("4. Settings"); 
-                    System.out.println("9. Log out");
+                    out.println();
+                    out.println("1. View Notifications");
+                    out.println("2. View Chats");
+                    out.println("3. New Message");
+                    out.println("4. Settings"); 
+                    out.println("5. Search Messages");
+                    out.println("9. Log out");
                     
                     switch(readChoice())
                     {
@@ -314,9 +746,9 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                              */
                             //CHANGE :) delete tab, add \n
                             String subTitle1 = "\nNotifications List\n";
-                            System.out.print(subTitle1);
+                            out.print(subTitle1);
                             printDashes(subTitle1.length());
-                            System.out.println();
+                            out.println();
 							ReadNotifications(esql, au);
                             break;
                         case 2: //viewing chats
@@ -331,54 +763,58 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 							List<List<String>> chats;
                             while(viewing_chat_list)
                             {
-                                System.out.print(subTitle2);
+                                out.print(subTitle2);
                                 printDashes(subTitle2.length());
                                 //BEFORE OUTPUTTING OPTIONS, PRINT LIST OF CHATS IN CHRONOLOGICAL ORDER BASED ON UPDATE DATE
 								chats = printChats(esql, au);
-                                System.out.println("\n\t1. Select a Chat");
-                                System.out.println("\t2. New Chat");
-                                System.out.print("\t9. Go back to main menu\n\n\t");
+                                out.println("\n\t1. Select a Chat");
+                                out.println("\t2. New Chat");
+                                out.println("\t3. Import a Chat");
+                                out.print("\t9. Go back to main menu\n\n\t");
 
                                 switch(readChoice())
                                 {
                                     case 1: //choose a chat -- list messaging options
 										if(chats == null || chats.size() == 0)
 										{
-											System.out.println("\tYou have no chats\n");
+											out.println("\tYou have no chats\n");
 											break;	
 										}
                                         
-										System.out.print("\n\n\tWhat number is the chat you want?\n\t");
+										out.print("\n\n\tWhat number is the chat you want?\n\t");
 										int cnum = readChoice();
 										while(cnum <= 0 || cnum > chats.size())
 										{
-											System.out.println("\tSorry thats not an option");
+											out.println("\tSorry thats not an option");
 											cnum = readChoice();
 										}
 										cnum = cnum -1; 
                                         int cDepth = 0;
                                         boolean viewing_chat = true;
 										String subSubTitle1 = "\n\t\tChat Title";
-										System.out.print(subSubTitle1 + "\n\t\t");
+										out.print(subSubTitle1 + "\n\t\t");
                                         printDashes(subSubTitle1.length());
+										if(esql.getChangeListener() != null)
+											esql.getChangeListener().listen(MessengerEvents.chatChannel(chats.get(cnum).get(0)));
                                         while(viewing_chat)
                                         {
 											//set delete interval
-											String interval = "DELETE FROM MESSAGE WHERE msg_id NOT IN (select msg_id from NOTIFICATION where MESSAGE.msg_id = NOTIFICATION.msg_id) and destr_timestamp <= now() ";
-											esql.executeUpdate(interval);
+											MessengerMetrics.purgedMessages.inc(esql.getStore().purgeExpired());
+											MessengerMetrics.purgeRuns.inc();
 
 
                                             //TODO: BEFORE OUTPUTTING OPTIONS, PRINT MESSAGES IN CHRONOLOGICAL ORDER BASED ON CREATION DATE
 											List<List<String>> messages = cMessage(esql, au, cDepth, chats.get(cnum));
-                                            System.out.println("\n\t\t1. Load Earlier Messages");
-                                            System.out.println("\t\t2. Load Later Messages");
-                                            System.out.println("\t\t3. New Message"); //send notification
-                                            System.out.println("\t\t4. Delete Message"); //send notification
-                                            System.out.println("\t\t5. Edit Message"); //send notification
-                                            System.out.println("\t\t6. Add member to chat");
-                                            System.out.println("\t\t7. Delete member from chat");
-                                            System.out.println("\t\t8. Delete this chat");
-                                            System.out.println("\t\t9. Back to chat list");
+                                            out.println("\n\t\t1. Load Earlier Messages");
+                                            out.println("\t\t2. Load Later Messages");
+                                            out.println("\t\t3. New Message"); //send notification
+                                            out.println("\t\t4. Delete Message"); //send notification
+                                            out.println("\t\t5. Edit Message"); //send notification
+                                            out.println("\t\t6. Add member to chat");
+                                            out.println("\t\t7. Delete member from chat");
+                                            out.println("\t\t8. Delete this chat");
+                                            out.println("\t\t10. Export this chat");
+                                            out.println("\t\t9. Back to chat list");
                                             //TODO: EACH MESSAGE SHOULD LOOK LIKE THIS
                                             /*-------------------------------------------------------------------
                                              *  Author:                         Creation Date:
@@ -407,7 +843,7 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                                     //TODO: INITIALIZE A NEW MESSAGE WITH THE AUTHOR, CREATION DATE, AND ITS TEXT
                                                     //IF MEDIA ATTACHMENT OR URL IS ATTACHED TO MESSAGE, THEN DISPLAY THAT ATTACHEMENT/ URL TOO
                                                     //UPDATE AFFECTS ALL OTHER USERS' CHATS IN THEIR CHAT LIST
-                                                    System.out.println("\t\tCreated a new Message\n\n");
+                                                    out.println("\t\tCreated a new Message\n\n");
                                                     
                                                     ChatNewMessage(esql, au, chats.get(cnum).get(0));
 
@@ -416,11 +852,11 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                                     //TODO: AUTHORIZED USER CAN ONLY DELETE THEIR OWN MESSAGES
                                                     //      ERROR IF ATTEMPT TO DELETE OTHER USERS' MESSAGES OR NON-EXISTANT MESSAGE
                                                     //      UPDATE AFFECTS ALL OTHER USERS' CHATS IN THEIR CHAT LIST
-													System.out.print("\n\n\tWhat number is the message you want?\n\t");
+													out.print("\n\n\tWhat number is the message you want?\n\t");
 													int mnum = readChoice();
 													while(mnum <= 0 || mnum > messages.size())
 													{
-														System.out.println("\tSorry thats not an option");
+														out.println("\tSorry thats not an option");
 														mnum = readChoice();
 													}
 													mnum = mnum -1;
@@ -434,13 +870,13 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                                     //      *OPTIONAL ?*
                                                     //      THIS MESSAGE WILL LOOK MORE SPECIAL. IT WILL PRINT THE ORIGINAL MESSAGE
                                                     //      AND INDENT THE NEWLY EDITED MESSAGE TO SEE THE NEW CHANGE. 
-                                                   // System.out.print("\t\tEdited your own message\n\n");
+                                                   // out.print("\t\tEdited your own message\n\n");
 
-													System.out.print("\n\n\tWhat number is the message you want?\n\t");
+													out.print("\n\n\tWhat number is the message you want?\n\t");
 													mnum = readChoice();
 													while(mnum <= 0 || mnum > messages.size())
 													{
-														System.out.println("\tSorry thats not an option");
+														out.println("\tSorry thats not an option");
 														mnum = readChoice();
 													}
 													mnum = mnum -1;
@@ -461,9 +897,9 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                                     break;
                                                 case 8: //delete a chat
                                                     String subsubTitle3 = "\t\tDelete a chat";
-                                                    System.out.print(subsubTitle3 + "\n\t\t");
+                                                    out.print(subsubTitle3 + "\n\t\t");
                                                     printDashes(subsubTitle3.length());
-                                                    System.out.println();
+                                                    out.println();
                                                     //: PRINT LIST OF CHATS AND CHOOSE WHICH CHAT TO DELETE
                                                     //      LIST OF CHATS WILL BE DISPLAYED WITH USER OPTIONS (USE A SWITCH STATEMENT)
 													cDelete(esql, au,chats.get(cnum)); 
@@ -471,27 +907,40 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                                 case 9: //Go back to main menu
                                                     viewing_chat = false;
                                                     break;
+                                                case 10: //export to a file
+													ExportChat(esql, au, chats.get(cnum));
+                                                    break;
                                                 default:
-                                                    System.out.println("Unrecognized Choice!");
+                                                    out.println("Unrecognized Choice!");
                                                     break;
                                             }//end viewing_chat switch
                                         }//end viewing_chat while
+										if(esql.getChangeListener() != null)
+										{
+											// nobody keeps this chat current once we stop listening
+											esql.getChangeListener().unlisten(MessengerEvents.chatChannel(chats.get(cnum).get(0)));
+											if(esql.getMessageCache() != null)
+												esql.getMessageCache().invalidate(chats.get(cnum).get(0));
+										}
                                         break;
                                     case 2: //create a new chat
                                         String subsubTitle2 = "\t\tCreate a new chat";
-                                        System.out.print(subsubTitle2 + "\n\t\t");
+                                        out.print(subsubTitle2 + "\n\t\t");
                                         printDashes(subsubTitle2.length());
-                                        System.out.println("\n");
+                                        out.println("\n");
 										cChat(esql,au);
                                         //TODO: INITIALIZE A NEW CHAT WITH AUTHORIZED USER AS THE INITIAL SENDER
                                         //      ASK THE AUTHORIZED USER TO INPUT MEMBERS OF THIS USER LIST
                                         //      *ERROR* IF USER INPUTS NON-EXISTANT USERS, BLOCKED USER OR AUTHORIZED USER IS BLOCKED BY OTHER USERS
                                         break;
+                                    case 3: //import a chat from a file
+										ImportChat(esql, au);
+                                        break;
                                     case 9: //Go back to main menu
                                         viewing_chat_list = false;
                                         break;
                                     default:
-                                        System.out.println("Unrecognised choice!");
+                                        out.println("Unrecognised choice!");
                                         break;
                         
                                 } //end viewing_chat_list switch
@@ -504,26 +953,26 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                        ERROR IF INPUT CONTAINS NON-EXISTANT USERS, BLOCKED USERS, OR AUTHORIZED USER IS BLOCKED
                             */
                             String subTitle3 = "\tNew Message";
-                            System.out.println(subTitle3);
-                            System.out.print("\t");
+                            out.println(subTitle3);
+                            out.print("\t");
                             printDashes(subTitle3.length());
-                            System.out.println("\n");
+                            out.println("\n");
 							NewMessage(esql, au);
 
                             break;
                         case 4: //settings
                             String subTitle4 = "\tSettings";
-                            System.out.println(subTitle4 + "\n\t");
-							System.out.print("\t");
+                            out.println(subTitle4 + "\n\t");
+							out.print("\t");
                             printDashes(subTitle4.length());
                             
                             boolean settings = true;
                             while(settings)
                             {
-								System.out.println("\n\t1. Edit Status");
-								System.out.println("\t2. manage contacts");
-								System.out.println("\t3. delete account");
-								System.out.println("\t9. back to main menu");
+								out.println("\n\t1. Edit Status");
+								out.println("\t2. manage contacts");
+								out.println("\t3. delete account");
+								out.println("\t9. back to main menu");
 		
                                 switch(readChoice())
                                 {
@@ -537,17 +986,18 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 											String subTitlex = "\t\tManaging Contacts";
 											while(manageContacts)
 											{
-												System.out.println(subTitlex);
-												System.out.print("\t\t");
+												out.println(subTitlex);
+												out.print("\t\t");
 												printDashes(subTitlex.length());
-												System.out.println();
-												System.out.println("\t\t1. Add to contact list");
-												System.out.println("\t\t2. Browse contact list");
-												System.out.println("\t\t3. Delete from contact list");
-												System.out.println("\t\t4. Add to block list");
-												System.out.println("\t\t5. Delete from block list");
-												System.out.println("\t\t6. Browse block list");
-												System.out.println("\t\t9. Return to Main Menu");
+												out.println();
+												out.println("\t\t1. Add to contact list");
+												out.println("\t\t2. Browse contact list");
+												out.println("\t\t3. Delete from contact list");
+												out.println("\t\t4. Add to block list");
+												out.println("\t\t5. Delete from block list");
+												out.println("\t\t6. Browse block list");
+												out.println("\t\t7. Sync contacts from an address book");
+												out.println("\t\t9. Return to Main Menu");
 												//determine user's actions                
 												switch(readChoice())
 												{
@@ -569,11 +1019,14 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 													case 6:
 														ListBlocks(esql, au);
 														break;
+													case 7:
+														SyncContacts(esql, au);
+														break;
 													case 9:
 														manageContacts = false;
 														break;
 													default:
-														System.out.println("Unrecognized choice!");
+														out.println("Unrecognized choice!");
 														break;
 													} //end manageContacts switch
 												} //end manageContacts while
@@ -590,19 +1043,28 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                                         settings = false;
                                         break;
                                     default:
-                                        System.out.println("\t\tUnrecognized choice!");
+                                        out.println("\t\tUnrecognized choice!");
                                 }//end settings switch
                             } //end settings while
                             break;
+                        case 5: //search messages
+                            String subTitle5 = "\tSearch Messages";
+                            out.println(subTitle5);
+                            out.print("\t");
+                            printDashes(subTitle5.length());
+                            out.println("\n");
+							SearchMessages(esql, au);
+                            break;
                         case 9:
                             usermenu = false;
                             break;
                         default: //invalid options
-                            System.out.println("Unrecognized choice!");
+                            out.println("Unrecognized choice!");
                             break;
 
                     }//end usermenu switch
                 }//end usermenu while
+				unwatchUser(esql, authorisedUser, alerts);
             }//end if authorised user != NULL
          }//end main while
       }catch(Exception e) {
@@ -610,11 +1072,19 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            if(metrics != null) {
+               metrics.stop();
+            }//end if
+            if(api != null) {
+               api.stop();
+            }//end if
             if(esql != null) {
-               System.out.print("Disconnecting from database...");
+               out.print("Disconnecting from database...");
                esql.cleanup ();
-               System.out.println("Done\n\nBye !");
+               out.println("Done\n\nBye !");
+               out.flush();
             }//end if
+            FastStart.report();
          }catch (Exception e) {
             // ignored.
          }//end try
@@ -623,19 +1093,50 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 
            
 
+   /**
+    * Connects to the Postgres database named on the command line and starts
+    * the services configured for it
+    *
+    * @param args dbname, port and user
+    * @return the connected session
+    */
+   static Messenger connect(String[] args) throws Exception {
+      // use postgres JDBC driver.
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      // instantiate the Messenger object and creates a physical
+      // connection.
+      String dbname = args[0];
+      String dbport = args[1];
+      String user = args[2];
+      Messenger esql = new Messenger (dbname, dbport, user, "");
+      esql.setReadRouter(ReadRouter.fromProperties(user, ""));
+      // with shards configured this database is the directory
+      ShardedStore sharded = ShardedStore.fromProperties(esql, user, "");
+      if(sharded != null)
+         esql.setStore(sharded);
+      MessageArchive archive = MessageArchive.fromProperties();
+      if(archive != null && sharded == null)
+         esql.startArchiver(archive);
+      if(sharded == null)
+         esql.startDeletionWorker();
+      if(sharded == null)
+         esql.startJournal();
+      if(Boolean.getBoolean("messenger.listen")) {
+         esql.startChangeListener(Long.getLong("messenger.listen.poll.ms", 500));
+      }//end if
+      return esql;
+   }//end connect
+
 /*============================================================*/
 /*              START OF FUNCTION DEFINITIONS                 *
  *============================================================*/ 
    public static void printDashes(int size)
    {
-        for(int i = 0; i < size; ++i)
-        {
-            System.out.print("-");
-        }
+        out.dashes(size);
    }//end printDashes
 
    public static void Greeting(){
-      System.out.println(
+      out.println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -645,44 +1146,129 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
     * Reads the users choice given from the keyboard
     * @int
     **/
+   /* functionCall: readLine()
+    * Renders the screen composed so far, then reads a line from the keyboard
+    * @String
+    **/
+   public static String readLine() throws IOException {
+      out.flush();
+      return in.readLine();
+   }//end readLine
+
    public static int readChoice() {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         out.print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(readLine());
             break;
          }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+            out.println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
       return input;
    }//end readChoice
 
+   // completions shown for a login ending in * or ?
+   static final int AUTOCOMPLETE_K = 10;
+
+   /* functionCall: readLogin(Messenger esql, aUser au)
+    * Reads a login from the keyboard. A login ending in * or ? lists up to AUTOCOMPLETE_K
+    * logins starting with the rest, contacts first; the user picks one by number or types again.
+    * @return the login typed or picked
+    **/
+   public static String readLogin(Messenger esql, aUser au) throws IOException {
+      String r = readLine();
+      while(r != null && (r.endsWith("*") || r.endsWith("?")))
+      {
+         String prefix = r.substring(0, r.length() - 1);
+         List<String> matches;
+         try{
+            matches = esql.getLoginIndex().complete(prefix, AUTOCOMPLETE_K, contactIndex(esql, au));
+         }catch(SQLException e){
+            System.err.println(e.getMessage());
+            return prefix;
+         }
+         if(matches.size() == 0)
+            out.println("\tNo login starts with " + prefix);
+         for(int i = 0; i < matches.size(); i++)
+            out.println("\t" + (i + 1) + ". " + matches.get(i));
+         out.print("\tPick a number or enter a login: ");
+         r = readLine();
+         try{
+            int pick = Integer.parseInt(r.trim());
+            if(pick >= 1 && pick <= matches.size())
+               return matches.get(pick - 1);
+         }catch(NumberFormatException e){
+            // typed a login
+         }
+      }
+      return r;
+   }//end readLogin
+
+   // the contacts of the user as a LoginIndex, rebuilt after the contact list changed
+   private static LoginIndex contactIndex(Messenger esql, aUser au) throws SQLException {
+      if(au.contacts == null)
+      {
+         List<String> logins = new ArrayList<String>();
+         List<List<String>> page;
+         do{
+            page = esql.getStore().listMembers(au.contact_list, "", logins.size() == 0 ? null : logins.get(logins.size() - 1), 1000);
+            for(List<String> row : page)
+               logins.add(row.get(0));
+         }while(page.size() == 1000);
+         au.contacts = new LoginIndex(logins);
+      }
+      return au.contacts;
+   }//end contactIndex
+
+   /* functionCall: watchUser(Messenger esql, String login)
+    * Starts pushing "new message" alerts for the logged in user
+    * @return the alert listener, to be passed to unwatchUser
+    **/
+   public static MessengerEvents.Listener watchUser(Messenger esql, final String login){
+      if(esql.getChangeListener() == null)
+         return null;
+      MessengerEvents.Listener alerts = new MessengerEvents.Listener(){
+         public void onEvent(MessengerEvents.Event e){
+            if(!e.chatEvent && e.key.equals(login))
+               out.println("\n*** You have a new message, see View Notifications ***").flush();
+         }
+      };
+      esql.getEvents().subscribe(alerts);
+      esql.getChangeListener().listen(MessengerEvents.userChannel(login));
+      return alerts;
+   }//end watchUser
+
+   /* functionCall: unwatchUser(Messenger esql, String login, MessengerEvents.Listener alerts)
+    * Stops the alerts started by watchUser when the user logs out
+    **/
+   public static void unwatchUser(Messenger esql, String login, MessengerEvents.Listener alerts){
+      if(alerts == null)
+         return;
+      esql.getChangeListener().unlisten(MessengerEvents.userChannel(login));
+      esql.getEvents().unsubscribe(alerts);
+   }//end unwatchUser
+
    /* functionCall: CreateUser(Messenger esql)
     * Creates a new user with privided login, passowrd and phoneNum
     * An empty block and contact list would be generated and associated with a user
     **/
    public static void CreateUser(Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
-
-         //Creating empty contact\block lists for a user
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-         int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-             esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-         int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-             
-         String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-             esql.executeUpdate(query);
-             System.out.println ("User successfully created!");
+         out.print("\tEnter user login: ");
+         String login = readLine();
+         out.print("\tEnter user password: ");
+         String password = readLine();
+         out.print("\tEnter user phone: ");
+         String phone = readLine();
+
+         //Creating the user with empty contact\block lists
+         esql.getStore().createUser(login, password, phone);
+         esql.updateLoginIndex(login, true);
+             out.println ("User successfully created!");
 
       } catch(Exception e){
          System.err.println (e.getMessage ());
@@ -695,18 +1281,16 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
     **/
    public static String LogIn(Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
+         out.print("\tEnter user login: ");
+         String login = readLine();
+         out.print("\tEnter user password: ");
+         String password = readLine();
          
      //check if login information is in the database
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
+         if (esql.getStore().checkPassword(login, password))
 	        return login;
          else
-            System.out.println("Error: " + login + " does not exist or incorrect login/password!");
+            out.println("Error: " + login + " does not exist or incorrect login/password!");
             return null;
          } catch(Exception e){
              System.err.println (e.getMessage ());
@@ -722,46 +1306,39 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 
         try{
           // get new contact login
-             System.out.print("\tEnter user login to add: ");
-             String logintoadd = in.readLine();
+             out.print("\tEnter user login to add (end with * to complete): ");
+             String logintoadd = readLogin(esql, au);
 
           // check if new contact is not yourself
             if(logintoadd.equals(au.login))
             {
-                System.out.println("\tYou cannot add yourself as a contact\n");
+                out.println("\tYou cannot add yourself as a contact\n");
                 return;
             }
         //check if new contact exists in contact list
-            String query1 = String.format("Select USR.login  From USR Where login = '%s'" , logintoadd);
-            int numR = esql.executeQuery(query1);
-            if( numR == 0)
+            if( !esql.getStore().userExists(logintoadd))
             {
-                System.out.println("\tUser does not exist\n");
+                out.println("\tUser does not exist\n");
                 return;
             }
         /*check if there is a relation (if new contact is already in contact list) */
-            String query = String.format("Select * from USER_LIST_CONTAINS where  list_member = '%s' AND list_id = '%s'" ,logintoadd,  au.contact_list);
-            int contact_int = esql.executeQuery(query);
-            //  check for empty list
-            if( contact_int != 0)
+            if( esql.getStore().listContains(au.contact_list, logintoadd))
             {
-                System.out.println("\tyou are already pals\n");
+                out.println("\tyou are already pals\n");
                 return;
             }
             else  /* Check if the new contact is in the block list. If so, confirm deletion. */
             {
-                String query3 = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ",logintoadd, au.block_list );
-                int numR2 = esql.executeQuery(query3);
-                if( numR2 == 1)
+                if( esql.getStore().listContains(au.block_list, logintoadd))
                 {
-                    System.out.println("\t" + logintoadd + " is on your block list");
-                    System.out.println("\tThey will be deleted from block list if you do add");
-                    System.out.println("\tare you sure? (y/n)");
-                    String ans = in.readLine();
+                    out.println("\t" + logintoadd + " is on your block list");
+                    out.println("\tThey will be deleted from block list if you do add");
+                    out.println("\tare you sure? (y/n)");
+                    String ans = readLine();
                     while(!ans.equals("n") && !ans.equals("y"))
                     {
-                        System.out.println("\tError: invalid answer. (y/n) ? ");
-                        ans = in.readLine();
+                        out.println("\tError: invalid answer. (y/n) ? ");
+                        ans = readLine();
                     }
                     //if no, don't delete from block list and return.	
                     if( ans.equals("n"))
@@ -769,17 +1346,16 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
                         return;
                     }
                     else{   //delete from block list
-                        String update = String.format("Delete from USER_LIST_CONTAINS where list_member = '%s' and list_id = '%s'",logintoadd, au.block_list);
-                        esql.executeUpdate(update);
-                        System.out.println("\t" + logintoadd + " is now deleted from block list");
+                        esql.getStore().unblock(au.login, au.block_list, logintoadd);
+                        out.println("\t" + logintoadd + " is now deleted from block list");
                     }
                 }
 
                 //Add new contact to contact list
-                String query2 = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES( '%s', '%s')", au.contact_list, logintoadd);
-                esql.executeUpdate(query2);
+                esql.getStore().addToList(au.contact_list, logintoadd);
+                au.contacts = null;
                 
-                System.out.println("\tYou are now friends with " + logintoadd + "\n");
+                out.println("\tYou are now friends with " + logintoadd + "\n");
                 
             }
         } catch( Exception e){
@@ -788,80 +1364,138 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
         }
    }//end AddToContact
 
+   /* functionCall: SyncContacts(Messenger esql, aUser au)
+    * Adds every registered user found in an address book file to the contact list.
+    * The file has one phone number per line, optionally after a name and ';'.
+    * @return: void
+    **/
+   public static void SyncContacts(Messenger esql, aUser au){
+        try{
+            out.print("\tEnter address book file: ");
+            String path = readLine();
+            File file = new File(path);
+            if(!file.isFile())
+            {
+                out.println("\tNo such file\n");
+                return;
+            }
+            long start = System.nanoTime();
+            int numbers = 0;
+            Set<String> keys = new LinkedHashSet<String>();
+            BufferedReader book = new BufferedReader(new FileReader(file));
+            try{
+                String line;
+                while((line = book.readLine()) != null)
+                {
+                    String key = PhoneNumbers.normalize(line.substring(line.lastIndexOf(';') + 1));
+                    if(key == null)
+                        continue;
+                    numbers++;
+                    keys.add(key);
+                }
+            }finally{
+                book.close();
+            }
+            List<String> added = esql.getStore().syncContacts(au.login, au.contact_list, au.block_list, new ArrayList<String>(keys));
+            MessengerMetrics.contactsSynced.inc(added.size());
+            if(added.size() > 0)
+                au.contacts = null;
+            long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+            for(String login : added)
+                out.println("\t" + login);
+            out.println("\tAdded " + added.size() + " contacts from " + numbers + " numbers (" + keys.size() + " distinct) in "
+                + (micros / 1000) + " ms, " + (numbers * 1000000L / micros) + " numbers/s\n");
+        } catch( Exception e){
+            System.err.println (e.getMessage() );
+        }
+   }//end SyncContacts
+
    /* functionCall: ListContacts(Messenger esql, aUser au)
     * Allow the User to see their list of contacts
     * @return void
     **/
 
    public static void ListContacts(Messenger esql, aUser au ){
+        BrowseList(esql, au.contact_list, au.login + "'s Contact List", true);
+   }//end ListContacts
 
+   // members shown per page of ListContacts and ListBlocks
+   static final int LIST_PAGE = 20;
+
+   /* functionCall: BrowseList(Messenger esql, int list_id, String title, boolean showStatus)
+    * Pages through a contact or block list in login order, LIST_PAGE members at a time,
+    * optionally only the logins starting with a prefix
+    * @return void
+    **/
+   public static void BrowseList(Messenger esql, int list_id, String title, boolean showStatus){
         try{
-        //select all contacts that is in both USER and USER_LIST_CONTAINS
-            String query = String.format("select u.list_member , USR.status  from USER_LIST_CONTAINS u, USR where u.list_id = '%s' and USR.login = u.list_member  " , au.contact_list);
-            List< List<String>> contact_members = esql.executeQueryResult(query);
-            if( contact_members.size()  <= 0)
+            out.print("\tShow logins starting with (enter for all): ");
+            String prefix = readLine();
+            String after = null;
+            int shown = 0;
+            while(true)
             {
-                System.out.println("\ncontact list is empty\n");
-                return;
-            }
-        //print all user logins followed by their status message.
-        //numDashes based on length of the contact's title size.
-            String contact_title = au.login + "'s Contact List";
-            System.out.println(contact_title);
-            printDashes(contact_title.length());
-            System.out.println();
-            //these are for making sure that I do not keep recalling function calls.
-            int contact_size = contact_members.size();
-            int dashCalls = contact_size - 1;
-            int contact_title_size = contact_title.length();
-
-            for( int i = 0 ; i < contact_size; i++)
-            {
-                System.out.println(contact_members.get(i).get(0));
-                if(contact_members.get(i).get(1) != null)
+            //one row more than shown tells whether there is a next page
+                List< List<String>> members = esql.getStore().listMembers(list_id, prefix, after, LIST_PAGE + 1);
+                if( members.size() <= 0 && after == null)
                 {
-                    String status = "Status: " + contact_members.get(i).get(1);
-
-                    System.out.println(status);
+                    out.println("\nno " + (prefix.equals("") ? "" : "matching ") + "logins on the list\n");
+                    return;
+                }
+                boolean more = members.size() > LIST_PAGE;
+                if(more)
+                    members = members.subList(0, LIST_PAGE);
+                out.println(title);
+                printDashes(title.length());
+                out.println();
+                for( int i = 0 ; i < members.size(); i++)
+                {
+                    out.println(members.get(i).get(0));
+                    if(showStatus && members.get(i).get(1) != null)
+                    {
+                        out.println("Status: " + members.get(i).get(1));
+                    }
+                    printDashes(title.length());
+                    out.println();
                 }
-                if(i != dashCalls) //makes sure not to print the last dashed line
+                shown += members.size();
+                if(!more)
                 {
-                    printDashes(contact_title_size);
-                    System.out.println();
+                    out.println("\t" + shown + " shown, end of list\n");
+                    return;
                 }
+                after = members.get(members.size() - 1).get(0);
+                out.println("\t" + shown + " shown");
+                out.println("\t1. next page");
+                out.println("\t9. back");
+                if(readChoice() != 1)
+                    return;
             }
-            printDashes(contact_title_size);
-            System.out.println();
-
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
-   }//end ListContacts
+   }//end BrowseList
 
    public static void NewMessage(Messenger esql, aUser au){
         try{
-			System.out.println("Enter The names of whom you wish to message(enter empty when done)");
+			out.println("Enter The names of whom you wish to message(enter empty when done, end a name with * to complete it)");
 			ArrayList<String> reciv = new ArrayList<String>();
 			reciv.add(au.login);
 			int rtotal = 0;
-			String r = in.readLine();
+			String r = readLogin(esql, au);
 			while(!r.equals(""))
 			{
 				//check if usr exists
-				String ue = String.format("select * from usr where login = '%s'", r);
-				int uc = esql.executeQuery(ue);
-				if(uc == 0)
+				if(!esql.getStore().userExists(r))
 				{
-					System.out.println("User does not exist");
+					out.println("User does not exist");
 				}
 				else
 				{
 					// check if blocked
-					String cb = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ", r, au.block_list);
-					int cc = esql.executeQuery(cb);
-					if(cc == 1)
+					if(esql.getStore().listContains(au.block_list, r))
 					{
-						System.out.println("He is blocked");
+						out.println("He is blocked");
 					}
 					else
 					{
@@ -870,39 +1504,25 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 					}
 					
 				}
-				r = in.readLine();
+				r = readLogin(esql, au);
+			}
+			// one lookup for every recipient that blocked us
+			for(String blocker : esql.getStore().blockedBy(au.login, reciv.subList(1, reciv.size())))
+			{
+				out.println(blocker + " has blocked you");
+				reciv.remove(blocker);
+				rtotal = rtotal - 1;
 			}
 			if(rtotal == 0)
 			{
-				System.out.println("Nobody to message back to menu");
+				out.println("Nobody to message back to menu");
 				return;	
 			}
 
-			//query for an existing chat
-			String ec = String.format("select chat_id from (select * from CHAT_LIST where member = '%s') as c group by c.chat_id having count(*) = '%s' ",au.login, rtotal );
-			List<List<String>> possible = esql.executeQueryResult(ec);
-			// check if any of the possbile have all the pl of the message as recipients
-			String hit = "";
-			for(int i = 0; i < possible.size() && hit.equals(""); i++)
-			{
-				int count = 1;
-				for(int j = 0; j <reciv.size() && count == 1; j++)
-				{
-					//query to see they exist in chat_list
-					String ecl = String.format("select * from CHAT_LIST where member = '%s' and chat_id = '%s'" , reciv.get(j), possible.get(i).get(0));
-					int ecn = esql.executeQuery(ecl);
-					if(ecn == 0)
-					{
-						count = 0;
-					}
-				}
-				if(count == 1)
-				{
-					hit = possible.get(i).get(0);
-				}
-			}
+			//look for an existing chat with exactly these members
+			String hit = esql.getStore().findChat(reciv);
 			// if no hit is found / no existing chat
-			if(hit.equals(""))
+			if(hit == null)
 			{
 				String type = "private";
 				if(reciv.size() > 2)
@@ -910,91 +1530,82 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 					type = "group";
 				}
 				// didn't find chat make new chat
-				System.out.println("Making new chat ");
-				String eu = String.format("insert into CHAT(chat_type, init_sender) Values('%s', '%s')", type, au.login); 
-        		esql.executeUpdate(eu);
-         		int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-				System.out.println("chat made");
-
-	
-				// add all
-				for(int x = 0; x < reciv.size(); x++)
-				{
-					String adda = String.format("insert into CHAT_LIST(chat_id,member) values('%s', '%s')", chat_id, reciv.get(x));
-					esql.executeUpdate(adda);
-					System.out.println("new chat_list made");
-				}
+				out.println("Making new chat ");
+				// the chat is made together with all its members
+         		int chat_id = esql.getStore().createChat(type, au.login, reciv);
+         		MessengerMetrics.chatsCreated.inc();
+				out.println("chat made");
 				hit = String.valueOf(chat_id);
 			}
 			// here on hit is chat_id
 			
 				//get message
-			System.out.println("Type your message");
-			String msg = in.readLine();
+			out.println("Type your message");
+			String msg = readLine();
 			while(msg.equals(""))
 			{
-				System.out.println("must have a msg");
-				msg = in.readLine();
+				out.println("must have a msg");
+				msg = readLine();
 			}
 
 			//assume have msg now
 			//add media attchment
 			ArrayList<String> arr = new ArrayList<String>();
-			System.out.println("Do you want media attchments? (y/n)");
-			String ans3 = in.readLine();
+			out.println("Do you want media attchments? (y/n)");
+			String ans3 = readLine();
 			while(!ans3.equals("y") && !ans3.equals("n"))
 			{
-				System.out.println("This is (y/n) only");
-				ans3 = in.readLine();
+				out.println("This is (y/n) only");
+				ans3 = readLine();
 			}
 			while(ans3.equals("y"))
 			{
 				//add them
-				System.out.println("attatchment type? :");
-				String atype = in.readLine();
+				out.println("attatchment type? :");
+				String atype = readLine();
 				while(atype.equals(""))
 				{
-					System.out.println(" empty is not valid");
-					atype = in.readLine();
+					out.println(" empty is not valid");
+					atype = readLine();
 				}
-				System.out.println("URL? :");
-				String url = in.readLine();
+				out.println("URL? :");
+				String url = readLine();
 				while(url.equals(""))
 				{
-					System.out.println(" empty is not valid");
-					url = in.readLine();
+					out.println(" empty is not valid");
+					url = readLine();
 				}
 				//insert into arr
 				arr.add(atype);
 				arr.add(url);
 				
-				System.out.println("Do you want more media attchments? (y/n)");
-				ans3 = in.readLine();
+				out.println("Do you want more media attchments? (y/n)");
+				ans3 = readLine();
 				while(!ans3.equals("y") && !ans3.equals("n"))
 				{
-					System.out.println("This is (y/n) only");
-					ans3 = in.readLine();
+					out.println("This is (y/n) only");
+					ans3 = readLine();
 				}
 		
 			}
 
 			// get if they want destr_timestamp
-			System.out.println("Do you want destruction time? (y/n)");
-			String ans2 = in.readLine();
+			out.println("Do you want destruction time? (y/n)");
+			String ans2 = readLine();
 			while(!ans2.equals("y") && !ans2.equals("n"))
 			{
-				System.out.println("This is (y/n) only");
-				ans2 = in.readLine();
+				out.println("This is (y/n) only");
+				ans2 = readLine();
 			}
 			Timestamp tsd = null;
 
 			if(ans2.equals("y"))
 			{
-				System.out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
+				out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
 				long mil = readChoice();
 				if( mil < 100)
 				{
-					System.out.println("minimum is 100 milliseconds");
+					out.println("minimum is 100 milliseconds");
 					mil = readChoice();
 				}
 				tsd = new Timestamp(mil);
@@ -1004,7 +1615,7 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 			Timestamp ts = new Timestamp(date.getTime());
 
 			//make message
-			System.out.println("Making Message ");
+			out.println("Making Message ");
 			if(tsd == null)
 			{
 				// TODO Temp fix need to come back 
@@ -1012,34 +1623,16 @@ public List<List<String>> executeQueryResult (String query) throws SQLException
 			}
 				tsd = new Timestamp(ts.getTime() + tsd.getTime());
 
-			String mm = String.format("insert into MESSAGE( msg_text, msg_timestamp, destr_timestamp,sender_login,chat_id) Values( '%s', '%s', '%s', '%s', '%s')", msg, ts, tsd, au.login, hit); 
-       		esql.executeUpdate(mm);
-			int m_id = esql.getCurrSeqVal("message_msg_id_seq");
-
-
-			System.out.println("Message is made");
+			// message, attachments and a notification for everybody but the sender
+			reciv.remove(au.login);
+			esql.getStore().sendMessage(hit, au.login, msg, ts, tsd, arr, reciv);
+			MessengerMetrics.messagesSent.inc();
+			MessengerMetrics.notificationsFannedOut.inc(reciv.size());
 
-			//insert into media attachment table 
-			for(int y = 0; y < arr.size(); y = y+ 2)
-			{
-				String aUpdate = String.format("insert into MEDIA_ATTACHMENT(media_type, URL, msg_id) values('%s', '%s', '%s');",arr.get(y), arr.get(y+1), m_id);
-				esql.executeUpdate(aUpdate);
-			}
+			out.println("Message is made");
 			if(arr.size() >= 2)
 			{
-				System.out.println("Attachments are now added");
-			}
-
-			System.out.println("here");
-			//notify
-			// add all
-
-			reciv.remove(au.login);
-			for(int x = 0; x < reciv.size(); x++)
-			{
-				String adda = String.format("insert into NOTIFICATION(usr_login, msg_id) values('%s', '%s')",  reciv.get(x), m_id);
-				esql.executeUpdate(adda);
-				System.out.println("new chat_list made");
+				out.println("Attachments are now added");
 			}
 
 
@@ -1057,78 +1650,89 @@ public static void ChatNewMessage(Messenger esql, aUser au, String chat_id)
 {
     try{
         //Find chat_id in list of chats with all the members to create a message
-        String query_chat_members = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = '%s'", chat_id);
-        List<List<String>> members = esql.executeQueryResult(query_chat_members);
+        List<String> members = esql.getStore().chatMembers(chat_id);
+        members.remove(au.login);
+        //members who blocked the sender since the chat was made are not messaged, all checked at once
+        for(String blocker : esql.getStore().blockedBy(au.login, new ArrayList<String>(members)))
+        {
+            out.println(blocker + " has blocked you");
+            members.remove(blocker);
+        }
+        if(members.size() == 0)
+        {
+            out.println("Nobody to message back to menu");
+            return;
+        }
    
         // here on hit is chat_id
        
             //get message
-        System.out.println("Type your message");
-        String msg = in.readLine();
+        out.println("Type your message");
+        String msg = readLine();
         while(msg.equals(""))
         {
-            System.out.println("must have a msg");
-            msg = in.readLine();
+            out.println("must have a msg");
+            msg = readLine();
         }
 
         //assume have msg now
         //add media attchment
         ArrayList<String> arr = new ArrayList<String>();
-        System.out.println("Do you want media attchments? (y/n)");
-        String ans3 = in.readLine();
+        out.println("Do you want media attchments? (y/n)");
+        String ans3 = readLine();
         while(!ans3.equals("y") && !ans3.equals("n"))
         {
-            System.out.println("This is (y/n) only");
-            ans3 = in.readLine();
+            out.println("This is (y/n) only");
+            ans3 = readLine();
         }
         while(ans3.equals("y"))
         {
             //add them
-            System.out.println("attatchment type? :");
-            String atype = in.readLine();
+            out.println("attatchment type? :");
+            String atype = readLine();
             while(atype.equals(""))
             {
-                System.out.println(" empty is not valid");
-                atype = in.readLine();
+                out.println(" empty is not valid");
+                atype = readLine();
             }
-            System.out.println("URL? :");
-            String url = in.readLine();
+            out.println("URL? :");
+            String url = readLine();
             while(url.equals(""))
             {
-                System.out.println(" empty is not valid");
-                url = in.readLine();
+                out.println(" empty is not valid");
+                url = readLine();
             }
             //insert into arr
             arr.add(atype);
             arr.add(url);
            
-            System.out.println("Do you want more media attchments? (y/n)");
-            ans3 = in.readLine();
+            out.println("Do you want more media attchments? (y/n)");
+            ans3 = readLine();
             while(!ans3.equals("y") && !ans3.equals("n"))
             {
-                System.out.println("This is (y/n) only");
-                ans3 = in.readLine();
+                out.println("This is (y/n) only");
+                ans3 = readLine();
             }
    
         }
 
         // get if they want destr_timestamp
-        System.out.println("Do you want destruction time? (y/n)");
-        String ans2 = in.readLine();
+        out.println("Do you want destruction time? (y/n)");
+        String ans2 = readLine();
         while(!ans2.equals("y") && !ans2.equals("n"))
         {
-            System.out.println("This is (y/n) only");
-            ans2 = in.readLine();
+            out.println("This is (y/n) only");
+            ans2 = readLine();
         }
         Timestamp tsd = null;
 
         if(ans2.equals("y"))
         {
-            System.out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
+            out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
             long mil = readChoice();
             if( mil < 100)
             {
-                System.out.println("minimum is 100 milliseconds");
+                out.println("minimum is 100 milliseconds");
                 mil = readChoice();
             }
             tsd = new Timestamp(mil);
@@ -1138,7 +1742,7 @@ public static void ChatNewMessage(Messenger esql, aUser au, String chat_id)
         Timestamp ts = new Timestamp(date.getTime());
 
         //make message
-        System.out.println("Making Message ");
+        out.println("Making Message ");
         if(tsd == null)
         {
             // TODO Temp fix need to come back
@@ -1146,29 +1750,16 @@ public static void ChatNewMessage(Messenger esql, aUser au, String chat_id)
         }
             tsd = new Timestamp(ts.getTime() + tsd.getTime());
 
-        String mm = String.format("insert into Message( msg_text, msg_timestamp, destr_timestamp,sender_login,chat_id) Values( '%s', '%s', '%s', '%s', %s)", msg, ts, tsd, au.login, chat_id);
-           esql.executeUpdate(mm);
-        int m_id = esql.getCurrSeqVal("message_msg_id_seq");
-
-
-        System.out.println("Message is made");
+        //notify all but the sender
+        members.remove(au.login);
+        esql.getStore().sendMessage(chat_id, au.login, msg, ts, tsd, arr, members);
+        MessengerMetrics.messagesSent.inc();
+        MessengerMetrics.notificationsFannedOut.inc(members.size());
 
-        //insert into media attachment table
-        for(int y = 0; y < arr.size(); y = y+ 2)
-        {
-            String aUpdate = String.format("insert into MEDIA_ATTACHMENT(media_type, URL, msg_id) values('%s', '%s', '%s');",arr.get(y), arr.get(y+1), m_id);
-            esql.executeUpdate(aUpdate);
-        }
+        out.println("Message is made");
         if(arr.size() >= 2)
         {
-            System.out.println("Attachments are now added");
-        }
-       
-        //notify all
-        for(int x = 0; x < members.get(0).size(); x++)
-        {
-            String adda = String.format("INSERT INTO NOTIFICATION(usr_login, msg_id) values('%s', '%s')",  members.get(0).get(x), m_id);
-            esql.executeUpdate(adda);
+            out.println("Attachments are now added");
         }
             return;
        
@@ -1183,57 +1774,52 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 {
     try{
         String m_id = message.get(0);
-        System.out.println("MESSAGE ID: " + m_id);
+        out.println("MESSAGE ID: " + m_id);
         //query for the author of message and the au
-        String query = String.format("SELECT sender_login FROM MESSAGE WHERE msg_id = '%s' AND sender_login = '%s'", m_id, au.login);   
-        int rows = esql.executeQuery(query);
-        if(rows == 0)
+        if(!esql.getStore().isSender(message, au.login))
         {
-            System.out.println("Error: Message doesn't exist or does not belong to the authorized user!");
+            out.println("Error: Message doesn't exist or does not belong to the authorized user!");
             return;
         }
         else
         {
                 //edit the text field of a message
-                System.out.println("Text: " );
-                String input = in.readLine();
-                String update = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = '%s' AND sender_login = '%s'", input, m_id, au.login);
-                esql.executeUpdate(update);
+                out.println("Text: " );
+                String input = readLine();
+                esql.getStore().editMessageText(message, au.login, input);
                
                 //check if original message has any attachments
                 
-                String query1 = String.format("SELECT * FROM MEDIA_ATTACHMENT WHERE msg_id = '%s'", m_id);
-                List<List<String>> media_ids = esql.executeQueryResult(query1);
-                System.out.println("MEDIA_IDS: " + media_ids.size());
+                List<List<String>> media_ids = esql.getStore().attachments(message);
+                out.println("MEDIA_IDS: " + media_ids.size());
                 int rows1 = media_ids.size();
                 String ans;
                 if(rows1 == 0)
                 {
-                    System.out.print("Do you want to add attachments? (y/n): ");
-                    ans = in.readLine();
+                    out.print("Do you want to add attachments? (y/n): ");
+                    ans = readLine();
                     while(!ans.equals("y") && !ans.equals("n"))
                     {
-                        System.out.print("Error: Invalid response. (y/n): ");
-                        ans = in.readLine();
+                        out.print("Error: Invalid response. (y/n): ");
+                        ans = readLine();
                     }
                     if(ans.equals("y"))
                     {
                         boolean exit = false;
                         while(!exit)
                         {
-                            System.out.print("Enter the media type: ");
-                            String get_type = in.readLine();
-                            System.out.print("\nEnter the URL: ");
-                            String get_URL = in.readLine();
-                            String update1 = String.format("INSERT INTO MEDIA_ATTACHMENT(media_type, URL, msg_id) VALUES('%s', '%s', '%s');", get_type, get_URL, m_id);
-                            esql.executeUpdate(update1);
+                            out.print("Enter the media type: ");
+                            String get_type = readLine();
+                            out.print("\nEnter the URL: ");
+                            String get_URL = readLine();
+                            esql.getStore().addAttachment(message, get_type, get_URL);
                            
-                            System.out.print("Do you want to continue to add more attachments? (y/n): ");
-                            ans = in.readLine();
+                            out.print("Do you want to continue to add more attachments? (y/n): ");
+                            ans = readLine();
                             while(!ans.equals("y") && !ans.equals("n"))
                             {
-                                System.out.print("Error: Invalid response. (y/n): ");
-                                ans = in.readLine();
+                                out.print("Error: Invalid response. (y/n): ");
+                                ans = readLine();
                             }
                             if(ans.equals("n"))
                             {
@@ -1241,30 +1827,30 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
                             }
                         }
                     }
-                    System.out.println("\t\tYou have edited a messaged!\n");
+                    out.println("\t\tYou have edited a messaged!\n");
                 }
                 else
                 {
                     // If there are already attchments you must make them choose and use the media_id to update
-                    System.out.println("There are existing attachments to the message.");
-                    System.out.println("Do you want to modify them? (y/n)");
-                    ans = in.readLine();
+                    out.println("There are existing attachments to the message.");
+                    out.println("Do you want to modify them? (y/n)");
+                    ans = readLine();
                     while(!ans.equals("y") && !ans.equals("n"))
                     {
-                        System.out.print("Error: Invalid response. (y/n): ");
-                        ans = in.readLine();
+                        out.print("Error: Invalid response. (y/n): ");
+                        ans = readLine();
                     }
-                    System.out.println("Which media attachments do you want to modify?");
+                    out.println("Which media attachments do you want to modify?");
                     for(int i = 0; i < rows1; ++i)
                     {  
                         int temp = i + 1;
-                        System.out.print(temp + ") ");
-                        System.out.println("\t\t" + media_ids.get(i).get(0));
+                        out.print(temp + ") ");
+                        out.println("\t\t" + media_ids.get(i).get(0));
                     }
                    
                     ArrayList<String> media_to_modify = new ArrayList<String>();
                     ArrayList<List<String>> modify_media = new ArrayList<List<String>>();
-                    System.out.println("Choose all media_ids that you want to modify (press '0' when finished)");
+                    out.println("Choose all media_ids that you want to modify (press '0' when finished)");
                     boolean exit = false;
                     int choice = -1;
                     while(!exit)
@@ -1275,12 +1861,11 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
                             exit = true;
                         }
                         else{
-                            System.out.print("Enter a media type: ");
-                            String type = in.readLine();
-                            System.out.print("\nEnter a URL: ");
-                            String URL = in.readLine();
-                            String update2 = String.format("UPDATE MEDIA_ATTACHMENT SET media_type = '%s', URL = '%s', msg_id = '%s' WHERE media_id = '%s'", type, URL, media_ids.get(choice -1).get(3), media_ids.get(choice - 1).get(0));
-                            esql.executeUpdate(update2);
+                            out.print("Enter a media type: ");
+                            String type = readLine();
+                            out.print("\nEnter a URL: ");
+                            String URL = readLine();
+                            esql.getStore().updateAttachment(message, media_ids.get(choice - 1).get(0), type, URL);
                         }
                     }
                 }
@@ -1293,37 +1878,31 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
  public static int dProfile(Messenger esql, aUser au){
         try{
 			//check if there is linked info
-			String link = String.format("select * from CHAT where init_sender ='%s'", au.login);
-			int count = esql.executeQuery(link);
-			if(count != 0)
+			if(esql.getStore().isInitSenderOfAnyChat(au.login))
 			{
-				System.out.println("You are curretly initail sender of chats you cannot delete");
+				out.println("You are curretly initail sender of chats you cannot delete");
 				return 0;
 			}
-			String mlink = String.format("select * from Message where sender_login = '%s'", au.login);
-			count = esql.executeQuery(mlink);
-			if(count != 0)
+			if(esql.getStore().hasMessages(au.login))
 			{
-				System.out.println("You still have published content ie:messages cannot delete");
+				out.println("You still have published content ie:messages cannot delete");
 				return 0;
 			}
-			System.out.println("Enter password :");
-			String pass = in.readLine();
+			out.println("Enter password :");
+			String pass = readLine();
 			while(pass.equals(""))
 			{
-				System.out.println("need a password");
-				pass = in.readLine();
+				out.println("need a password");
+				pass = readLine();
 			}
-			String temp = au.password;
-			String p1 = temp.substring(0, temp.indexOf(' '));
-			if(!pass.equals(p1))
+			if(!pass.equals(au.password))
 			{
-				System.out.println("Wrong password cannot delete");
+				out.println("Wrong password cannot delete");
 				return 0;
 			}
-			System.out.println("Goodbye please try us again");
-			String update = String.format("delete from USR where login = '%s'", au.login);
-			esql.executeUpdate(update);
+			out.println("Goodbye please try us again");
+			esql.getStore().deleteUser(au.login);
+			esql.updateLoginIndex(au.login, false);
 			
 	    }catch (Exception e)
     	{
@@ -1337,18 +1916,17 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
         String msg = "";
 		try{
 			//acquire status
-			System.out.println("Type your status: ");
-			msg = in.readLine();
+			out.println("Type your status: ");
+			msg = readLine();
 			while(msg.equals(""))
 			{
-				System.out.println("must have a status");
-				msg = in.readLine();
+				out.println("must have a status");
+				msg = readLine();
 			}
 
 			// insert
-			String update = String.format("update USR set status = '%s' where login = '%s'", msg, au.login);
-			esql.executeUpdate(update);
-			System.out.println("status changed");
+			esql.getStore().setStatus(au.login, msg);
+			out.println("status changed");
 
 			
 	    }catch (Exception e)
@@ -1361,28 +1939,24 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 
  public static void cChat(Messenger esql, aUser au){
         try{
-			System.out.println("Enter The names of whom you wish to message(enter empty when done)");
+			out.println("Enter The names of whom you wish to message(enter empty when done, end a name with * to complete it)");
 			ArrayList<String> reciv = new ArrayList<String>();
 			reciv.add(au.login);
 			int rtotal = 0;
-			String r = in.readLine();
+			String r = readLogin(esql, au);
 			while(!r.equals(""))
 			{
 				//check if usr exists
-				String ue = String.format("select * from usr where login = '%s'", r);
-				int uc = esql.executeQuery(ue);
-				if(uc == 0)
+				if(!esql.getStore().userExists(r))
 				{
-					System.out.println("User does not exist");
+					out.println("User does not exist");
 				}
 				else
 				{
 					// check if blocked
-					String cb = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ", r, au.block_list);
-					int cc = esql.executeQuery(cb);
-					if(cc == 1)
+					if(esql.getStore().listContains(au.block_list, r))
 					{
-						System.out.println("He is blocked");
+						out.println("He is blocked");
 					}
 					else
 					{
@@ -1391,38 +1965,24 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 					}
 					
 				}
-				r = in.readLine();
+				r = readLogin(esql, au);
 			}
-			if(rtotal == 0)
+			// one lookup for every recipient that blocked us
+			for(String blocker : esql.getStore().blockedBy(au.login, reciv.subList(1, reciv.size())))
 			{
-				System.out.println("Nobody to message back to menu");
-				return;	
+				out.println(blocker + " has blocked you");
+				reciv.remove(blocker);
+				rtotal = rtotal - 1;
 			}
-			//query for an existing chat
-			String ec = String.format("select chat_id from (select * from CHAT_LIST where member = '%s') as c group by c.chat_id having count(*) = '%s' ",au.login, rtotal );
-			List<List<String>> possible = esql.executeQueryResult(ec);
-			// check if any of the possbile have all the pl of the message as recipients
-			String hit = "";
-			for(int i = 0; i < possible.size() && hit.equals(""); i++)
+			if(rtotal == 0)
 			{
-				int count = 1;
-				for(int j = 0; j <reciv.size() && count == 1; j++)
-				{
-					//query to see they exist in chat_list
-					String ecl = String.format("select * from CHAT_LIST where member = '%s' and chat_id = '%s'" , reciv.get(j), possible.get(i).get(0));
-					int ecn = esql.executeQuery(ecl);
-					if(ecn == 0)
-					{
-						count = 0;
-					}
-				}
-				if(count == 1)
-				{
-					hit = possible.get(i).get(0);
-				}
+				out.println("Nobody to message back to menu");
+				return;	
 			}
+			//look for an existing chat with exactly these members
+			String hit = esql.getStore().findChat(reciv);
 			// if no hit is found / no existing chat
-			if(hit.equals(""))
+			if(hit == null)
 			{
 				String type = "private";
 				if(reciv.size() > 2)
@@ -1430,93 +1990,85 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 					type = "group";
 				}
 				// didn't find chat make new chat
-				System.out.println("Making new chat ");
-				String eu = String.format("insert into CHAT(chat_type, init_sender) Values('%s', '%s')", type, au.login); 
-        		esql.executeUpdate(eu);
-         		int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-				System.out.println("chat made");
-
-	
-				// add all
-				for(int x = 0; x < reciv.size(); x++)
-				{
-					String adda = String.format("insert into CHAT_LIST(chat_id,member) values('%s', '%s')", chat_id, reciv.get(x));
-					esql.executeUpdate(adda);
-				}
+				out.println("Making new chat ");
+				// the chat is made together with all its members
+         		int chat_id = esql.getStore().createChat(type, au.login, reciv);
+         		MessengerMetrics.chatsCreated.inc();
+				out.println("chat made");
 				hit = String.format("%s",chat_id);
 			}
 			else{
-					System.out.println("Chat with these members already exist");
+					out.println("Chat with these members already exist");
 					return;
 			}
 			//get message
-			System.out.println("Type your message");
-			String msg = in.readLine();
+			out.println("Type your message");
+			String msg = readLine();
 			while(msg.equals(""))
 			{
-				System.out.println("must have a msg");
-				msg = in.readLine();
+				out.println("must have a msg");
+				msg = readLine();
 			}
 
 			//assume have msg now
 
 			//add media attchment
 			ArrayList<String> arr = new ArrayList<String>();
-			System.out.println("Do you want media attchments? (y/n)");
-			String ans3 = in.readLine();
+			out.println("Do you want media attchments? (y/n)");
+			String ans3 = readLine();
 			while(!ans3.equals("y") && !ans3.equals("n"))
 			{
-				System.out.println("This is (y/n) only");
-				ans3 = in.readLine();
+				out.println("This is (y/n) only");
+				ans3 = readLine();
 			}
 			while(ans3.equals("y"))
 			{
 				//add them
-				System.out.println("attatchment type? :");
-				String atype = in.readLine();
+				out.println("attatchment type? :");
+				String atype = readLine();
 				while(atype.equals(""))
 				{
-					System.out.println(" empty is not valid");
-					atype = in.readLine();
+					out.println(" empty is not valid");
+					atype = readLine();
 				}
-				System.out.println("URL? :");
-				String url = in.readLine();
+				out.println("URL? :");
+				String url = readLine();
 				while(url.equals(""))
 				{
-					System.out.println(" empty is not valid");
-					url = in.readLine();
+					out.println(" empty is not valid");
+					url = readLine();
 				}
 				//insert into arr
 				arr.add(atype);
 				arr.add(url);
 				
-				System.out.println("Do you want more media attchments? (y/n)");
-				ans3 = in.readLine();
+				out.println("Do you want more media attchments? (y/n)");
+				ans3 = readLine();
 				while(!ans3.equals("y") && !ans3.equals("n"))
 				{
-					System.out.println("This is (y/n) only");
-					ans3 = in.readLine();
+					out.println("This is (y/n) only");
+					ans3 = readLine();
 				}
 		
 			}
 
 			// get if they want destr_timestamp
-			System.out.println("Do you want destruction time? (y/n)");
-			String ans2 = in.readLine();
+			out.println("Do you want destruction time? (y/n)");
+			String ans2 = readLine();
 			while(!ans2.equals("y") && !ans2.equals("n"))
 			{
-				System.out.println("This is (y/n) only");
-				ans2 = in.readLine();
+				out.println("This is (y/n) only");
+				ans2 = readLine();
 			}
 			Timestamp tsd = null;
 
 			if(ans2.equals('y'))
 			{
-				System.out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
+				out.println("How many milliseconds? (1hr:3,600,000) (min:60,000) (seconds:1000) :");
 				long mil = readChoice();
 				if( mil < 100)
 				{
-					System.out.println("minimum is 100 milliseconds");
+					out.println("minimum is 100 milliseconds");
 					mil = readChoice();
 				}
 				tsd = new Timestamp(mil);
@@ -1526,39 +2078,24 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 			Timestamp ts = new Timestamp(date.getTime());
 
 			//make message
-			System.out.println("Making Message ");
+			out.println("Making Message ");
 			if(tsd == null)
 			{
 				// TODO Temp fix need to come back 
 				tsd = new Timestamp((long) 11111111); 
 			}
 				tsd = new Timestamp(ts.getTime() + tsd.getTime());
-			String mm = String.format("insert into Message( msg_text, msg_timestamp, destr_timestamp,sender_login,chat_id) Values( '%s', '%s', '%s', '%s', %s);", msg, ts, tsd, au.login, hit);
-			System.out.println(mm); 
-       		esql.executeUpdate(mm);
-			int m_id = esql.getCurrSeqVal("message_msg_id_seq");
-
-
-			System.out.println("Message is made");
+			// message, attachments and a notification for everybody but the sender
+			reciv.remove(au.login);
+			esql.getStore().sendMessage(hit, au.login, msg, ts, tsd, arr, reciv);
+			MessengerMetrics.messagesSent.inc();
+			MessengerMetrics.notificationsFannedOut.inc(reciv.size());
 
-			//insert into media attachment table 
-			for(int y = 0; y < arr.size(); y = y+ 2)
-			{
-				String aUpdate = String.format("insert into MEDIA_ATTACHMENT(media_type, URL, msg_id) values('%s', '%s', '%s');",arr.get(y), arr.get(y+1), m_id);
-				esql.executeUpdate(aUpdate);
-			}
+			out.println("Message is made");
 			if(arr.size() >= 2)
 			{
-				System.out.println("Attachments are now added");
+				out.println("Attachments are now added");
 			}
-			
-			//notify
-			// add all
-				for(int x = 0; x < reciv.size(); x++)
-				{
-					String adda = String.format("insert into NOTIFICATION(usr_login, msg_id) values('%s', '%s')", m_id, reciv.get(x));
-					esql.executeUpdate(adda);
-				}
 
 
 			return;
@@ -1580,20 +2117,16 @@ public static void EditMessage(Messenger esql, aUser au, List<String> message)
 public static void DeleteMessage(Messenger esql, aUser au, List<String> message)
     {
         try{
-            String m_id = message.get(0);
-            //query for the author of message and the authorised user
-            String query = String.format("SELECT sender_login FROM MESSAGE WHERE msg_id = '%s' and sender_login = '%s'", m_id, au.login);
-            int rows = esql.executeQuery(query);
-            if(rows == 0)
+            //check the message exists and belongs to the authorised user
+            if(!esql.getStore().isSender(message, au.login))
             {
-                System.out.println("Error: Message doesn't exist or does not belong to authorized user!");
+                out.println("Error: Message doesn't exist or does not belong to authorized user!");
                 return;
             }
             else
             {
-                String update = String.format("DELETE FROM MESSAGE WHERE msg_id = '%s' AND sender_login = '%s'",m_id, au.login);
-                esql.executeUpdate(update);
-                System.out.println("\t\tYou have deleted a message!\n");
+                esql.getStore().deleteMessage(message, au.login);
+                out.println("\t\tYou have deleted a message!\n");
                 //return;
             }
         } catch(Exception e) {
@@ -1607,11 +2140,11 @@ public static int NewMessageChat(Messenger esql, aUser au)
 {
     try{
 
-        System.out.println("Enter the names of whom you wish to message(enter empty when done)\n");
+        out.println("Enter the names of whom you wish to message(enter empty when done)\n");
         ArrayList<String> reciv = new ArrayList<String>();
         reciv.add(au.login);
         int rtotal = 0;
-        String r = in.readLine();
+        String r = readLine();
         while(!r.equals(""))
         {
             //check if usr exists
@@ -1619,7 +2152,7 @@ public static int NewMessageChat(Messenger esql, aUser au)
             int uc = esql.executeQuery(ue);
             if(uc == 0)
             {
-                System.out.println("user does not exist");
+                out.println("user does not exist");
             }
             else
             {
@@ -1628,7 +2161,7 @@ public static int NewMessageChat(Messenger esql, aUser au)
                 int cc = esql.executeQuery(cb);
                 if(cc == 1)
                 {
-                    System.out.println("He is blocked");
+                    out.println("He is blocked");
                 }
                 else
                 {
@@ -1648,18 +2181,16 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static int loadL(Messenger esql, aUser au, int depth, List<String> chat){
         try{
 			int offset = (depth+1) * 10;
-			String tenM = String.format("select * from MESSAGE where chat_id = '%s' order by msg_timestamp DESC Limit 10 offset '%s' ", chat.get(0), offset);
-			int snum = esql.executeQuery(tenM);
-			if( snum > 0)
+			if(esql.getStore().hasMessageAt(chat.get(0), offset))
 			{
-				System.out.println("Going to next 10");
+				out.println("Going to next 10");
 				return depth +1;
 			}
 	    }catch (Exception e)
     	{
 	    	System.err.println(e.getMessage());
     	}
-		System.out.println("There are no more messages");
+		out.println("There are no more messages");
 		return depth;
    }//end loadL
 
@@ -1668,11 +2199,11 @@ public static int NewMessageChat(Messenger esql, aUser au)
         try{
 			if( depth <= 0)
 			{
-				System.out.println("There is no earlier messages");
+				out.println("There is no earlier messages");
 				return depth;
 			}
             else{
-			    System.out.println("Going to previous 10");
+			    out.println("Going to previous 10");
     			return depth -1; //originall depth +1
             }
 			
@@ -1687,35 +2218,23 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static void deleteMC(Messenger esql, aUser au, List<String> chat){
         try{
 			//check if they are initial 
-			String check_i = String.format("select * from CHAT where chat_id = '%s' and init_sender = '%s'", chat.get(0), au.login);
-    		int cnum = esql.executeQuery(check_i);
-  			if(cnum ==0)
+  			if(!esql.getStore().isInitSender(chat.get(0), au.login))
     		{
-        		System.out.println("You are not the initial chat sender");
+        		out.println("You are not the initial chat sender");
         		return;
     		}
     		else{
-        		System.out.println("Please give login of user to be deleted from chat ");
-        		String loginToDelete = in.readLine();
+        		out.println("Please give login of user to be deleted from chat ");
+        		String loginToDelete = readLine();
         		// query if user exists
-				String exists = String.format("select * from CHAT_LIST where member = '%s' and chat_id = '%s' ", loginToDelete, chat.get(0));
-        		int lnum = esql.executeQuery(exists);
-        		if(lnum == 0)
+        		if(!esql.getStore().isMember(chat.get(0), loginToDelete))
         		{
-            		System.out.println("User does not exist in chat");
+            		out.println("User does not exist in chat");
             		return;
         		}
-				String already = String.format("select * from CHAT_LIST where chat_id = '%s' and member = '%s'", chat.get(0), loginToDelete);
-				int al = esql.executeQuery(already);
-				if( al == 0)
-				{
-					System.out.println("They are not in this Chat");
-					return;
-				}
 
-				String update = String.format("delete from CHAT_LIST where chat_id = '%s' and member = '%s' ", chat.get(0), loginToDelete);
-        		esql.executeUpdate(update);
-        		System.out.println("Deleted " + loginToDelete + " Successfully"); 
+        		esql.getStore().removeMember(chat.get(0), loginToDelete);
+        		out.println("Deleted " + loginToDelete + " Successfully"); 
     		}
     		return;
 
@@ -1730,34 +2249,32 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static void addMC(Messenger esql, aUser au, List<String> chat){
         try{
 			//check if they are initial 
-			String check_i = String.format("select * from CHAT where chat_id = '%s' and init_sender = '%s'",chat.get(0), au.login);
-    		int cnum = esql.executeQuery(check_i);
-    		if(cnum ==0)
+    		if(!esql.getStore().isInitSender(chat.get(0), au.login))
     		{
-        		System.out.println("You are not the initial chat sender");
+        		out.println("You are not the initial chat sender");
         		return;
     		}
     		else{
-        		System.out.println("Please give login of user to be added: ");
-        		String loginToAdd = in.readLine();
+        		out.println("Please give login of user to be added: ");
+        		String loginToAdd = readLogin(esql, au);
         		// query if user exists
-				String exists = String.format("select * from USR where login = '%s'",loginToAdd);
-        		int lnum = esql.executeQuery(exists);
-        		if(lnum == 0)
+        		if(!esql.getStore().userExists(loginToAdd))
         		{
-            		System.out.println("User does not exist");
+            		out.println("User does not exist");
             		return;
         		}
-				String already = String.format("select * from CHAT_LIST where chat_id = '%s' and member = '%s'", chat.get(0), loginToAdd);
-				int al = esql.executeQuery(already);
-				if( al == 1)
+				if(esql.getStore().isMember(chat.get(0), loginToAdd))
+				{
+					out.println("Already in chat");
+					return;
+				}
+				if(esql.getStore().blockedBy(au.login, Collections.singletonList(loginToAdd)).size() > 0)
 				{
-					System.out.println("Already in chat");
+					out.println(loginToAdd + " has blocked you");
 					return;
 				}
-				String update = String.format("insert into CHAT_LIST values('%s', '%s')", chat.get(0), loginToAdd);
-        		esql.executeUpdate(update);
-        		System.out.println("Added " + loginToAdd + " Successfully"); 
+        		esql.getStore().addMember(chat.get(0), loginToAdd);
+        		out.println("Added " + loginToAdd + " Successfully"); 
     		}
     		return;
 
@@ -1770,21 +2287,19 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static void cDelete(Messenger esql, aUser au, List<String> chat){
         try{
 				// check if they are initial
-				String check_i = String.format("select * from CHAT where chat_id = '%s' and init_sender = '%s'",chat.get(0),au.login);
-				int cnum = esql.executeQuery(check_i);
-				if(cnum == 0)
+				if(!esql.getStore().isInitSender(chat.get(0), au.login))
 				{
-					System.out.println("You are not the initial chat sender");
+					out.println("You are not the initial chat sender");
     				return;
 				}
 				else{
-					System.out.println("\tAll related messages will be deleted");
-                    System.out.println("\tare you sure? (y/n): ");
-                    String ans = in.readLine();
+					out.println("\tAll related messages will be deleted");
+                    out.println("\tare you sure? (y/n): ");
+                    String ans = readLine();
                     while(!ans.equals("n") && !ans.equals("y") )
                     {
-                        System.out.println("\tError: invalid answer (y/n): ");
-                        ans = in.readLine();
+                        out.println("\tError: invalid answer (y/n): ");
+                        ans = readLine();
                     }
                     //if no, then don't delete from contact list and return.
                     if( ans.equals("n"))
@@ -1792,9 +2307,8 @@ public static int NewMessageChat(Messenger esql, aUser au)
                         return;
                     }
 	
-						String update = String.format("delete from CHAT where chat_id = '%s' ", chat.get(0));
-    					esql.executeUpdate(update);
-   						System.out.println("Delete Successful");
+						esql.getStore().deleteChat(chat.get(0));
+   						out.println("Delete Successful");
 				}
 				return;
 
@@ -1804,44 +2318,94 @@ public static int NewMessageChat(Messenger esql, aUser au)
     	}
    }//end NewMessage
 
+   public static void ExportChat(Messenger esql, aUser au, List<String> chat){
+		try{
+			if(!(esql.getStore() instanceof PostgresStore))
+			{
+				out.println("Export needs the Postgres store");
+				return;
+			}
+			out.println("\tExport to file (.ndjson.gz): ");
+			String path = readLine();
+			while(path.equals(""))
+			{
+				out.println("\tmust have a file name");
+				path = readLine();
+			}
+			long start = System.currentTimeMillis();
+			int count = ChatExport.export(esql, chat.get(0), new File(path));
+			out.println("\tExported " + count + " messages in " + (System.currentTimeMillis() - start) + " ms");
+		}catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
+   }//end ExportChat
+
+   public static void ImportChat(Messenger esql, aUser au){
+		try{
+			if(!(esql.getStore() instanceof PostgresStore))
+			{
+				out.println("Import needs the Postgres store");
+				return;
+			}
+			out.println("\tImport from file (.ndjson.gz): ");
+			String path = readLine();
+			File file = new File(path);
+			if(!file.isFile())
+			{
+				out.println("\tNo such file");
+				return;
+			}
+			int chat_id = ChatExport.importChat(esql, au.login, file);
+			out.println("\tImported as chat " + chat_id);
+		}catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
+   }//end ImportChat
+
 
    public static List<List<String>> cMessage(Messenger esql, aUser au, int depth, List<String> chat_id){
         List<List<String>> m = null;
 		try{
 			//query for 10 chats in depth range 
 			int offset = (depth*10);
-			String tenM = String.format("select * from MESSAGE where chat_id = '%s' order by msg_timestamp DESC Limit 10 offset '%s' ", chat_id.get(0), offset);
-			m = esql.executeQueryResult(tenM);
+			List<MessageCache.CachedMessage> page = esql.getStore().messagePage(chat_id.get(0), offset, 10);
+			m = new ArrayList<List<String>>();
+			for(int i = 0; i < page.size(); i++)
+			{
+				m.add(page.get(i).row);
+			}
 			if( m == null || m.size() == 0)
 			{
-				System.out.println("\t\t\tEmpty Chat");
+				out.println("\t\t\tEmpty Chat");
 				return m;
 			}
-			System.out.println();
+			out.println();
 			for(int i = 0; i < m.size(); i++)
 			{
 				int temp = i+1;
 				int go = 1;
 				//CHANGE :) removed tabbing
-				System.out.println(temp + ")");
-				System.out.println("Author: " + m.get(i).get(4));
-				System.out.println("Creation Date: " + m.get(i).get(2));
-				System.out.println("Text: " + m.get(i).get(1));
-				String att_look = String.format("select media_type, URL from MEDIA_ATTACHMENT where msg_id = '%s' ", m.get(i).get(0));
-				List<List<String>> aQ = esql.executeQueryResult(att_look);
+				out.println(temp + ")");
+				out.println("Author: " + m.get(i).get(4));
+				out.println("Creation Date: " + m.get(i).get(2));
+				out.println("Text: " + m.get(i).get(1));
+				List<List<String>> aQ = page.get(i).attachments;
 				if(aQ.size() == 0 || aQ == null)
 				{
 					go = 0;
 				}
 				for(int j = 0; j < aQ.size() && go == 1; j++)
 				{
-					System.out.print("Media type: ");
-					System.out.println(aQ.get(j).get(0));
-					System.out.print("URL :");
-					System.out.println(aQ.get(j).get(1));
+					out.print("Media type: ");
+					out.println(aQ.get(j).get(0));
+					out.print("URL :");
+					out.println(aQ.get(j).get(1));
 				}
 					
 			}
+			FastStart.chatShown();
 			return m;
 	    }catch (Exception e)
     	{
@@ -1853,27 +2417,40 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static List<List<String>> printChats(Messenger esql, aUser au){
 		List<List<String>> temp = null;
         try{
-			// Get all the chats user has membership of and find most current 
-				String c_time = String.format("select * from (select m.chat_id as chat_id, Max(m.msg_timestamp) as msg_timestamp from MESSAGE m,(select chat_id from CHAT_LIST, USER_LIST_CONTAINS ulc where member = '%s' and not member = ulc.list_member) as c where c.chat_id = m.chat_id group by m.chat_id ) as id_t order by id_t.msg_timestamp DESC", au.login);  
- 
-	    	temp = esql.executeQueryResult(c_time);
-			System.out.println("");
+			// Get all the chats user has membership of, newest first, straight from the member's CHAT_LIST rows
+	    	temp = esql.getStore().chatList(au.login);
+			// all recipients of all those chats at once
+			List<List<String>> q_r = esql.getStore().chatMembersOfUser(au.login);
+			Map<String, List<String>> recipients = new HashMap<String, List<String>>();
+			for(int x = 0; x < q_r.size(); x++)
+			{
+				List<String> members = recipients.get(q_r.get(x).get(0));
+				if(members == null)
+				{
+					members = new ArrayList<String>();
+					recipients.put(q_r.get(x).get(0), members);
+				}
+				members.add(q_r.get(x).get(1));
+			}
+			out.println("");
 			//print out in 
 			for(int j = 0; j < temp.size(); j++)
 			{
-				System.out.println("\t"+(j+1) + ": chat_id: " + temp.get(j).get(0));
-				// query for all recipients
-				String all_r = String.format("select member from CHAT_LIST where chat_id = '%s'", temp.get(j).get(0));
-				List<List<String>> q_r = esql.executeQueryResult(all_r);
-				System.out.print("\tRecipients: \n");
+				out.println("\t"+(j+1) + ": chat_id: " + temp.get(j).get(0));
+				List<String> members = recipients.get(temp.get(j).get(0));
+				out.print("\tRecipients: \n");
 				//print all the recipients
-				for(int x = 0; x < q_r.size(); x++)
+				for(int x = 0; members != null && x < members.size(); x++)
+				{
+					out.println("\t\t" + members.get(x) + " ");
+				}
+				out.print("\n");
+				out.println("\tLast update: " + temp.get(j).get(1));
+				if(!temp.get(j).get(2).equals("0"))
 				{
-					System.out.println("\t\t" + q_r.get(x).get(0) + " ");
+					out.println("\tUnread: " + temp.get(j).get(2));
 				}
-				System.out.print("\n");
-				System.out.println("\tLast update: " + temp.get(j).get(1));
-				System.out.print("\n");
+				out.print("\n");
 				
 			}
 			return temp;
@@ -1884,32 +2461,85 @@ public static int NewMessageChat(Messenger esql, aUser au)
 		return temp;
    }//end printChats
 
+   /* functionCall: SearchMessages(Messenger esql, aUser au)
+    * Full-text search in one or all of the authorised user's chats,
+    * best matches first, 10 at a time
+    **/
+   public static void SearchMessages(Messenger esql, aUser au){
+		try{
+			if(!(esql.getStore() instanceof PostgresStore))
+			{
+				out.println("Search needs the Postgres store");
+				return;
+			}
+			out.println("Search for: ");
+			String terms = readLine();
+			while(terms.equals(""))
+			{
+				out.println("must have search terms");
+				terms = readLine();
+			}
+			out.println("In which chat_id? (empty for all chats)");
+			String chatId = readLine();
+			if(chatId.equals(""))
+			{
+				chatId = null;
+			}
+			MessageSearch.Cursor cursor = null;
+			int shown = 0;
+			boolean searching = true;
+			while(searching)
+			{
+				MessageSearch.Page page = MessageSearch.search(esql, au.login, chatId, terms, cursor);
+				if(page.rows.size() == 0)
+				{
+					out.println(shown == 0 ? "No messages found\n" : "No more results\n");
+					return;
+				}
+				for(int i = 0; i < page.rows.size(); i++)
+				{
+					List<String> row = page.rows.get(i);
+					shown++;
+					out.println(shown + ")");
+					out.println("Chat: " + row.get(2) + "  Author: " + row.get(3));
+					out.println("Creation Date: " + row.get(1));
+					out.println("Text: " + row.get(4));
+				}
+				if(page.next == null)
+				{
+					return;
+				}
+				cursor = page.next;
+				out.println("\n1. More results");
+				out.println("9. Back to main menu");
+				searching = readChoice() == 1;
+			}
+		}catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
+   }//end SearchMessages
+
    public static void ReadNotifications(Messenger esql, aUser au){
      	try{
-			String get_msg_id = String.format("select msg_id from NOTIFICATION where usr_login = '%s'", au.login);
-			List< List<String>> n_message_id = esql.executeQueryResult(get_msg_id);
+			List< List<String>> n_message_id = esql.getStore().notifications(au.login);
 			if(n_message_id == null || n_message_id.size() == 0)
 			{
-				System.out.println("You have no new notifications\n");
+				out.println("You have no new notifications\n");
 				return;
 			}
-            //System.out.println(n_message_id.get(0));
+            //out.println(n_message_id.get(0));
 			
 			//currently prints out all notifications in one go 
 			for(int i = 0; i < n_message_id.size(); i++)
 			{
-				String get_msg_i = String.format("select msg_text, sender_login from MESSAGE where msg_id = '%s'", n_message_id.get(i).get(0));
-				List< List<String>> msg_i = esql.executeQueryResult(get_msg_i);
-				
 				// check if blocked 
-				String cb = String.format("select * from USER_LIST_CONTAINS where list_id = '%s' and list_member ='%s'", au.block_list, msg_i.get(0).get(1));
-				int cn = esql.executeQuery(cb);
-				if(cn == 0)
+				if(!esql.getStore().listContains(au.block_list, n_message_id.get(i).get(3)))
 				{
-				System.out.println(msg_i.get(0).get(0));
+				out.println(n_message_id.get(i).get(2));
 				//assuming it is now considered read delete from Notifications
-				String msg_d = String.format("delete from NOTIFICATION where usr_login = '%s' and msg_id = '%s'", au.login, n_message_id.get(i).get(0));
-				esql.executeUpdate(msg_d);
+				esql.getStore().clearNotification(au.login, n_message_id.get(i));
+				MessengerMetrics.notificationsRead.inc();
 				}
 			}
 			
@@ -1922,20 +2552,18 @@ public static int NewMessageChat(Messenger esql, aUser au)
 
    public static void DeleteFromContact(Messenger esql, aUser au){
     	try{
-	        System.out.print("\tEnter user login to delete: ");
-        	String logintodelete = in.readLine();
+	        out.print("\tEnter user login to delete: ");
+        	String logintodelete = readLine();
             //check if the contact to delete is on your contact list
-            String query = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ",logintodelete, au.contact_list );
-            int numR = esql.executeQuery(query);
-            if( numR == 0)
+            if( !esql.getStore().listContains(au.contact_list, logintodelete))
             {
-                System.out.println("\t" + logintodelete + " is not on your contact list" + "\n");
+                out.println("\t" + logintodelete + " is not on your contact list" + "\n");
                 return;
             }
             else{
-                String update = String.format("Delete from USER_LIST_CONTAINS where list_member = '%s' and list_id = '%s'",logintodelete, au.contact_list);
-                esql.executeUpdate(update);
-                System.out.println("\t" + logintodelete + " is now deleted from contacts" + "\n");
+                esql.getStore().removeFromList(au.contact_list, logintodelete);
+                au.contacts = null;
+                out.println("\t" + logintodelete + " is now deleted from contacts" + "\n");
                 return;
             }
 		
@@ -1948,46 +2576,40 @@ public static int NewMessageChat(Messenger esql, aUser au)
    public static void AddToBlock(Messenger esql, aUser au){
      	try{
         // get contact
-            System.out.print("\tEnter user login to block: ");
-            String logintoblock = in.readLine();
+            out.print("\tEnter user login to block: ");
+            String logintoblock = readLine();
         
             if(logintoblock.equals(au.login))
             {
-                System.out.println("\tYou cannot add yourself as a blocked contact\n");
+                out.println("\tYou cannot add yourself as a blocked contact\n");
                 return;
             }
 
         //check if contact exists in block list
-            String query1 = String.format("Select USR.login  From USR Where login = '%s'" , logintoblock);
-            int numR = esql.executeQuery(query1);
-            if( numR == 0)
+            if( !esql.getStore().userExists(logintoblock))
             {
-                System.out.println("\t" + logintoblock + " does not exist\n");
+                out.println("\t" + logintoblock + " does not exist\n");
                 return;
             }
         //check if there is a relation
-            String query = String.format("Select * from USER_LIST_CONTAINS where  list_member = '%s' AND list_id = '%s'" ,logintoblock,  au.block_list);
-            int block_int = esql.executeQuery(query);
             //  check if contact exists in the block list
-            if( block_int != 0)
+            if( esql.getStore().listContains(au.block_list, logintoblock))
             {
-                System.out.println("\t" + logintoblock + " is already blocked\n");
+                out.println("\t" + logintoblock + " is already blocked\n");
                 return;
             }
             else //check if contact is in the contact list. 
             {
-                String query3 = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ",logintoblock, au.contact_list );
-                int numR2 = esql.executeQuery(query3);
-                if( numR2 == 1) //If in contact, confirm deletion from contact
+                if( esql.getStore().listContains(au.contact_list, logintoblock)) //If in contact, confirm deletion from contact
                 {
-                    System.out.println("\n\t" + logintoblock + " is on your contact list\n");
-                    System.out.println("\tThey will be deleted from contact list if you do block");
-                    System.out.println("\tare you sure? (y/n): ");
-                    String ans = in.readLine();
+                    out.println("\n\t" + logintoblock + " is on your contact list\n");
+                    out.println("\tThey will be deleted from contact list if you do block");
+                    out.println("\tare you sure? (y/n): ");
+                    String ans = readLine();
                     while(!ans.equals("n") && !ans.equals("y") )
                     {
-                        System.out.println("\tError: invalid answer (y/n): ");
-                        ans = in.readLine();
+                        out.println("\tError: invalid answer (y/n): ");
+                        ans = readLine();
                     }
                     //if no, then don't delete from contact list and return.
                     if( ans.equals("n"))
@@ -1995,16 +2617,15 @@ public static int NewMessageChat(Messenger esql, aUser au)
                         return;
                     }
                     else{ //delete contact from contact list
-                    String update = String.format("Delete from USER_LIST_CONTAINS where list_member = '%s' and list_id = '%s'",logintoblock, au.contact_list);
-                    esql.executeUpdate(update);
-                    System.out.println("\t" + logintoblock + " is now deleted from contacts\n");
+                    esql.getStore().removeFromList(au.contact_list, logintoblock);
+                    au.contacts = null;
+                    out.println("\t" + logintoblock + " is now deleted from contacts\n");
                     }
                 }
 
                 //insert contact into the blocked list
-                String query2 = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES( '%s', '%s')", au.block_list, logintoblock);
-                esql.executeUpdate(query2);
-                System.out.println("\t" + logintoblock + " is now blocked\n");
+                esql.getStore().block(au.login, au.block_list, logintoblock);
+                out.println("\t" + logintoblock + " is now blocked\n");
             }
         }catch (Exception e)
         {
@@ -2014,22 +2635,19 @@ public static int NewMessageChat(Messenger esql, aUser au)
 
     public static void DeleteFromBlock(Messenger esql, aUser au){
         try{
-	        System.out.print("\tEnter user login to unblock: ");
-        	String logintounblock = in.readLine();
+	        out.print("\tEnter user login to unblock: ");
+        	String logintounblock = readLine();
 
             //check if contact to unblock exists in the block list. If not, return, else delete from the block list
-            String query = String.format("select * from USER_LIST_CONTAINS where list_member ='%s' and list_id = '%s' ",logintounblock, au.block_list );
-            int numR = esql.executeQuery(query);
-            if( numR == 0)
+            if( !esql.getStore().listContains(au.block_list, logintounblock))
             {
-                System.out.println("\t" + logintounblock + " is not on your block list\n");
+                out.println("\t" + logintounblock + " is not on your block list\n");
                 return;
                 
             }
             else{
-                String update = String.format("Delete from USER_LIST_CONTAINS where list_member = '%s' and list_id = '%s'",logintounblock, au.block_list);
-                esql.executeUpdate(update);
-                System.out.println("\t" + logintounblock + " is now deleted from blocked\n");
+                esql.getStore().unblock(au.login, au.block_list, logintounblock);
+                out.println("\t" + logintounblock + " is now deleted from blocked\n");
                 return;
             }
         }catch (Exception e)
@@ -2040,37 +2658,7 @@ public static int NewMessageChat(Messenger esql, aUser au)
    }//end DeleteFromBlock
 
     public static void ListBlocks(Messenger esql, aUser au ){
-        try{
-            String query = String.format("select u.list_member   from USER_LIST_CONTAINS u, USR where u.list_id = '%s' and USR.login = u.list_member  " , au.block_list);
-            List< List<String>> block_members = esql.executeQueryResult(query);
-            if( block_members.size()  <= 0)
-            {
-                System.out.println("\n\tblock list is empty\n ");
-                return;
-            }
-            String block_title = "\t" + au.login + "'s block list";
-            int block_size = block_members.size();
-            int dashCalls = block_size - 1;
-            int numDashes = block_title.length();
-            printDashes(numDashes);
-            System.out.println();
-            for( int i = 0 ; i < block_size ; i++)
-            {
-                System.out.println(block_members.get(i).get(0));
-                if(i != dashCalls)
-                {
-                    printDashes(numDashes);
-                    System.out.println();
-                }
-                
-            }
-            printDashes(numDashes);
-            System.out.println();
-        } catch (Exception e)
-        {
-            System.err.println(e.getMessage());
-        }
-
+        BrowseList(esql, au.block_list, "\t" + au.login + "'s block list", false);
        }//end ListBlocks
 
 /*================================================================*
@@ -2102,9 +2690,9 @@ public static int NewMessageChat(Messenger esql, aUser au)
             default:
                 for(int i = 0; i < depth; ++i)
                 {
-                    System.out.print("\t");
+                    out.print("\t");
                 }
-		        System.out.println("Unknown Error!\n");
+		        out.println("Unknown Error!\n");
 				break;
         }
 
@@ -0,0 +1,97 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * In-process event bus fed by the Postgres change notifications.
+ *
+ * Senders publish NOTIFY on one channel per chat ("chat_&lt;chat_id&gt;") and
+ * one per recipient ("usr_&lt;login&gt;"); ChangeListener turns every
+ * notification received for this session into an Event and hands it to the
+ * registered listeners.
+ */
+public class MessengerEvents {
+
+   public static final String CHAT_PREFIX = "chat_";
+   public static final String USER_PREFIX = "usr_";
+
+   private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   /**
+    * Receives the events published on the bus
+    */
+   public interface Listener {
+      void onEvent(Event e);
+   }
+
+   /**
+    * One change notification: either something changed in a chat, or a
+    * user received a new message
+    */
+   public static class Event {
+      public final boolean chatEvent;
+      public final String key;
+
+      Event(boolean chatEvent, String key){
+         this.chatEvent = chatEvent;
+         this.key = key;
+      }
+
+      /**
+       * Parses a notification channel name
+       *
+       * @return the event or null when the channel is not ours
+       */
+      public static Event fromChannel(String channel){
+         if(channel.startsWith(CHAT_PREFIX))
+            return new Event(true, channel.substring(CHAT_PREFIX.length()));
+         if(channel.startsWith(USER_PREFIX))
+            return new Event(false, channel.substring(USER_PREFIX.length()));
+         return null;
+      }
+   }//end Event
+
+   public void subscribe(Listener l){
+      listeners.add(l);
+   }
+
+   public void unsubscribe(Listener l){
+      listeners.remove(l);
+   }
+
+   /**
+    * Delivers an event to every listener, a failing listener does not stop
+    * the others
+    */
+   public void publish(Event e){
+      for(Listener l : listeners){
+         try{
+            l.onEvent(e);
+         }catch(Exception ex){
+            System.err.println(ex.getMessage());
+         }
+      }
+   }//end publish
+
+   /**
+    * @return the channel carrying changes of a chat
+    */
+   public static String chatChannel(String chatId){
+      return CHAT_PREFIX + chatId;
+   }
+
+   /**
+    * @return the channel carrying new messages for a user
+    */
+   public static String userChannel(String login){
+      return USER_PREFIX + login;
+   }
+
+   /**
+    * Quotes a channel name so logins keep their case and punctuation
+    */
+   public static String quote(String channel){
+      return "\"" + channel.replace("\"", "\"\"") + "\"";
+   }
+
+}//end MessengerEvents
@@ -0,0 +1,237 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Process wide counters, gauges and latency histograms of the messenger.
+ * Everything is kept in atomics so the menu thread never blocks on the
+ * metrics endpoint, and rendered on demand in the Prometheus text format.
+ */
+public class MessengerMetrics {
+
+   // every metric registers itself here so render() can walk them in order
+   private static final List<Metric> registry = new ArrayList<Metric>();
+
+   // upper bounds (seconds) of the latency buckets, +Inf is implicit
+   private static final double[] LATENCY_BUCKETS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5 };
+
+   public static final Counter messagesSent = new Counter(
+      "messenger_messages_sent_total", "Messages inserted into MESSAGE");
+   public static final Counter notificationsFannedOut = new Counter(
+      "messenger_notifications_fanned_out_total", "Recipients notified of a message");
+   public static final Counter notificationRows = new Counter(
+      "messenger_notification_rows_total", "NOTIFICATION rows inserted, watermark chats insert none");
+   public static final Counter notificationsRead = new Counter(
+      "messenger_notifications_read_total", "Notifications shown to and cleared by their recipient");
+   public static final Counter chatsCreated = new Counter(
+      "messenger_chats_created_total", "Chats inserted into CHAT");
+   public static final Counter purgeRuns = new Counter(
+      "messenger_purge_runs_total", "Runs of the self-destruct message purge");
+   public static final Counter purgedMessages = new Counter(
+      "messenger_purged_messages_total", "Messages removed by the self-destruct purge");
+   public static final Counter archivedMessages = new Counter(
+      "messenger_archived_messages_total", "Messages moved from MESSAGE into the archive");
+   public static final Counter archiveReads = new Counter(
+      "messenger_archive_reads_total", "History pages continued into the archive");
+   public static final Counter contactsSynced = new Counter(
+      "messenger_contacts_synced_total", "Contacts added by an address book sync");
+   public static final Counter deletedRows = new Counter(
+      "messenger_deleted_rows_total", "Rows of deleted chats and accounts removed by the deletion worker");
+   public static final Counter deletionJobs = new Counter(
+      "messenger_deletion_jobs_total", "Deleted chats and accounts completely removed by the deletion worker");
+   public static final Counter journalBatches = new Counter(
+      "messenger_journal_batches_total", "Batches of journaled sends written to Postgres");
+   public static final Counter screensRendered = new Counter(
+      "messenger_screens_rendered_total", "Screens written to the terminal or another render sink");
+   public static final Counter apiRequests = new Counter(
+      "messenger_api_requests_total", "Requests answered by the JSON API");
+   public static final Counter apiErrors = new Counter(
+      "messenger_api_errors_total", "JSON API requests answered with an error");
+   public static final Counter queryErrors = new Counter(
+      "messenger_query_errors_total", "Statements that failed with an SQLException");
+   public static final Counter replicaReads = new Counter(
+      "messenger_replica_reads_total", "Reads served by a replica");
+   public static final Counter replicaFallbacks = new Counter(
+      "messenger_replica_fallbacks_total", "Reads sent to the primary because no replica had caught up");
+
+   public static final Gauge connectionsOpen = new Gauge(
+      "messenger_db_connections_open", "Physical database connections currently open");
+   public static final Gauge journalPending = new Gauge(
+      "messenger_journal_pending", "Sends acknowledged from the journal and not yet in Postgres");
+   public static final Gauge startupFirstMenu = new Gauge(
+      "messenger_startup_first_menu_ms", "Milliseconds from JVM start to the first main menu");
+   public static final Gauge startupFirstChat = new Gauge(
+      "messenger_startup_first_chat_ms", "Milliseconds from JVM start to the first chat shown");
+   public static final Gauge statementsInFlight = new Gauge(
+      "messenger_db_statements_in_flight", "Statements currently holding a connection");
+
+   public static final Histogram queryLatency = new Histogram(
+      "messenger_query_duration_seconds", "Latency of SELECT statements", "kind", "query");
+   public static final Histogram updateLatency = new Histogram(
+      "messenger_query_duration_seconds", "Latency of INSERT/UPDATE/DELETE statements", "kind", "update");
+
+   /**
+    * Renders every registered metric in the Prometheus text exposition format
+    *
+    * @return the text body served on /metrics
+    */
+   public static String render(){
+      StringBuilder sb = new StringBuilder(4096);
+      String lastName = null;
+      synchronized(registry){
+         for(Metric m : registry){
+            // histograms sharing a name only get one HELP/TYPE header
+            if(!m.name.equals(lastName)){
+               sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+               sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+               lastName = m.name;
+            }
+            m.write(sb);
+         }
+      }
+      return sb.toString();
+   }//end render
+
+   /**
+    * Common part of every metric: its name, help text and exposition type
+    */
+   public static abstract class Metric {
+      final String name;
+      final String help;
+
+      Metric(String name, String help){
+         this.name = name;
+         this.help = help;
+         synchronized(registry){
+            registry.add(this);
+         }
+      }
+
+      abstract String type();
+      abstract void write(StringBuilder sb);
+   }//end Metric
+
+   /**
+    * Monotonic counter
+    */
+   public static class Counter extends Metric {
+      private final AtomicLong value = new AtomicLong();
+
+      Counter(String name, String help){
+         super(name, help);
+      }
+
+      public void inc(){
+         value.incrementAndGet();
+      }
+
+      public void inc(long n){
+         value.addAndGet(n);
+      }
+
+      public long get(){
+         return value.get();
+      }
+
+      String type(){
+         return "counter";
+      }
+
+      void write(StringBuilder sb){
+         sb.append(name).append(' ').append(value.get()).append('\n');
+      }
+   }//end Counter
+
+   /**
+    * Value that can go up and down
+    */
+   public static class Gauge extends Metric {
+      private final AtomicLong value = new AtomicLong();
+
+      Gauge(String name, String help){
+         super(name, help);
+      }
+
+      public void inc(){
+         value.incrementAndGet();
+      }
+
+      public void dec(){
+         value.decrementAndGet();
+      }
+
+      public void set(long v){
+         value.set(v);
+      }
+
+      public long get(){
+         return value.get();
+      }
+
+      String type(){
+         return "gauge";
+      }
+
+      void write(StringBuilder sb){
+         sb.append(name).append(' ').append(value.get()).append('\n');
+      }
+   }//end Gauge
+
+   /**
+    * Cumulative latency histogram with fixed buckets and a single label
+    */
+   public static class Histogram extends Metric {
+      private final String label;
+      private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong sumNanos = new AtomicLong();
+
+      Histogram(String name, String help, String labelName, String labelValue){
+         super(name, help);
+         this.label = labelName + "=\"" + labelValue + "\"";
+      }
+
+      /**
+       * Records one observation
+       *
+       * @param nanos the measured duration in nanoseconds
+       */
+      public void observe(long nanos){
+         double seconds = nanos / 1e9;
+         int i = 0;
+         while(i < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[i])
+            i++;
+         buckets.incrementAndGet(i);
+         count.incrementAndGet();
+         sumNanos.addAndGet(nanos);
+      }
+
+      public long count(){
+         return count.get();
+      }
+
+      String type(){
+         return "histogram";
+      }
+
+      void write(StringBuilder sb){
+         long cumulative = 0;
+         for(int i = 0; i < LATENCY_BUCKETS.length; i++){
+            cumulative += buckets.get(i);
+            sb.append(name).append("_bucket{").append(label).append(",le=\"")
+              .append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+         }
+         cumulative += buckets.get(LATENCY_BUCKETS.length);
+         sb.append(name).append("_bucket{").append(label).append(",le=\"+Inf\"} ")
+           .append(cumulative).append('\n');
+         sb.append(name).append("_sum{").append(label).append("} ")
+           .append(sumNanos.get() / 1e9).append('\n');
+         sb.append(name).append("_count{").append(label).append("} ")
+           .append(count.get()).append('\n');
+      }
+   }//end Histogram
+
+}//end MessengerMetrics
@@ -0,0 +1,211 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+
+/**
+ * Storage interface behind the messenger menus.
+ *
+ * Results keep the shape the menus have always worked with: ids are passed
+ * around as the strings read from result rows and multi-column results are
+ * rows of strings, with the column order documented on each method.
+ * Failures, including constraint violations, surface as SQLException
+ * whatever the backend.
+ */
+public interface MessengerStore {
+
+   /*========================== users ===========================*/
+
+   /**
+    * Creates a user together with their empty block and contact lists
+    */
+   void createUser(String login, String password, String phone) throws SQLException;
+
+   /**
+    * @return true when login and password match an existing user
+    */
+   boolean checkPassword(String login, String password) throws SQLException;
+
+   /**
+    * @return (login, password, phoneNum, status, block_list, contact_list) or null
+    */
+   List<String> getUser(String login) throws SQLException;
+
+   boolean userExists(String login) throws SQLException;
+
+   /**
+    * @return the login of every user, the source of the LoginIndex
+    */
+   List<String> logins() throws SQLException;
+
+   void setStatus(String login, String status) throws SQLException;
+
+   /**
+    * @return true when the user is the initial sender of a chat
+    */
+   boolean isInitSenderOfAnyChat(String login) throws SQLException;
+
+   /**
+    * @return true when the user has sent messages that still exist
+    */
+   boolean hasMessages(String login) throws SQLException;
+
+   /**
+    * Deletes an account. It can no longer log in or be found on return, a
+    * store may remove its rows later.
+    */
+   void deleteUser(String login) throws SQLException;
+
+   /*================ contact and block lists ===================*/
+
+   boolean listContains(int listId, String login) throws SQLException;
+
+   void addToList(int listId, String login) throws SQLException;
+
+   void removeFromList(int listId, String login) throws SQLException;
+
+   /**
+    * Adds target to the block list of login and to the reverse index of
+    * who blocks whom
+    */
+   void block(String login, int blockList, String target) throws SQLException;
+
+   void unblock(String login, int blockList, String target) throws SQLException;
+
+   /**
+    * Looks up in one go which of the candidates block a user
+    *
+    * @return the candidates whose block list contains login
+    */
+   List<String> blockedBy(String login, List<String> candidates) throws SQLException;
+
+   /**
+    * Adds every user registered under one of the phone numbers to a contact
+    * list in one go. Users already on it, on the block list, or login
+    * itself are skipped.
+    *
+    * @param phoneKeys numbers normalized by PhoneNumbers.normalize
+    * @return the logins added
+    */
+   List<String> syncContacts(String login, int contactList, int blockList, List<String> phoneKeys) throws SQLException;
+
+   /**
+    * Pages through a list in login order
+    *
+    * @param prefix only logins starting with it, "" for all
+    * @param after the last login of the previous page, null for the first page
+    * @return (list_member, status) of at most limit members
+    */
+   List<List<String>> listMembers(int listId, String prefix, String after, int limit) throws SQLException;
+
+   /*========================== chats ===========================*/
+
+   /**
+    * Creates a chat with its members
+    *
+    * @return the new chat_id
+    */
+   int createChat(String type, String initSender, List<String> members) throws SQLException;
+
+   /**
+    * @return the chat_id of a chat whose members are exactly the given logins, or null
+    */
+   String findChat(List<String> members) throws SQLException;
+
+   boolean isInitSender(String chatId, String login) throws SQLException;
+
+   boolean isMember(String chatId, String login) throws SQLException;
+
+   void addMember(String chatId, String login) throws SQLException;
+
+   void removeMember(String chatId, String login) throws SQLException;
+
+   /**
+    * @return the logins of every member of a chat
+    */
+   List<String> chatMembers(String chatId) throws SQLException;
+
+   /**
+    * Deletes a chat with all its messages, attachments and notifications.
+    * The chat is gone for its members on return, a store may remove its
+    * rows later.
+    */
+   void deleteChat(String chatId) throws SQLException;
+
+   /**
+    * @return (chat_id, last_msg_ts, unread_count) of every chat of a user
+    *         holding messages, newest activity first
+    */
+   List<List<String>> chatList(String login) throws SQLException;
+
+   /**
+    * @return (chat_id, member) of every member of every chat of a user
+    */
+   List<List<String>> chatMembersOfUser(String login) throws SQLException;
+
+   /*========================= messages =========================*/
+
+   /**
+    * Inserts a message with its attachments and a notification for every recipient
+    *
+    * @param attachmentPairs media type and URL, alternating
+    * @param recipients the logins to notify
+    * @return the new msg_id
+    */
+   int sendMessage(String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                   List<String> attachmentPairs, List<String> recipients) throws SQLException;
+
+   /**
+    * @return a newest-first page of messages with attachments, see MessageCache.CachedMessage
+    */
+   List<MessageCache.CachedMessage> messagePage(String chatId, int offset, int limit) throws SQLException;
+
+   /**
+    * @return true when a chat has a message at the given newest-first offset
+    */
+   boolean hasMessageAt(String chatId, int offset) throws SQLException;
+
+   /**
+    * @param message a row as returned by messagePage
+    * @return true when the message exists and was sent by login
+    */
+   boolean isSender(List<String> message, String login) throws SQLException;
+
+   void editMessageText(List<String> message, String login, String text) throws SQLException;
+
+   void deleteMessage(List<String> message, String login) throws SQLException;
+
+   /**
+    * @return (media_id, media_type, URL, msg_id, msg_timestamp) of every attachment of a message
+    */
+   List<List<String>> attachments(List<String> message) throws SQLException;
+
+   void addAttachment(List<String> message, String type, String url) throws SQLException;
+
+   void updateAttachment(List<String> message, String mediaId, String type, String url) throws SQLException;
+
+   /**
+    * Deletes every message past its destruction time that nobody still has
+    * to be notified about
+    *
+    * @return the number of messages deleted
+    */
+   int purgeExpired() throws SQLException;
+
+   /*====================== notifications =======================*/
+
+   /**
+    * @return (msg_id, msg_timestamp, msg_text, sender_login, chat_id, kind) of every pending
+    *         notification of a user, kind 0 for a NOTIFICATION row and 1 for a message after
+    *         the user's read watermark
+    */
+   List<List<String>> notifications(String login) throws SQLException;
+
+   /**
+    * Marks a notification as read
+    *
+    * @param notification a row as returned by notifications
+    */
+   void clearNotification(String login, List<String> notification) throws SQLException;
+
+}//end MessengerStore
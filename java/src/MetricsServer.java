@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Optional embedded HTTP endpoint serving MessengerMetrics on /metrics.
+ * It is only started when -Dmessenger.metrics.port is given and only
+ * listens on the loopback interface.
+ */
+public class MetricsServer {
+
+   private final HttpServer server;
+   private final ExecutorService executor;
+
+   /**
+    * Binds the endpoint on the loopback interface, it is not serving until start() is called
+    *
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public MetricsServer(int port) throws IOException {
+      this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      this.executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+         public Thread newThread(Runnable r){
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.server.setExecutor(this.executor);
+      this.server.createContext("/metrics", new HttpHandler(){
+         public void handle(HttpExchange ex) throws IOException {
+            byte[] body = MessengerMetrics.render().getBytes("UTF-8");
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(body);
+            os.close();
+         }
+      });
+   }//end MetricsServer
+
+   public void start(){
+      this.server.start();
+   }
+
+   public void stop(){
+      this.server.stop(0);
+      this.executor.shutdownNow();
+   }
+
+   /**
+    * Starts the endpoint if -Dmessenger.metrics.port is set
+    *
+    * @return the running server or null when metrics are disabled
+    */
+   public static MetricsServer startFromProperties(){
+      String port = System.getProperty("messenger.metrics.port");
+      if(port == null || port.equals(""))
+         return null;
+      try{
+         MetricsServer ms = new MetricsServer(Integer.parseInt(port));
+         ms.start();
+         Messenger.out.println("Metrics available on http://localhost:" + port + "/metrics");
+         return ms;
+      }catch(Exception e){
+         System.err.println("Unable to start metrics endpoint: " + e.getMessage());
+         return null;
+      }
+   }//end startFromProperties
+
+}//end MetricsServer
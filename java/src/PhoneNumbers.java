@@ -0,0 +1,50 @@
+/**
+ * Normalizes phone numbers to the key contact sync matches on.
+ *
+ * USR.phoneNum is stored as entered, e.g. +1(180)393-1512. Its key is the
+ * digits only, 11803931512, which is what the usr_phone_key index of
+ * sql/src/create_indexes.sql holds, unique like the column. Address books
+ * often leave out the country code, their numbers of NATIONAL_DIGITS digits
+ * get COUNTRY_CODE in front; users who registered without one are only
+ * found by the digits they registered with.
+ */
+public final class PhoneNumbers {
+
+   static final String COUNTRY_CODE = System.getProperty("messenger.phone.country", "1");
+   static final int NATIONAL_DIGITS = 10;
+
+   // the expression of the usr_phone_key index, queries must repeat it exactly,
+   // unqualified: a table alias in front would name a schema
+   static final String SQL_KEY = "regexp_replace(phoneNum, '[^0-9]', '', 'g')";
+
+   private PhoneNumbers(){
+   }
+
+   /**
+    * @return the digits of a phone number as stored, the value the
+    *         usr_phone_key index holds for it
+    */
+   public static String key(String phone){
+      StringBuilder digits = new StringBuilder(phone.length());
+      for(int i = 0; i < phone.length(); i++){
+         char c = phone.charAt(i);
+         if(c >= '0' && c <= '9')
+            digits.append(c);
+      }
+      return digits.toString();
+   }//end key
+
+   /**
+    * @return the key of an address book number with the country code
+    *         added, or null when it has no digits
+    */
+   public static String normalize(String phone){
+      String digits = key(phone);
+      if(digits.length() == 0)
+         return null;
+      if(digits.length() == NATIONAL_DIGITS && phone.trim().charAt(0) != '+')
+         return COUNTRY_CODE + digits;
+      return digits;
+   }//end normalize
+
+}//end PhoneNumbers
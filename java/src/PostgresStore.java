@@ -0,0 +1,783 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+
+
+/**
+ * MessengerStore on the Postgres schema in sql/src, through the connection
+ * of a Messenger. Besides the SQL it owns the recent message cache and
+ * publishes the change notifications of every write.
+ */
+public class PostgresStore implements MessengerStore {
+
+   // chats with more members keep read watermarks instead of NOTIFICATION rows
+   static final int WATERMARK_MEMBERS = Integer.getInteger("messenger.notify.watermark.members", 100);
+   // unread counts computed from a watermark stop here
+   static final int UNREAD_CAP = 100;
+
+   private final Messenger esql;
+   // the session whose cache and notification channels are used
+   private final Messenger session;
+   // cold tier the history continues into, null when there is none
+   private MessageArchive archive;
+   // deleted chats and accounts are only marked, a DeletionWorker removes them
+   private boolean deferDeletes = false;
+   // ids of new rows, reserved from the sequences a block at a time
+   private final IdAllocator listIds;
+   private final IdAllocator chatIds;
+   private final IdAllocator msgIds;
+   // sends are journaled and written behind, null when they go straight to Postgres
+   private SendJournal journal;
+
+   public PostgresStore(Messenger esql){
+      this(esql, esql);
+   }
+
+   /**
+    * Creates the store of one shard of a sharded deployment
+    *
+    * @param esql the connection to the shard
+    * @param session the session's own connection, which owns the message
+    *        cache and publishes the change notifications
+    */
+   PostgresStore(Messenger esql, Messenger session){
+      this.esql = esql;
+      this.session = session;
+      this.listIds = new IdAllocator(esql, "user_list_list_id_seq");
+      this.chatIds = new IdAllocator(esql, "chat_chat_id_seq");
+      this.msgIds = new IdAllocator(esql, "message_msg_id_seq");
+   }
+
+   /**
+    * Continues the history of every chat into the archive
+    */
+   public void setArchive(MessageArchive archive){
+      this.archive = archive;
+   }
+
+   MessageArchive getArchive(){
+      return archive;
+   }
+
+   IdAllocator messageIds(){
+      return msgIds;
+   }
+
+   /**
+    * Acknowledges sends once they are in the journal, it writes them here in batches
+    */
+   public void setJournal(SendJournal journal){
+      this.journal = journal;
+   }
+
+   // waits for the journaled sends of a chat, for work that has to find them in Postgres
+   void flushed(String chatId){
+      if(journal != null)
+         journal.awaitFlushed(chatId, -1);
+   }
+
+   // waits for the send of a message still in the journal, before it is changed
+   private void flushed(List<String> message){
+      if(journal != null)
+         journal.awaitFlushed(null, Integer.parseInt(message.get(0)));
+   }
+
+   // the session's sends of a chat that are not in MESSAGE yet
+   private List<SendJournal.Send> pendingOf(String chatId){
+      if(journal == null)
+         return new ArrayList<SendJournal.Send>();
+      return journal.pendingOf(chatId);
+   }
+
+   /**
+    * Leaves the removal of deleted chats and accounts to a DeletionWorker
+    */
+   public void setDeferredDeletes(boolean deferDeletes){
+      this.deferDeletes = deferDeletes;
+   }
+
+   // escapes a value for use inside a quoted SQL literal
+   static String q(String value){
+      return value.replace("'", "''");
+   }
+
+   private MessageCache cache(){
+      return session.getMessageCache();
+   }
+
+   /*========================== users ===========================*/
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      //Creating empty contact\block lists for a user, all in one round trip
+      int block_id = listIds.next();
+      int contact_id = listIds.next();
+      esql.executeUpdate(String.format(
+         "INSERT INTO USER_LIST(list_id, list_type) VALUES (%s, 'block'), (%s, 'contact');" +
+         "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)",
+         block_id, contact_id, q(phone), q(login), q(password), block_id, contact_id));
+   }//end createUser
+
+   public boolean checkPassword(String login, String password) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT login FROM Usr WHERE login = '%s' AND password = '%s' AND deleted_at IS NULL", q(login), q(password))) > 0;
+   }
+
+   public List<String> getUser(String login) throws SQLException {
+      List<List<String>> rows = esql.executeQueryResult(String.format(
+         "SELECT login, password, phoneNum, status, block_list, contact_list FROM Usr WHERE login = '%s'", q(login)));
+      return rows.size() == 0 ? null : rows.get(0);
+   }
+
+   public boolean userExists(String login) throws SQLException {
+      return esql.executeQuery(String.format("SELECT login FROM USR WHERE login = '%s' AND deleted_at IS NULL", q(login))) > 0;
+   }
+
+   public List<String> logins() throws SQLException {
+      List<String> result = new ArrayList<String>();
+      for(List<String> row : esql.executeQueryResult("SELECT login FROM USR WHERE deleted_at IS NULL"))
+         result.add(row.get(0));
+      return result;
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      esql.executeUpdate(String.format("update USR set status = '%s' where login = '%s'", q(status), q(login)));
+   }
+
+   public boolean isInitSenderOfAnyChat(String login) throws SQLException {
+      return esql.executeQuery(String.format("select chat_id from CHAT where init_sender = '%s' and deleted_at is null", q(login))) > 0;
+   }
+
+   public boolean hasMessages(String login) throws SQLException {
+      if(journal != null && journal.pendingFrom(login))
+         return true;
+      return esql.executeQuery(String.format("select msg_id from MESSAGE where sender_login = '%s'", q(login))) > 0;
+   }
+
+   /**
+    * With deferred deletes the account is hidden at once and its rows are
+    * queued for the DeletionWorker
+    */
+   public void deleteUser(String login) throws SQLException {
+      if(deferDeletes)
+         esql.executeUpdate(String.format(
+            "update USR set deleted_at = now() where login = '%s' and deleted_at is null;" +
+            "insert into DELETION_QUEUE(kind, target) values('user', '%s')", q(login), q(login)));
+      else
+         esql.executeUpdate(String.format("delete from USR where login = '%s'", q(login)));
+   }
+
+   /*================ contact and block lists ===================*/
+
+   public boolean listContains(int listId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "select list_id from USER_LIST_CONTAINS where list_id = %s and list_member = '%s'", listId, q(login))) > 0;
+   }
+
+   public void addToList(int listId, String login) throws SQLException {
+      esql.executeUpdate(String.format(
+         "INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES(%s, '%s')", listId, q(login)));
+   }
+
+   public void removeFromList(int listId, String login) throws SQLException {
+      esql.executeUpdate(String.format(
+         "Delete from USER_LIST_CONTAINS where list_id = %s and list_member = '%s'", listId, q(login)));
+   }
+
+   public void block(String login, int blockList, String target) throws SQLException {
+      esql.executeUpdate(String.format(
+         "INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES(%s, '%s');" +
+         "INSERT INTO BLOCKED_BY(blocked, blocker) VALUES('%s', '%s') ON CONFLICT DO NOTHING",
+         blockList, q(target), q(target), q(login)));
+   }
+
+   public void unblock(String login, int blockList, String target) throws SQLException {
+      esql.executeUpdate(String.format(
+         "Delete from USER_LIST_CONTAINS where list_id = %s and list_member = '%s';" +
+         "Delete from BLOCKED_BY where blocked = '%s' and blocker = '%s'",
+         blockList, q(target), q(target), q(login)));
+   }
+
+   public List<String> blockedBy(String login, List<String> candidates) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      if(candidates.size() == 0)
+         return result;
+      StringBuilder in = new StringBuilder();
+      for(int i = 0; i < candidates.size(); i++){
+         if(i > 0)
+            in.append(", ");
+         in.append('\'').append(q(candidates.get(i))).append('\'');
+      }
+      for(List<String> row : esql.executeQueryResult(String.format(
+            "select blocker from BLOCKED_BY where blocked = '%s' and blocker in (%s)", q(login), in)))
+         result.add(row.get(0));
+      return result;
+   }//end blockedBy
+
+   /**
+    * Matches all numbers against the usr_phone_key index and inserts the
+    * new contacts in the same statement
+    */
+   public List<String> syncContacts(String login, int contactList, int blockList, List<String> phoneKeys) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      if(phoneKeys.size() == 0)
+         return result;
+      // keys are digits only, nothing to escape
+      StringBuilder keys = new StringBuilder();
+      for(int i = 0; i < phoneKeys.size(); i++){
+         if(i > 0)
+            keys.append(',');
+         keys.append('\'').append(phoneKeys.get(i)).append('\'');
+      }
+      for(List<String> row : esql.executeUpdateReturning(String.format(
+            "insert into USER_LIST_CONTAINS(list_id, list_member) " +
+            "select distinct %s, u.login from unnest(array[%s]::text[]) k(key), USR u " +
+            "where %s = k.key and u.login <> '%s' and u.deleted_at is null " +
+            "and not exists (select 1 from USER_LIST_CONTAINS b where b.list_id = %s and b.list_member = u.login) " +
+            "on conflict do nothing returning list_member",
+            contactList, keys, PhoneNumbers.SQL_KEY, q(login), blockList)))
+         result.add(row.get(0));
+      return result;
+   }//end syncContacts
+
+   /**
+    * Walks the ulc_list_member_c index from the previous page on, so every
+    * page costs limit rows whatever the size of the list. Logins compare
+    * bytewise (collate "C"), which lets the prefix filter use the index too.
+    */
+   public List<List<String>> listMembers(int listId, String prefix, String after, int limit) throws SQLException {
+      String like = q(prefix).replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+      return esql.executeQueryResult(String.format(
+         "select u.list_member, USR.status from USER_LIST_CONTAINS u, USR " +
+         "where u.list_id = %s and u.list_member collate \"C\" like '%s%%' %s and USR.login = u.list_member and USR.deleted_at is null " +
+         "order by u.list_member collate \"C\" limit %s",
+         listId, like, after == null ? "" : "and u.list_member collate \"C\" > '" + q(after) + "'", limit));
+   }
+
+   /*========================== chats ===========================*/
+
+   public int createChat(String type, String initSender, List<String> members) throws SQLException {
+      return insertChat(null, type, initSender, members);
+   }
+
+   /**
+    * Inserts the chat and all its members in one round trip
+    *
+    * @param chatId the id to use, or null to take the next one of chat_chat_id_seq
+    */
+   int insertChat(Integer chatId, String type, String initSender, List<String> members) throws SQLException {
+      String mode = members.size() > WATERMARK_MEMBERS ? "watermark" : "row";
+      int chat_id = chatId == null ? chatIds.next() : chatId;
+      StringBuilder sql = new StringBuilder(String.format(
+         "insert into CHAT(chat_id, chat_type, init_sender, notify_mode) Values(%s, '%s', '%s', '%s')", chat_id, q(type), q(initSender), mode));
+      for(int i = 0; i < members.size(); i++)
+         sql.append(i == 0 ? ";insert into CHAT_LIST(chat_id, member) values" : ",")
+            .append(String.format("(%s, '%s')", chat_id, q(members.get(i))));
+      esql.executeUpdate(sql.toString());
+      return chat_id;
+   }//end insertChat
+
+   public String findChat(List<String> members) throws SQLException {
+      StringBuilder in = new StringBuilder();
+      for(int i = 0; i < members.size(); i++){
+         if(i > 0)
+            in.append(", ");
+         in.append('\'').append(q(members.get(i))).append('\'');
+      }
+      List<List<String>> rows = esql.executeQueryResult(String.format(
+         "select chat_id from CHAT_LIST where chat_id in (select chat_id from CHAT_LIST where member = '%s') " +
+         "group by chat_id having count(*) = %s and bool_and(member in (%s)) limit 1",
+         q(members.get(0)), members.size(), in));
+      return rows.size() == 0 ? null : rows.get(0).get(0);
+   }//end findChat
+
+   public boolean isInitSender(String chatId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "select chat_id from CHAT where chat_id = %s and init_sender = '%s'", Integer.parseInt(chatId), q(login))) > 0;
+   }
+
+   public boolean isMember(String chatId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "select chat_id from CHAT_LIST where chat_id = %s and member = '%s'", Integer.parseInt(chatId), q(login))) > 0;
+   }
+
+   /**
+    * A chat growing past WATERMARK_MEMBERS switches to read watermarks for
+    * good. They restart at the newest message, the NOTIFICATION rows still
+    * pending are read as before.
+    */
+   public void addMember(String chatId, String login) throws SQLException {
+      int chat = Integer.parseInt(chatId);
+      esql.executeUpdate(String.format(
+         "insert into CHAT_LIST(chat_id, member) values(%s, '%s')", chat, q(login)));
+      int switched = esql.executeUpdate(String.format(
+         "update CHAT set notify_mode = 'watermark' where chat_id = %s and notify_mode = 'row' " +
+         "and (select count(*) from CHAT_LIST where chat_id = %s) > %s", chat, chat, WATERMARK_MEMBERS));
+      if(switched > 0)
+         esql.executeUpdate(String.format(
+            "update CHAT_LIST cl set last_read_msg_id = c.last_msg_id, last_read_ts = c.last_msg_ts " +
+            "from CHAT c where c.chat_id = cl.chat_id and cl.chat_id = %s", chat));
+      session.publish(MessengerEvents.chatChannel(chatId));
+   }//end addMember
+
+   public void removeMember(String chatId, String login) throws SQLException {
+      esql.executeUpdate(String.format(
+         "delete from CHAT_LIST where chat_id = %s and member = '%s'", Integer.parseInt(chatId), q(login)));
+      session.publish(MessengerEvents.chatChannel(chatId));
+   }
+
+   public List<String> chatMembers(String chatId) throws SQLException {
+      List<List<String>> rows = esql.executeQueryResult(String.format(
+         "SELECT member FROM CHAT_LIST WHERE chat_id = %s", Integer.parseInt(chatId)));
+      List<String> members = new ArrayList<String>();
+      for(List<String> row : rows)
+         members.add(row.get(0));
+      return members;
+   }
+
+   /**
+    * With deferred deletes only the memberships go at once, which hides the
+    * chat from every member; its messages are queued for the DeletionWorker
+    */
+   public void deleteChat(String chatId) throws SQLException {
+      flushed(chatId);
+      int chat = Integer.parseInt(chatId);
+      if(deferDeletes)
+         esql.executeUpdate(String.format(
+            "update CHAT set deleted_at = now() where chat_id = %s and deleted_at is null;" +
+            "delete from CHAT_LIST where chat_id = %s;" +
+            "insert into DELETION_QUEUE(kind, target) values('chat', '%s')", chat, chat, chat));
+      else
+         esql.executeUpdate(String.format("delete from CHAT where chat_id = %s", chat));
+      if(cache() != null)
+         cache().invalidate(chatId);
+      session.publish(MessengerEvents.chatChannel(chatId));
+   }
+
+   public List<List<String>> chatList(String login) throws SQLException {
+      // the last message is kept on CHAT; watermark chats count their unread messages, up to UNREAD_CAP
+      return esql.executeQueryResult(String.format(
+         "select cl.chat_id, c.last_msg_ts, cl.unread_count + case when c.notify_mode = 'watermark' then (" +
+            "select count(*) from (select 1 from MESSAGE m where m.chat_id = cl.chat_id " +
+            "and m.msg_timestamp > coalesce(cl.last_read_ts, '-infinity') and m.sender_login <> cl.member limit %s) u" +
+         ") else 0 end from CHAT_LIST cl, CHAT c " +
+         "where cl.member = '%s' and c.chat_id = cl.chat_id and c.last_msg_ts is not null order by c.last_msg_ts DESC",
+         UNREAD_CAP, q(login)));
+   }
+
+   public List<List<String>> chatMembersOfUser(String login) throws SQLException {
+      return esql.executeQueryResult(String.format(
+         "select cl.chat_id, cl.member from CHAT_LIST cl, CHAT_LIST me where me.member = '%s' and cl.chat_id = me.chat_id",
+         q(login)));
+   }
+
+   /*========================= messages =========================*/
+
+   public int sendMessage(String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                          List<String> attachmentPairs, List<String> recipients) throws SQLException {
+      if(journal != null){
+         int m_id = msgIds.next();
+         SendJournal.Send send = new SendJournal.Send(m_id, chatId, sender, text, ts, destr, attachmentPairs, recipients);
+         journal.append(send);
+         if(cache() != null)
+            cache().append(chatId, send.cached());
+         return m_id;
+      }
+      return insertMessage(null, chatId, sender, text, ts, destr, attachmentPairs, recipients);
+   }
+
+   /**
+    * @param msgId the id to use, or null to take the next one of message_msg_id_seq
+    */
+   int insertMessage(Integer msgId, String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                     List<String> attachmentPairs, List<String> recipients) throws SQLException {
+      String destrValue = destr == null ? "null" : "'" + destr + "'";
+      int m_id = msgId == null ? msgIds.next() : msgId;
+
+      //the message and its attachments in one round trip
+      StringBuilder sql = new StringBuilder(String.format(
+         "insert into MESSAGE(msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id) Values(%s, '%s', '%s', %s, '%s', %s)",
+         m_id, q(text), ts, destrValue, q(sender), Integer.parseInt(chatId)));
+      for(int y = 0; y + 1 < attachmentPairs.size(); y = y + 2)
+         sql.append(y == 0 ? ";insert into MEDIA_ATTACHMENT(media_type, URL, msg_id, msg_timestamp) values" : ",")
+            .append(String.format("('%s', '%s', %s, '%s')", q(attachmentPairs.get(y)), q(attachmentPairs.get(y + 1)), m_id, ts));
+      esql.executeUpdate(sql.toString());
+
+      //notify
+      List<String> channels = new ArrayList<String>();
+      channels.add(MessengerEvents.chatChannel(chatId));
+      StringBuilder logins = new StringBuilder();
+      for(int i = 0; i < recipients.size(); i++){
+         if(i > 0)
+            logins.append(", ");
+         logins.append('\'').append(q(recipients.get(i))).append('\'');
+      }
+      // one statement for all recipients, none at all for watermark chats
+      int notified = recipients.size() == 0 ? 0 : esql.executeUpdate(String.format(
+         "insert into NOTIFICATION(usr_login, msg_id, msg_timestamp) select r, %s, '%s' from unnest(array[%s]::varchar[]) r " +
+         "where exists (select 1 from CHAT where chat_id = %s and notify_mode = 'row')",
+         m_id, ts, logins, Integer.parseInt(chatId)));
+      MessengerMetrics.notificationRows.inc(notified);
+      if(notified > 0){
+         for(String r : recipients)
+            channels.add(MessengerEvents.userChannel(r));
+      }else{
+         // the sender has read their own message
+         esql.executeUpdate(String.format(
+            "update CHAT_LIST set last_read_msg_id = %s, last_read_ts = '%s' where chat_id = %s and member = '%s'",
+            m_id, ts, Integer.parseInt(chatId), q(sender)));
+      }
+      if(cache() != null)
+         cache().append(chatId, MessageCache.CachedMessage.sent(m_id, text, ts, destr, sender, chatId, attachmentPairs));
+      session.publish(channels);
+      return m_id;
+   }//end insertMessage
+
+   /**
+    * Writes a batch of journaled sends in one statement: the messages not
+    * already there (the batch may be a replay), their attachments, the
+    * NOTIFICATION rows of row chats and the sender's read watermark where
+    * insertMessage would have moved it.
+    */
+   void insertJournaled(List<SendJournal.Send> batch) throws SQLException {
+      StringBuilder msgs = new StringBuilder();
+      StringBuilder atts = new StringBuilder();
+      StringBuilder rcpts = new StringBuilder();
+      for(SendJournal.Send s : batch){
+         String destrValue = s.destr == null ? "null" : "'" + s.destr + "'";
+         msgs.append(msgs.length() == 0 ? "" : ", ").append(String.format(
+            "(%s, '%s', '%s'::timestamp, %s::timestamp, '%s', %s)",
+            s.msgId, q(s.text), s.ts, destrValue, q(s.sender), Integer.parseInt(s.chatId)));
+         for(int y = 0; y + 1 < s.attachmentPairs.size(); y = y + 2)
+            atts.append(atts.length() == 0 ? "" : ", ").append(String.format(
+               "(%s, '%s'::varchar, '%s'::varchar)", s.msgId, q(s.attachmentPairs.get(y)), q(s.attachmentPairs.get(y + 1))));
+         for(String r : s.recipients)
+            rcpts.append(rcpts.length() == 0 ? "" : ", ").append(String.format("(%s, '%s'::varchar)", s.msgId, q(r)));
+      }
+      String attValues = atts.length() == 0 ? "select null::int, null::varchar, null::varchar where false" : "values " + atts;
+      String rcptValues = rcpts.length() == 0 ? "select null::int, null::varchar where false" : "values " + rcpts;
+
+      List<String> counts = esql.executeUpdateReturning(String.format(
+         "with m as (insert into MESSAGE(msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id) " +
+         "select * from (values %s) v on conflict do nothing returning msg_id, msg_timestamp, chat_id, sender_login), " +
+         "a as (insert into MEDIA_ATTACHMENT(media_type, URL, msg_id, msg_timestamp) " +
+         "select v.t, v.u, m.msg_id, m.msg_timestamp from (%s) v(msg_id, t, u) join m on m.msg_id = v.msg_id returning 1), " +
+         "r(msg_id, usr_login) as (%s), " +
+         "n as (insert into NOTIFICATION(usr_login, msg_id, msg_timestamp) " +
+         "select r.usr_login, m.msg_id, m.msg_timestamp from r join m on m.msg_id = r.msg_id " +
+         "join CHAT c on c.chat_id = m.chat_id and c.notify_mode = 'row' on conflict do nothing returning 1), " +
+         // the sender has read their own message, unless it notified someone
+         "w as (update CHAT_LIST cl set last_read_msg_id = s.msg_id, last_read_ts = s.msg_timestamp " +
+         "from (select distinct on (m.chat_id, m.sender_login) m.chat_id, m.sender_login, m.msg_id, m.msg_timestamp " +
+         "from m join CHAT c on c.chat_id = m.chat_id " +
+         "where c.notify_mode = 'watermark' or not exists (select 1 from r where r.msg_id = m.msg_id) " +
+         "order by m.chat_id, m.sender_login, m.msg_timestamp desc) s " +
+         "where cl.chat_id = s.chat_id and cl.member = s.sender_login " +
+         "and coalesce(cl.last_read_ts, '-infinity') < s.msg_timestamp returning 1) " +
+         "select (select count(*) from m), (select count(*) from a), (select count(*) from n), (select count(*) from w)",
+         msgs, attValues, rcptValues)).get(0);
+      MessengerMetrics.notificationRows.inc(Integer.parseInt(counts.get(2)));
+      // written on the flusher's connection for the session, which reads them next
+      session.wrote();
+
+      List<String> channels = new ArrayList<String>();
+      for(SendJournal.Send s : batch){
+         String chat = MessengerEvents.chatChannel(s.chatId);
+         if(!channels.contains(chat))
+            channels.add(chat);
+         for(String r : s.recipients)
+            if(!channels.contains(MessengerEvents.userChannel(r)))
+               channels.add(MessengerEvents.userChannel(r));
+      }
+      session.publish(channels);
+   }//end insertJournaled
+
+   /**
+    * Tells the sends of a failed batch that Postgres will never take: those
+    * whose chat or sender no longer exists. Recipients that no longer exist
+    * are taken out of their sends, which can then go in.
+    *
+    * @return the sends to drop, empty when the failure was not the data's
+    * @throws java.sql.SQLException when Postgres cannot be asked either
+    */
+   List<SendJournal.Send> refusedSends(List<SendJournal.Send> batch) throws SQLException {
+      StringBuilder chats = new StringBuilder();
+      StringBuilder logins = new StringBuilder();
+      for(SendJournal.Send s : batch){
+         chats.append(chats.length() == 0 ? "" : ", ").append(Integer.parseInt(s.chatId));
+         logins.append(logins.length() == 0 ? "" : ", ").append('\'').append(q(s.sender)).append('\'');
+         for(String r : s.recipients)
+            logins.append(", '").append(q(r)).append('\'');
+      }
+      List<String> liveChats = new ArrayList<String>();
+      for(List<String> row : esql.executeQueryResultOnPrimary(String.format(
+            "select chat_id from CHAT where chat_id in (%s)", chats)))
+         liveChats.add(row.get(0));
+      List<String> liveLogins = new ArrayList<String>();
+      for(List<String> row : esql.executeQueryResultOnPrimary(String.format(
+            "select login from USR where login in (%s)", logins)))
+         liveLogins.add(row.get(0));
+      List<SendJournal.Send> refused = new ArrayList<SendJournal.Send>();
+      for(SendJournal.Send s : batch){
+         if(!liveChats.contains(String.valueOf(Integer.parseInt(s.chatId))) || !liveLogins.contains(s.sender))
+            refused.add(s);
+         else
+            s.recipients.retainAll(liveLogins);
+      }
+      return refused;
+   }//end refusedSends
+
+   /**
+    * Pages past the oldest message still in MESSAGE continue into the
+    * archive, when there is one. The session's sends still in the journal
+    * are merged in.
+    */
+   public List<MessageCache.CachedMessage> messagePage(String chatId, int offset, int limit) throws SQLException {
+      // taken before MESSAGE is read, a send flushed meanwhile is in both and skipped once
+      List<SendJournal.Send> pending = pendingOf(chatId);
+      List<MessageCache.CachedMessage> page = hotPage(chatId, offset, limit, pending);
+      if(archive == null || page.size() == limit)
+         return page;
+      // a short page means the hot tier ends inside it
+      int hot = page.size() > 0 ? offset + page.size() : hotCount(chatId, pending);
+      List<MessageCache.CachedMessage> result = new ArrayList<MessageCache.CachedMessage>(page);
+      try{
+         result.addAll(archive.page(chatId, offset + page.size() - hot, limit - page.size()));
+      }catch(IOException e){
+         throw new SQLException("archive of chat " + chatId + " unreadable: " + e.getMessage());
+      }
+      MessengerMetrics.archiveReads.inc();
+      return result;
+   }//end messagePage
+
+   private int hotCount(String chatId, List<SendJournal.Send> pending) throws SQLException {
+      int chat = Integer.parseInt(chatId);
+      if(pending.size() == 0)
+         return Integer.parseInt(esql.executeQueryResult(String.format(
+            "select count(*) from MESSAGE where chat_id = %s", chat)).get(0).get(0));
+      StringBuilder ids = new StringBuilder();
+      for(SendJournal.Send s : pending)
+         ids.append(ids.length() == 0 ? "" : ",").append(s.msgId);
+      return Integer.parseInt(esql.executeQueryResultOnPrimary(String.format(
+         "select count(*) + (select count(*) from unnest(array[%s]) p(id) " +
+         "where not exists (select 1 from MESSAGE where chat_id = %s and msg_id = p.id)) " +
+         "from MESSAGE where chat_id = %s", ids, chat, chat)).get(0).get(0));
+   }
+
+   /**
+    * Pages inside the head of the chat come from the message cache; a miss
+    * on the head reloads the whole head in one query. That query runs on the
+    * primary: a lagging replica's head would be cached for the whole TTL,
+    * and the session's own sends appended to it later would sit on a gap.
+    */
+   private List<MessageCache.CachedMessage> hotPage(String chatId, int offset, int limit,
+                                                    List<SendJournal.Send> pending) throws SQLException {
+      MessageCache cache = cache();
+      if(cache != null){
+         List<MessageCache.CachedMessage> hit = cache.page(chatId, offset, limit);
+         if(hit != null)
+            return hit;
+      }
+      boolean head = cache != null && offset + limit <= cache.capacity();
+      // merged in, pending sends shift every page after them, so those are read from the top
+      boolean fromTop = head || pending.size() > 0;
+      int qOffset = fromTop ? 0 : offset;
+      int qLimit = head ? cache.capacity() : fromTop ? offset + limit : limit;
+      String query = String.format(
+         "select msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id from MESSAGE " +
+         "where chat_id = %s order by msg_timestamp DESC Limit %s offset %s",
+         Integer.parseInt(chatId), qLimit, qOffset);
+      boolean onPrimary = head || pending.size() > 0;
+      List<List<String>> rows = onPrimary ? esql.executeQueryResultOnPrimary(query) : esql.executeQueryResult(query);
+      List<MessageCache.CachedMessage> loaded = withPending(withAttachments(rows, onPrimary), pending);
+      boolean complete = rows.size() < qLimit && loaded.size() <= qLimit;
+      if(loaded.size() > qLimit)
+         loaded = loaded.subList(0, qLimit);
+      if(head){
+         cache.fill(chatId, loaded, complete);
+         return cache.page(chatId, offset, limit);
+      }
+      if(fromTop)
+         return loaded.subList(Math.min(offset, loaded.size()), loaded.size());
+      return loaded;
+   }//end hotPage
+
+   // adds the sends still in the journal to newest first MESSAGE rows, those already flushed are there
+   private static List<MessageCache.CachedMessage> withPending(List<MessageCache.CachedMessage> rows,
+                                                               List<SendJournal.Send> pending){
+      if(pending.size() == 0)
+         return rows;
+      List<String> flushed = new ArrayList<String>();
+      for(MessageCache.CachedMessage m : rows)
+         flushed.add(m.row.get(0));
+      List<MessageCache.CachedMessage> result = new ArrayList<MessageCache.CachedMessage>(rows);
+      for(SendJournal.Send s : pending){
+         if(flushed.contains(String.valueOf(s.msgId)))
+            continue;
+         int i = 0;
+         while(i < result.size() && Timestamp.valueOf(result.get(i).row.get(2)).compareTo(s.ts) > 0)
+            i++;
+         result.add(i, s.cached());
+      }
+      return result;
+   }//end withPending
+
+   /**
+    * Looks up the attachments of a list of MESSAGE rows in one query
+    *
+    * @param onPrimary true when the result is going to be cached
+    */
+   List<MessageCache.CachedMessage> withAttachments(List<List<String>> rows, boolean onPrimary) throws SQLException {
+      List<MessageCache.CachedMessage> result = new ArrayList<MessageCache.CachedMessage>();
+      if(rows.size() == 0)
+         return result;
+      StringBuilder ids = new StringBuilder();
+      for(int i = 0; i < rows.size(); i++){
+         if(i > 0)
+            ids.append(',');
+         ids.append(rows.get(i).get(0));
+      }
+      String query = String.format(
+         "select msg_id, media_type, URL from MEDIA_ATTACHMENT where msg_id in (%s) order by media_id", ids);
+      List<List<String>> aQ = onPrimary ? esql.executeQueryResultOnPrimary(query) : esql.executeQueryResult(query);
+      for(List<String> row : rows){
+         List<List<String>> att = new ArrayList<List<String>>();
+         for(List<String> a : aQ)
+            if(a.get(0).equals(row.get(0)))
+               att.add(a.subList(1, 3));
+         result.add(new MessageCache.CachedMessage(row, att));
+      }
+      return result;
+   }//end withAttachments
+
+   public boolean hasMessageAt(String chatId, int offset) throws SQLException {
+      if(cache() != null){
+         List<MessageCache.CachedMessage> next = cache().page(chatId, offset, 1);
+         if(next != null && (next.size() > 0 || archive == null))
+            return next.size() > 0;
+      }
+      if(pendingOf(chatId).size() > 0)
+         return messagePage(chatId, offset, 1).size() > 0;
+      if(esql.executeQuery(String.format(
+         "select msg_id from MESSAGE where chat_id = %s order by msg_timestamp DESC Limit 1 offset %s",
+         Integer.parseInt(chatId), offset)) > 0)
+         return true;
+      if(archive == null)
+         return false;
+      try{
+         return archive.count(chatId) > offset - hotCount(chatId, pendingOf(chatId));
+      }catch(IOException e){
+         throw new SQLException("archive of chat " + chatId + " unreadable: " + e.getMessage());
+      }
+   }//end hasMessageAt
+
+   // identifies a message row by its full primary key
+   private static String key(List<String> message){
+      return String.format("msg_id = %s AND msg_timestamp = '%s'", Integer.parseInt(message.get(0)), q(message.get(2)));
+   }
+
+   public boolean isSender(List<String> message, String login) throws SQLException {
+      SendJournal.Send pending = journal == null ? null : journal.pendingMessage(Integer.parseInt(message.get(0)));
+      if(pending != null)
+         return pending.sender.equals(login);
+      return esql.executeQuery(String.format(
+         "SELECT sender_login FROM MESSAGE WHERE %s AND sender_login = '%s'", key(message), q(login))) > 0;
+   }
+
+   public void editMessageText(List<String> message, String login, String text) throws SQLException {
+      flushed(message);
+      esql.executeUpdate(String.format(
+         "UPDATE MESSAGE SET msg_text = '%s' WHERE %s AND sender_login = '%s'", q(text), key(message), q(login)));
+      if(cache() != null)
+         cache().editText(message.get(5), message.get(0), text);
+      session.publish(MessengerEvents.chatChannel(message.get(5)));
+   }
+
+   public void deleteMessage(List<String> message, String login) throws SQLException {
+      flushed(message);
+      esql.executeUpdate(String.format(
+         "DELETE FROM MESSAGE WHERE %s AND sender_login = '%s'", key(message), q(login)));
+      if(cache() != null)
+         cache().remove(message.get(5), message.get(0));
+      session.publish(MessengerEvents.chatChannel(message.get(5)));
+   }
+
+   public List<List<String>> attachments(List<String> message) throws SQLException {
+      flushed(message);
+      return esql.executeQueryResult(String.format(
+         "SELECT media_id, media_type, URL, msg_id, msg_timestamp FROM MEDIA_ATTACHMENT WHERE %s", key(message)));
+   }
+
+   public void addAttachment(List<String> message, String type, String url) throws SQLException {
+      flushed(message);
+      esql.executeUpdate(String.format(
+         "INSERT INTO MEDIA_ATTACHMENT(media_type, URL, msg_id, msg_timestamp) VALUES('%s', '%s', %s, '%s')",
+         q(type), q(url), Integer.parseInt(message.get(0)), message.get(2)));
+      attachmentsChanged(message);
+   }
+
+   public void updateAttachment(List<String> message, String mediaId, String type, String url) throws SQLException {
+      flushed(message);
+      esql.executeUpdate(String.format(
+         "UPDATE MEDIA_ATTACHMENT SET media_type = '%s', URL = '%s' WHERE media_id = %s",
+         q(type), q(url), Integer.parseInt(mediaId)));
+      attachmentsChanged(message);
+   }
+
+   private void attachmentsChanged(List<String> message) throws SQLException {
+      if(cache() != null)
+         cache().invalidate(message.get(5));
+      session.publish(MessengerEvents.chatChannel(message.get(5)));
+   }
+
+   public int purgeExpired() throws SQLException {
+      // a message of a watermark chat is unread while a member's watermark is before it
+      int purged = esql.executeUpdate(
+         "DELETE FROM MESSAGE WHERE NOT EXISTS (select 1 from NOTIFICATION where NOTIFICATION.msg_id = MESSAGE.msg_id) " +
+         "and NOT EXISTS (select 1 from CHAT c, CHAT_LIST cl where c.chat_id = MESSAGE.chat_id and c.notify_mode = 'watermark' " +
+            "and cl.chat_id = c.chat_id and cl.member <> MESSAGE.sender_login " +
+            "and coalesce(cl.last_read_ts, '-infinity') < MESSAGE.msg_timestamp) " +
+         "and destr_timestamp <= now()");
+      if(cache() != null)
+         cache().expire(new Timestamp(System.currentTimeMillis()));
+      return purged;
+   }
+
+   /*====================== notifications =======================*/
+
+   /**
+    * NOTIFICATION rows first, then the messages after the read watermark
+    * of every watermark chat, oldest first
+    */
+   public List<List<String>> notifications(String login) throws SQLException {
+      return esql.executeQueryResult(String.format(
+         "(select n.msg_id, n.msg_timestamp, m.msg_text, m.sender_login, m.chat_id, 0 as kind from NOTIFICATION n, MESSAGE m " +
+         "where n.usr_login = '%s' and m.msg_id = n.msg_id and m.msg_timestamp = n.msg_timestamp " +
+         "and not exists (select 1 from CHAT c where c.chat_id = m.chat_id and c.deleted_at is not null)) " +
+         "union all " +
+         "(select m.msg_id, m.msg_timestamp, m.msg_text, m.sender_login, m.chat_id, 1 from CHAT_LIST cl, CHAT c, MESSAGE m " +
+         "where cl.member = '%s' and c.chat_id = cl.chat_id and c.notify_mode = 'watermark' and m.chat_id = cl.chat_id " +
+         "and m.msg_timestamp > coalesce(cl.last_read_ts, '-infinity') and m.sender_login <> cl.member) " +
+         "order by kind, msg_timestamp",
+         q(login), q(login)));
+   }//end notifications
+
+   /**
+    * Deletes the NOTIFICATION row, or moves the read watermark of a
+    * watermark chat up to the message
+    */
+   public void clearNotification(String login, List<String> notification) throws SQLException {
+      if(notification.get(5).equals("0")){
+         esql.executeUpdate(String.format(
+            "delete from NOTIFICATION where usr_login = '%s' and msg_id = %s and msg_timestamp = '%s'",
+            q(login), Integer.parseInt(notification.get(0)), notification.get(1)));
+      }else{
+         esql.executeUpdate(String.format(
+            "update CHAT_LIST set last_read_msg_id = %s, last_read_ts = '%s' where chat_id = %s and member = '%s' " +
+            "and coalesce(last_read_ts, '-infinity') < '%s'",
+            Integer.parseInt(notification.get(0)), notification.get(1), Integer.parseInt(notification.get(4)), q(login), notification.get(1)));
+      }
+   }//end clearNotification
+
+}//end PostgresStore
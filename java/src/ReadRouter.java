@@ -0,0 +1,175 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Sends the reads of a session to streaming replicas of the primary.
+ *
+ * The session remembers the WAL position (LSN) of the primary after its
+ * last write. A replica only serves a read once it has replayed up to that
+ * position, so users always see what they just sent; otherwise the read
+ * goes to the primary. What a replica has confirmed is remembered, so the
+ * replay position is only asked for after the session wrote again.
+ * Replicas that fail are left alone for a while and reconnected after.
+ */
+public class ReadRouter {
+
+   // how long a failed replica is skipped
+   private static final long RETRY_MILLIS = 30000;
+
+   private static class Replica {
+      final String url;
+      Connection conn;
+      // highest replay position the replica confirmed
+      long replayed = -1;
+      long downUntil;
+      boolean warned;
+
+      Replica(String url){
+         this.url = url;
+      }
+   }//end Replica
+
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final String user;
+   private final String passwd;
+   private int next;
+
+   // position of the session's last write, refreshed lazily after writes
+   private long sessionLsn;
+   private boolean wrote;
+
+   public ReadRouter(List<String> urls, String user, String passwd){
+      for(String url : urls)
+         replicas.add(new Replica(url));
+      this.user = user;
+      this.passwd = passwd;
+   }
+
+   /**
+    * Creates the router configured by -Dmessenger.replicas, a comma
+    * separated list of JDBC URLs
+    *
+    * @return the router, or null when no replica is configured
+    */
+   public static ReadRouter fromProperties(String user, String passwd){
+      String prop = System.getProperty("messenger.replicas", "").trim();
+      if(prop.length() == 0)
+         return null;
+      List<String> urls = new ArrayList<String>();
+      for(String url : prop.split(","))
+         if(url.trim().length() > 0)
+            urls.add(url.trim());
+      return new ReadRouter(urls, user, passwd);
+   }//end fromProperties
+
+   /**
+    * Marks that the session wrote on the primary
+    */
+   public synchronized void wrote(){
+      wrote = true;
+   }
+
+   /**
+    * Picks the connection a read runs on
+    *
+    * @param primary the session's primary connection
+    * @return a replica that has caught up with the session, or primary
+    * @throws java.sql.SQLException when the primary position cannot be read
+    */
+   public synchronized Connection route(Connection primary) throws SQLException {
+      if(wrote){
+         sessionLsn = parseLsn(single(primary, "SELECT pg_current_wal_lsn()"));
+         wrote = false;
+      }
+      long now = System.currentTimeMillis();
+      for(int i = 0; i < replicas.size(); i++){
+         Replica r = replicas.get((next + i) % replicas.size());
+         if(r.downUntil > now)
+            continue;
+         try{
+            if(r.conn == null){
+               r.conn = DriverManager.getConnection(r.url, user, passwd);
+               MessengerMetrics.connectionsOpen.inc();
+            }
+            if(r.replayed < sessionLsn){
+               String replay = single(r.conn, "SELECT pg_last_wal_replay_lsn()");
+               if(replay == null && !r.warned){
+                  System.err.println(r.url + " is not a standby, it only serves sessions that did not write");
+                  r.warned = true;
+               }
+               r.replayed = replay == null ? -1 : parseLsn(replay);
+            }
+            if(r.replayed >= sessionLsn){
+               next = (next + i + 1) % replicas.size();
+               MessengerMetrics.replicaReads.inc();
+               return r.conn;
+            }
+         }catch(SQLException e){
+            down(r, e.getMessage());
+         }
+      }
+      MessengerMetrics.replicaFallbacks.inc();
+      return primary;
+   }//end route
+
+   /**
+    * Takes a replica out of rotation after a read on it failed
+    */
+   public synchronized void failed(Connection conn){
+      for(Replica r : replicas)
+         if(r.conn == conn)
+            down(r, "read failed");
+   }
+
+   private void down(Replica r, String why){
+      System.err.println("Replica " + r.url + " unavailable: " + why);
+      close(r);
+      r.downUntil = System.currentTimeMillis() + RETRY_MILLIS;
+   }
+
+   private static void close(Replica r){
+      if(r.conn == null)
+         return;
+      try{
+         r.conn.close();
+      }catch(SQLException e){
+         // ignored.
+      }
+      r.conn = null;
+      r.replayed = -1;
+      MessengerMetrics.connectionsOpen.dec();
+   }//end close
+
+   /**
+    * Closes every replica connection
+    */
+   public synchronized void close(){
+      for(Replica r : replicas)
+         close(r);
+   }
+
+   private static String single(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(query);
+         return rs.next() ? rs.getString(1) : null;
+      }finally{
+         stmt.close();
+      }
+   }//end single
+
+   /**
+    * @return an LSN such as "16/B374D848" as one comparable number
+    */
+   static long parseLsn(String lsn){
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+   }
+
+}//end ReadRouter
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Destination of the screens composed by a Screen. A sink gets each screen
+ * whole and writes it with one call and one flush.
+ */
+public interface RenderSink {
+
+   void render(CharSequence screen) throws IOException;
+
+   /**
+    * Writes screens as text to a stream, the terminal or a socket
+    */
+   public static class Text implements RenderSink {
+      private final OutputStream out;
+      private final Charset charset;
+
+      public Text(OutputStream out, Charset charset){
+         this.out = out;
+         this.charset = charset;
+      }
+
+      public void render(CharSequence screen) throws IOException {
+         out.write(screen.toString().getBytes(charset));
+         out.flush();
+      }
+   }//end Text
+
+   /**
+    * Writes every screen as one line of JSON, {"screen": "..."}, for programs
+    * reading the output of a session
+    */
+   public static class Json implements RenderSink {
+      private static final Charset UTF8 = Charset.forName("UTF-8");
+      private final OutputStream out;
+
+      public Json(OutputStream out){
+         this.out = out;
+      }
+
+      public void render(CharSequence screen) throws IOException {
+         out.write(("{\"screen\": " + ChatExport.jsonString(screen.toString()) + "}\n").getBytes(UTF8));
+         out.flush();
+      }
+   }//end Json
+
+}//end RenderSink
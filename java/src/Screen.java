@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+
+/**
+ * Composes the output of the menus a screen at a time.
+ *
+ * print and println only append to a buffer that is kept from screen to
+ * screen; flush hands the whole screen to the RenderSink in one write and
+ * is called before the session waits for input. Menus writing hundreds of
+ * lines take no stream lock and cause no flush per line. The methods are
+ * synchronized, the change listener prints its alerts from its own thread.
+ */
+public class Screen {
+
+   // buffers grown past this by a long screen are not kept for the next one
+   private static final int RETAINED_CHARS = 1 << 16;
+
+   private final RenderSink sink;
+   private StringBuilder buf = new StringBuilder(4096);
+
+   public Screen(RenderSink sink){
+      this.sink = sink;
+   }
+
+   /**
+    * The screen of the terminal, rendered as text or, with
+    * -Dmessenger.render=json, as one JSON line per screen
+    */
+   public static Screen fromProperties(){
+      if("json".equals(System.getProperty("messenger.render")))
+         return new Screen(new RenderSink.Json(System.out));
+      return new Screen(new RenderSink.Text(System.out, Charset.defaultCharset()));
+   }//end fromProperties
+
+   public synchronized Screen print(Object o){
+      buf.append(o);
+      return this;
+   }
+
+   public synchronized Screen println(Object o){
+      buf.append(o).append('\n');
+      return this;
+   }
+
+   public synchronized Screen println(){
+      buf.append('\n');
+      return this;
+   }
+
+   public synchronized Screen dashes(int size){
+      for(int i = 0; i < size; i++)
+         buf.append('-');
+      return this;
+   }
+
+   /**
+    * Renders what was composed since the last flush, if anything
+    */
+   public synchronized void flush(){
+      if(buf.length() == 0)
+         return;
+      try{
+         sink.render(buf);
+         MessengerMetrics.screensRendered.inc();
+      }catch(IOException e){
+         System.err.println(e.getMessage());
+      }
+      if(buf.capacity() > RETAINED_CHARS)
+         buf = new StringBuilder(4096);
+      else
+         buf.setLength(0);
+   }//end flush
+
+}//end Screen
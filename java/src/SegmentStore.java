@@ -0,0 +1,793 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * Embedded, file backed MessengerStore for deployments without Postgres.
+ *
+ * Every chat keeps its messages in append-only segment files under
+ * &lt;dir&gt;/chat_&lt;chat_id&gt;/, written and read through memory mappings.
+ * A record is framed as
+ *
+ *    int length | int crc32 | byte type | payload
+ *
+ * A MESSAGE record carries a message with its attachments, a DELETE record
+ * the msg_id of a deleted or purged message. Edits append the whole message
+ * again and the later record wins. The offset index of a chat points at the
+ * live record of every message in timestamp order, so the newest-first page
+ * the chat menu asks for is a direct seek into the index followed by reads
+ * of the mapped records.
+ *
+ * Users, lists, chats and notifications are appended to the checksummed
+ * meta.log. On open the meta log and the segments are replayed into the
+ * in-memory tables of InMemoryStore. A record with a bad checksum ends its
+ * file, so a write torn by a crash is cut off there. A chat whose segments
+ * hold more dead than live bytes is compacted into fresh segments; the old
+ * ones are deleted only after the new ones are forced to disk, and replaying
+ * both gives the same result.
+ */
+public class SegmentStore extends InMemoryStore {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // chat segment record types
+   private static final byte MESSAGE = 1;
+   private static final byte DELETE = 2;
+
+   // meta log record types
+   private static final byte USER = 1;
+   private static final byte STATUS = 2;
+   private static final byte LIST_ADD = 3;
+   private static final byte LIST_REMOVE = 4;
+   private static final byte USER_DELETE = 5;
+   private static final byte CHAT = 6;
+   private static final byte MEMBER_ADD = 7;
+   private static final byte MEMBER_REMOVE = 8;
+   private static final byte CHAT_DELETE = 9;
+   private static final byte NOTIFY = 10;
+   private static final byte NOTIFY_CLEAR = 11;
+
+   private static final int FRAME_HEADER = 8;
+
+   private static class Segment {
+      final int no;
+      final File file;
+      final RandomAccessFile raf;
+      final MappedByteBuffer buf;
+      // end of the valid records
+      int end;
+
+      Segment(int no, File file, int capacity) throws IOException {
+         this.no = no;
+         this.file = file;
+         this.raf = new RandomAccessFile(file, "rw");
+         if(raf.length() < capacity)
+            raf.setLength(capacity);
+         this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      }
+
+      int capacity(){
+         return buf.capacity();
+      }
+
+      void close(){
+         try{
+            raf.close();
+         }catch(IOException e){
+            // ignored.
+         }
+      }
+   }//end Segment
+
+   // the live record of a message
+   private static class Entry {
+      final int id;
+      final Timestamp ts;
+      Segment seg;
+      int pos;
+      int len;
+
+      Entry(int id, Timestamp ts){
+         this.id = id;
+         this.ts = ts;
+      }
+   }//end Entry
+
+   private static final Comparator<Entry> BY_TIME = new Comparator<Entry>(){
+      public int compare(Entry a, Entry b){
+         int c = a.ts.compareTo(b.ts);
+         return c != 0 ? c : (a.id < b.id ? -1 : (a.id == b.id ? 0 : 1));
+      }
+   };
+
+   private static class ChatLog {
+      final int chatId;
+      final File dir;
+      final List<Segment> segments = new ArrayList<Segment>();
+      // oldest first, the newest-first offset k is index.size() - 1 - k
+      final List<Entry> index = new ArrayList<Entry>();
+      final IntObjectMap<Entry> byId = new IntObjectMap<Entry>();
+      long liveBytes;
+      long totalBytes;
+
+      ChatLog(int chatId, File dir){
+         this.chatId = chatId;
+         this.dir = dir;
+      }
+   }//end ChatLog
+
+   private final File dir;
+   private final int segmentBytes;
+   private final RandomAccessFile meta;
+   // guarded by itself
+   private final IntObjectMap<ChatLog> logs = new IntObjectMap<ChatLog>();
+
+   /**
+    * Opens the store in a directory, replaying what is already there
+    *
+    * @param dir the data directory, created when missing
+    * @param segmentBytes size of a new segment file
+    * @throws java.io.IOException when the files cannot be read or written
+    */
+   public SegmentStore(File dir, int segmentBytes) throws IOException {
+      this.dir = dir;
+      this.segmentBytes = segmentBytes;
+      if(!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      this.meta = new RandomAccessFile(new File(dir, "meta.log"), "rw");
+      replay();
+   }//end SegmentStore
+
+   /**
+    * Opens the store configured by -Dmessenger.store.dir (default
+    * "messenger-data") and -Dmessenger.segment.bytes (default 4 MB)
+    */
+   public static SegmentStore fromProperties() throws IOException {
+      return new SegmentStore(new File(System.getProperty("messenger.store.dir", "messenger-data")),
+                              Integer.getInteger("messenger.segment.bytes", 4 << 20));
+   }
+
+   /**
+    * Forces and closes every file
+    */
+   public void close(){
+      synchronized(logs){
+         for(ChatLog log : logs.values()){
+            synchronized(log){
+               for(Segment s : log.segments){
+                  s.buf.force();
+                  s.close();
+               }
+               log.segments.clear();
+            }
+         }
+      }
+      synchronized(meta){
+         try{
+            meta.close();
+         }catch(IOException e){
+            // ignored.
+         }
+      }
+   }//end close
+
+   /*======================= record codec =======================*/
+
+   private static class Out {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+
+      Out(byte type){
+         b(type);
+      }
+
+      Out b(byte v){
+         try{ out.writeByte(v); }catch(IOException e){ throw new IllegalStateException(e); }
+         return this;
+      }
+
+      Out i(int v){
+         try{ out.writeInt(v); }catch(IOException e){ throw new IllegalStateException(e); }
+         return this;
+      }
+
+      Out l(long v){
+         try{ out.writeLong(v); }catch(IOException e){ throw new IllegalStateException(e); }
+         return this;
+      }
+
+      Out s(String v){
+         if(v == null)
+            return i(-1);
+         byte[] b = v.getBytes(UTF8);
+         i(b.length);
+         try{ out.write(b); }catch(IOException e){ throw new IllegalStateException(e); }
+         return this;
+      }
+
+      Out ts(Timestamp t){
+         if(t == null)
+            return b((byte) 0);
+         return b((byte) 1).l(t.getTime()).i(t.getNanos());
+      }
+
+      // frame: length | crc32 | body
+      byte[] frame(){
+         byte[] body = bytes.toByteArray();
+         CRC32 crc = new CRC32();
+         crc.update(body);
+         ByteBuffer f = ByteBuffer.allocate(FRAME_HEADER + body.length);
+         f.putInt(body.length).putInt((int) crc.getValue()).put(body);
+         return f.array();
+      }
+   }//end Out
+
+   private static class In {
+      final ByteBuffer buf;
+
+      In(ByteBuffer buf){
+         this.buf = buf;
+      }
+
+      byte b(){ return buf.get(); }
+      int i(){ return buf.getInt(); }
+      long l(){ return buf.getLong(); }
+
+      String s(){
+         int n = buf.getInt();
+         if(n < 0)
+            return null;
+         byte[] b = new byte[n];
+         buf.get(b);
+         return new String(b, UTF8);
+      }
+
+      Timestamp ts(){
+         if(buf.get() == 0)
+            return null;
+         Timestamp t = new Timestamp(buf.getLong());
+         t.setNanos(buf.getInt());
+         return t;
+      }
+   }//end In
+
+   /**
+    * @return the body of the frame at pos, or null when there is no valid
+    *         frame there
+    */
+   private static ByteBuffer body(ByteBuffer buf, int pos, int limit){
+      if(pos + FRAME_HEADER > limit)
+         return null;
+      int len = buf.getInt(pos);
+      if(len <= 0 || pos + FRAME_HEADER + len > limit)
+         return null;
+      byte[] body = new byte[len];
+      ByteBuffer d = buf.duplicate();
+      d.position(pos + FRAME_HEADER);
+      d.get(body);
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if((int) crc.getValue() != buf.getInt(pos + 4))
+         return null;
+      return ByteBuffer.wrap(body);
+   }//end body
+
+   private static Out messageRecord(List<String> row, List<List<String>> attachments){
+      Out o = new Out(MESSAGE).i(Integer.parseInt(row.get(0)))
+         .ts(Timestamp.valueOf(row.get(2)))
+         .ts(row.get(3) == null ? null : Timestamp.valueOf(row.get(3)))
+         .s(row.get(4)).s(row.get(1)).i(attachments.size());
+      for(List<String> a : attachments)
+         o.i(Integer.parseInt(a.get(0))).s(a.get(1)).s(a.get(2));
+      return o;
+   }//end messageRecord
+
+   private static class Decoded {
+      int id;
+      Timestamp ts;
+      Timestamp destr;
+      String sender;
+      String text;
+      // (media_id, media_type, URL)
+      List<List<String>> attachments = new ArrayList<List<String>>();
+   }
+
+   // reads a MESSAGE payload, the type byte already consumed
+   private static Decoded decodeMessage(In in){
+      Decoded d = new Decoded();
+      d.id = in.i();
+      d.ts = in.ts();
+      d.destr = in.ts();
+      d.sender = in.s();
+      d.text = in.s();
+      int n = in.i();
+      for(int k = 0; k < n; k++)
+         d.attachments.add(Arrays.asList(String.valueOf(in.i()), in.s(), in.s()));
+      return d;
+   }//end decodeMessage
+
+   /*========================= meta log =========================*/
+
+   private void log(Out record) throws SQLException {
+      byte[] frame = record.frame();
+      synchronized(meta){
+         try{
+            meta.seek(meta.length());
+            meta.write(frame);
+            meta.getChannel().force(false);
+         }catch(IOException e){
+            throw new SQLException("meta.log: " + e.getMessage());
+         }
+      }
+   }//end log
+
+   /*======================= chat segments ======================*/
+
+   private ChatLog chatLog(int chatId){
+      synchronized(logs){
+         ChatLog log = logs.get(chatId);
+         if(log == null){
+            log = new ChatLog(chatId, new File(dir, "chat_" + chatId));
+            logs.put(chatId, log);
+         }
+         return log;
+      }
+   }//end chatLog
+
+   // caller holds the log, the frame goes to the last segment or a new one
+   private Entry append(ChatLog log, byte[] frame, boolean newSegment) throws IOException {
+      Segment seg = log.segments.isEmpty() ? null : log.segments.get(log.segments.size() - 1);
+      if(seg == null || newSegment || seg.end + frame.length > seg.capacity()){
+         if(!log.dir.isDirectory() && !log.dir.mkdirs())
+            throw new IOException("Cannot create " + log.dir);
+         int no = seg == null ? 1 : seg.no + 1;
+         seg = new Segment(no, new File(log.dir, no + ".seg"), Math.max(segmentBytes, frame.length));
+         log.segments.add(seg);
+      }
+      ByteBuffer d = seg.buf.duplicate();
+      d.position(seg.end);
+      d.put(frame);
+      Entry e = new Entry(0, null);
+      e.seg = seg;
+      e.pos = seg.end;
+      e.len = frame.length;
+      seg.end += frame.length;
+      log.totalBytes += frame.length;
+      return e;
+   }//end append
+
+   // writes the current version of a message to its chat
+   private void writeMessage(int chatId, int msgId) throws SQLException {
+      List<String> row = messageRow(chatId, msgId);
+      if(row == null)
+         return;
+      List<List<String>> attachments = new ArrayList<List<String>>();
+      for(List<String> a : attachments(row))
+         attachments.add(a.subList(0, 3));
+      byte[] frame = messageRecord(row, attachments).frame();
+      ChatLog log = chatLog(chatId);
+      synchronized(log){
+         try{
+            Entry at = append(log, frame, false);
+            at.seg.buf.force();
+            Entry e = log.byId.get(msgId);
+            if(e == null){
+               e = new Entry(msgId, Timestamp.valueOf(row.get(2)));
+               int i = log.index.size();
+               while(i > 0 && BY_TIME.compare(log.index.get(i - 1), e) > 0)
+                  i--;
+               log.index.add(i, e);
+               log.byId.put(msgId, e);
+            }else{
+               log.liveBytes -= e.len;
+            }
+            e.seg = at.seg;
+            e.pos = at.pos;
+            e.len = at.len;
+            log.liveBytes += e.len;
+            compactIfSparse(log);
+         }catch(IOException ex){
+            throw new SQLException("chat_" + chatId + ": " + ex.getMessage());
+         }
+      }
+   }//end writeMessage
+
+   protected void messageRemoved(int chatId, int msgId){
+      ChatLog log = chatLog(chatId);
+      synchronized(log){
+         Entry e = log.byId.remove(msgId);
+         if(e == null)
+            return;
+         log.index.remove(e);
+         log.liveBytes -= e.len;
+         try{
+            Entry at = append(log, new Out(DELETE).i(msgId).frame(), false);
+            at.seg.buf.force();
+            compactIfSparse(log);
+         }catch(IOException ex){
+            System.err.println("chat_" + chatId + ": " + ex.getMessage());
+         }
+      }
+   }//end messageRemoved
+
+   // caller holds the log
+   private void compactIfSparse(ChatLog log) throws IOException {
+      if(log.totalBytes > segmentBytes && log.liveBytes * 2 < log.totalBytes)
+         compact(log);
+   }
+
+   /**
+    * Copies the live records of a chat into new segments, then drops the
+    * old ones. Caller holds the log.
+    */
+   private void compact(ChatLog log) throws IOException {
+      List<Segment> old = new ArrayList<Segment>(log.segments);
+      long total = log.totalBytes;
+      boolean first = true;
+      for(Entry e : log.index){
+         byte[] frame = new byte[e.len];
+         ByteBuffer d = e.seg.buf.duplicate();
+         d.position(e.pos);
+         d.get(frame);
+         Entry at = append(log, frame, first);
+         first = false;
+         e.seg = at.seg;
+         e.pos = at.pos;
+      }
+      for(Segment s : log.segments)
+         if(!old.contains(s))
+            s.buf.force();
+      // oldest first, so a DELETE record never outlives the record it deletes
+      for(Segment s : old){
+         s.close();
+         if(!s.file.delete())
+            System.err.println("Cannot delete " + s.file);
+      }
+      log.segments.removeAll(old);
+      log.totalBytes -= total;
+   }//end compact
+
+   private void dropChatLog(int chatId){
+      ChatLog log;
+      synchronized(logs){
+         log = logs.remove(chatId);
+      }
+      File chatDir = log != null ? log.dir : new File(dir, "chat_" + chatId);
+      if(log != null){
+         synchronized(log){
+            for(Segment s : log.segments)
+               s.close();
+            log.segments.clear();
+         }
+      }
+      File[] files = chatDir.listFiles();
+      for(int i = 0; files != null && i < files.length; i++)
+         files[i].delete();
+      chatDir.delete();
+   }//end dropChatLog
+
+   /*========================== replay ==========================*/
+
+   private void replay() throws IOException {
+      // meta log, cut at the first damaged record
+      byte[] all = new byte[(int) meta.length()];
+      meta.readFully(all);
+      ByteBuffer buf = ByteBuffer.wrap(all);
+      List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+      int pos = 0;
+      ByteBuffer body;
+      while((body = body(buf, pos, all.length)) != null){
+         records.add(body);
+         pos += FRAME_HEADER + body.capacity();
+      }
+      if(pos < all.length){
+         System.err.println("meta.log: dropping " + (all.length - pos) + " damaged bytes");
+         meta.setLength(pos);
+      }
+
+      // users, lists and chats first, notifications need the messages
+      List<ByteBuffer> notifications = new ArrayList<ByteBuffer>();
+      for(ByteBuffer r : records){
+         byte op = r.get(0);
+         if(op == NOTIFY || op == NOTIFY_CLEAR)
+            notifications.add(r);
+         else
+            apply(new In(r));
+      }
+
+      File[] chatDirs = dir.listFiles();
+      for(int i = 0; chatDirs != null && i < chatDirs.length; i++){
+         String name = chatDirs[i].getName();
+         if(!chatDirs[i].isDirectory() || !name.startsWith("chat_"))
+            continue;
+         int chatId = Integer.parseInt(name.substring("chat_".length()));
+         if(!chatExists(chatId)){
+            // the chat was deleted before its files were
+            dropChatLog(chatId);
+            continue;
+         }
+         replayChat(chatId);
+      }
+
+      for(ByteBuffer r : notifications)
+         apply(new In(r));
+   }//end replay
+
+   // re-applies one meta log record
+   private void apply(In in){
+      try{
+         switch(in.b()){
+            case USER:
+               restoreUser(in.s(), in.s(), in.s(), in.i(), in.i());
+               break;
+            case STATUS:
+               super.setStatus(in.s(), in.s());
+               break;
+            case LIST_ADD:
+               super.addToList(in.i(), in.s());
+               break;
+            case LIST_REMOVE:
+               super.removeFromList(in.i(), in.s());
+               break;
+            case USER_DELETE:
+               super.deleteUser(in.s());
+               break;
+            case CHAT: {
+               int id = in.i();
+               String init = in.s();
+               List<String> members = new ArrayList<String>();
+               for(int n = in.i(); n > 0; n--)
+                  members.add(in.s());
+               restoreChat(id, init, members);
+               break;
+            }
+            case MEMBER_ADD:
+               super.addMember(String.valueOf(in.i()), in.s());
+               break;
+            case MEMBER_REMOVE:
+               super.removeMember(String.valueOf(in.i()), in.s());
+               break;
+            case CHAT_DELETE:
+               super.deleteChat(String.valueOf(in.i()));
+               break;
+            case NOTIFY: {
+               int chatId = in.i();
+               int msgId = in.i();
+               for(int n = in.i(); n > 0; n--)
+                  restoreNotification(in.s(), chatId, msgId);
+               break;
+            }
+            case NOTIFY_CLEAR: {
+               String login = in.s();
+               List<String> row = new ArrayList<String>();
+               row.add(String.valueOf(in.i()));
+               row.add(in.s());
+               super.clearNotification(login, row);
+               break;
+            }
+            default:
+               System.err.println("meta.log: unknown record skipped");
+         }
+      }catch(SQLException e){
+         System.err.println("meta.log: " + e.getMessage());
+      }
+   }//end apply
+
+   // rebuilds the index of a chat from its segments and restores its messages
+   private void replayChat(int chatId) throws IOException {
+      ChatLog log = chatLog(chatId);
+      File[] files = log.dir.listFiles();
+      List<Integer> numbers = new ArrayList<Integer>();
+      for(int i = 0; files != null && i < files.length; i++){
+         String name = files[i].getName();
+         if(name.endsWith(".seg"))
+            numbers.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+      }
+      Collections.sort(numbers);
+      IntObjectMap<Decoded> live = new IntObjectMap<Decoded>();
+      synchronized(log){
+         for(Integer no : numbers){
+            Segment seg = new Segment(no, new File(log.dir, no + ".seg"), 0);
+            log.segments.add(seg);
+            int pos = 0;
+            ByteBuffer body;
+            while((body = body(seg.buf, pos, seg.capacity())) != null){
+               In in = new In(body);
+               byte type = in.b();
+               if(type == MESSAGE){
+                  Decoded d = decodeMessage(in);
+                  Entry e = log.byId.get(d.id);
+                  if(e == null){
+                     e = new Entry(d.id, d.ts);
+                     log.byId.put(d.id, e);
+                  }else{
+                     log.liveBytes -= e.len;
+                  }
+                  e.seg = seg;
+                  e.pos = pos;
+                  e.len = FRAME_HEADER + body.capacity();
+                  log.liveBytes += e.len;
+                  live.put(d.id, d);
+               }else if(type == DELETE){
+                  int id = in.i();
+                  Entry e = log.byId.remove(id);
+                  if(e != null)
+                     log.liveBytes -= e.len;
+                  live.remove(id);
+               }
+               pos += FRAME_HEADER + body.capacity();
+            }
+            // zero whatever a torn write left behind, appends continue here
+            boolean torn = false;
+            for(int z = pos; z < seg.capacity() && !torn; z++)
+               torn = seg.buf.get(z) != 0;
+            for(int z = pos; torn && z < seg.capacity(); z++)
+               seg.buf.put(z, (byte) 0);
+            if(torn){
+               System.err.println(seg.file + ": dropping damaged records after " + pos);
+               seg.buf.force();
+            }
+            seg.end = pos;
+            log.totalBytes += pos;
+         }
+         log.index.addAll(log.byId.values());
+         Collections.sort(log.index, BY_TIME);
+      }
+      for(Decoded d : live.values()){
+         try{
+            restoreMessage(chatId, d.id, d.text, d.ts, d.destr, d.sender, d.attachments);
+         }catch(SQLException e){
+            System.err.println("chat_" + chatId + ": " + e.getMessage());
+         }
+      }
+   }//end replayChat
+
+   /*===================== logged operations ====================*/
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      super.createUser(login, password, phone);
+      List<String> u = getUser(login);
+      log(new Out(USER).s(login).s(password).s(phone).i(Integer.parseInt(u.get(4))).i(Integer.parseInt(u.get(5))));
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      super.setStatus(login, status);
+      log(new Out(STATUS).s(login).s(status));
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      super.deleteUser(login);
+      log(new Out(USER_DELETE).s(login));
+   }
+
+   public void addToList(int listId, String login) throws SQLException {
+      super.addToList(listId, login);
+      log(new Out(LIST_ADD).i(listId).s(login));
+   }
+
+   public void removeFromList(int listId, String login) throws SQLException {
+      super.removeFromList(listId, login);
+      log(new Out(LIST_REMOVE).i(listId).s(login));
+   }
+
+   public int createChat(String type, String initSender, List<String> members) throws SQLException {
+      int id = super.createChat(type, initSender, members);
+      Out o = new Out(CHAT).i(id).s(initSender).i(members.size());
+      for(String m : members)
+         o.s(m);
+      log(o);
+      return id;
+   }//end createChat
+
+   public void addMember(String chatId, String login) throws SQLException {
+      super.addMember(chatId, login);
+      log(new Out(MEMBER_ADD).i(Integer.parseInt(chatId)).s(login));
+   }
+
+   public void removeMember(String chatId, String login) throws SQLException {
+      super.removeMember(chatId, login);
+      log(new Out(MEMBER_REMOVE).i(Integer.parseInt(chatId)).s(login));
+   }
+
+   public void deleteChat(String chatId) throws SQLException {
+      super.deleteChat(chatId);
+      log(new Out(CHAT_DELETE).i(Integer.parseInt(chatId)));
+      dropChatLog(Integer.parseInt(chatId));
+   }
+
+   public int sendMessage(String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                          List<String> attachmentPairs, List<String> recipients) throws SQLException {
+      int msgId = super.sendMessage(chatId, sender, text, ts, destr, attachmentPairs, recipients);
+      writeMessage(Integer.parseInt(chatId), msgId);
+      if(recipients.size() > 0){
+         Out o = new Out(NOTIFY).i(Integer.parseInt(chatId)).i(msgId).i(recipients.size());
+         for(String r : recipients)
+            o.s(r);
+         log(o);
+      }
+      return msgId;
+   }//end sendMessage
+
+   public void editMessageText(List<String> message, String login, String text) throws SQLException {
+      super.editMessageText(message, login, text);
+      writeMessage(Integer.parseInt(message.get(5)), Integer.parseInt(message.get(0)));
+   }
+
+   public void addAttachment(List<String> message, String type, String url) throws SQLException {
+      super.addAttachment(message, type, url);
+      writeMessage(Integer.parseInt(message.get(5)), Integer.parseInt(message.get(0)));
+   }
+
+   public void updateAttachment(List<String> message, String mediaId, String type, String url) throws SQLException {
+      super.updateAttachment(message, mediaId, type, url);
+      writeMessage(Integer.parseInt(message.get(5)), Integer.parseInt(message.get(0)));
+   }
+
+   public void clearNotification(String login, List<String> notification) throws SQLException {
+      super.clearNotification(login, notification);
+      log(new Out(NOTIFY_CLEAR).s(login).i(Integer.parseInt(notification.get(0))).s(notification.get(1)));
+   }
+
+   /*====================== paged reads =========================*/
+
+   /**
+    * Reads a newest-first page straight from the mapped segments
+    */
+   public List<MessageCache.CachedMessage> messagePage(String chatId, int offset, int limit){
+      List<MessageCache.CachedMessage> page = new ArrayList<MessageCache.CachedMessage>();
+      ChatLog log;
+      synchronized(logs){
+         log = logs.get(Integer.parseInt(chatId));
+      }
+      if(log == null)
+         return page;
+      synchronized(log){
+         for(int i = log.index.size() - 1 - offset; i >= 0 && page.size() < limit; i--){
+            Entry e = log.index.get(i);
+            In in = new In(body(e.seg.buf, e.pos, e.pos + e.len));
+            in.b();
+            Decoded d = decodeMessage(in);
+            List<String> row = new ArrayList<String>();
+            row.add(String.valueOf(d.id));
+            row.add(d.text);
+            row.add(d.ts.toString());
+            row.add(d.destr == null ? null : d.destr.toString());
+            row.add(d.sender);
+            row.add(chatId);
+            List<List<String>> att = new ArrayList<List<String>>();
+            for(List<String> a : d.attachments)
+               att.add(a.subList(1, 3));
+            page.add(new MessageCache.CachedMessage(row, att));
+         }
+      }
+      return page;
+   }//end messagePage
+
+   public boolean hasMessageAt(String chatId, int offset){
+      ChatLog log;
+      synchronized(logs){
+         log = logs.get(Integer.parseInt(chatId));
+      }
+      if(log == null)
+         return false;
+      synchronized(log){
+         return log.index.size() > offset;
+      }
+   }//end hasMessageAt
+
+}//end SegmentStore
@@ -0,0 +1,487 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * Write-behind journal of sent messages, for PostgresStore.
+ *
+ * A send is appended to the current segment file, &lt;dir&gt;/&lt;no&gt;.journal,
+ * and forced to disk before it is acknowledged; the message id was reserved
+ * up front by the store's IdAllocator. A flusher thread takes the journaled
+ * sends in batches of up to batchRows and hands them to
+ * PostgresStore.insertJournaled, which writes messages, attachments and
+ * notifications of the whole batch in one statement. Records are framed as
+ * in SegmentStore:
+ *
+ *    int length | int crc32 | payload
+ *
+ * The checkpoint file holds the segment and offset up to which everything is
+ * in Postgres; it is replaced through a rename after every batch, and
+ * segments wholly before it are deleted. On open the records after the
+ * checkpoint are queued again. A crash between a batch and its checkpoint
+ * sends the batch twice, the insert skips the messages already there. A
+ * record with a bad checksum ends the journal, it was torn by a crash before
+ * its send was acknowledged.
+ *
+ * Until then the store reads the pending sends of a chat from here, so the
+ * session sees its own messages without waiting; only writes to a message
+ * still pending wait for it. The flusher works on a connection of its own.
+ *
+ * A failed batch stays pending and is retried, the driver sets no SQL state
+ * that would tell a lost connection from a refused row. Only sends that
+ * PostgresStore.refusedSends confirms Postgres will never take, their chat
+ * or sender being gone, are dropped with a message on stderr.
+ */
+public class SendJournal implements Runnable {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int FRAME_HEADER = 8;
+   // how long a write to a pending message waits for it to be flushed
+   private static final long AWAIT_MILLIS = 5000;
+
+   /**
+    * One journaled send
+    */
+   public static class Send {
+      final int msgId;
+      final String chatId;
+      final String sender;
+      final String text;
+      final Timestamp ts;
+      final Timestamp destr;
+      final List<String> attachmentPairs;
+      final List<String> recipients;
+      // where the record ends in the journal
+      int segment;
+      long end;
+
+      Send(int msgId, String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+           List<String> attachmentPairs, List<String> recipients){
+         this.msgId = msgId;
+         this.chatId = chatId;
+         this.sender = sender;
+         this.text = text;
+         this.ts = ts;
+         this.destr = destr;
+         // the flusher may trim the recipients, the caller keeps its lists
+         this.attachmentPairs = new ArrayList<String>(attachmentPairs);
+         this.recipients = new ArrayList<String>(recipients);
+      }
+
+      /**
+       * @return the send as the message cache and the history pages show it
+       */
+      MessageCache.CachedMessage cached(){
+         return MessageCache.CachedMessage.sent(msgId, text, ts, destr, sender, chatId, attachmentPairs);
+      }
+   }//end Send
+
+   private final File dir;
+   private final PostgresStore store;
+   private final long segmentBytes;
+   private final int batchRows;
+   private final long flushMillis;
+
+   // guarded by this
+   private final List<Send> pending = new ArrayList<Send>();
+   private RandomAccessFile current;
+   private int currentNo;
+   private boolean flushing = false;
+
+   private volatile boolean running = true;
+   private Thread thread;
+
+   /**
+    * Opens the journal in a directory and queues the sends not yet in Postgres
+    *
+    * @throws java.io.IOException when the journal cannot be read or written
+    */
+   public SendJournal(File dir, PostgresStore store, long segmentBytes, int batchRows, long flushMillis) throws IOException {
+      this.dir = dir;
+      this.store = store;
+      this.segmentBytes = segmentBytes;
+      this.batchRows = batchRows;
+      this.flushMillis = flushMillis;
+      if(!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      replay();
+   }//end SendJournal
+
+   /**
+    * Opens the journal configured by -Dmessenger.journal.dir,
+    * -Dmessenger.journal.segment.bytes, -Dmessenger.journal.batch and
+    * -Dmessenger.journal.flush.ms and starts its flusher
+    *
+    * @return the journal, or null when write-behind is off
+    */
+   public static SendJournal startFromProperties(PostgresStore store) throws IOException {
+      String path = System.getProperty("messenger.journal.dir");
+      if(path == null)
+         return null;
+      SendJournal journal = new SendJournal(new File(path), store,
+         Long.getLong("messenger.journal.segment.bytes", 16 << 20),
+         Integer.getInteger("messenger.journal.batch", 500),
+         Long.getLong("messenger.journal.flush.ms", 20));
+      journal.start();
+      return journal;
+   }//end startFromProperties
+
+   public void start(){
+      thread = new Thread(this, "send-journal");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Stops the flusher after one last attempt to flush, what is left stays
+    * in the journal for the next start
+    */
+   public void close(){
+      running = false;
+      if(thread != null){
+         thread.interrupt();
+         try{
+            thread.join(AWAIT_MILLIS);
+         }catch(InterruptedException e){
+            // ignored.
+         }
+      }
+      try{
+         flush();
+      }catch(Exception e){
+         System.err.println("Journal: " + e.getMessage());
+      }
+      synchronized(this){
+         try{
+            if(current != null)
+               current.close();
+         }catch(IOException e){
+            // ignored.
+         }
+         current = null;
+      }
+   }//end close
+
+   /**
+    * Appends a send and forces it to disk
+    *
+    * @throws java.sql.SQLException when the journal cannot be written, the send is lost then
+    */
+   public void append(Send send) throws SQLException {
+      byte[] frame = frame(send);
+      synchronized(this){
+         try{
+            if(current == null || current.length() + frame.length > segmentBytes && current.length() > 0)
+               roll();
+            current.seek(current.length());
+            current.write(frame);
+            current.getChannel().force(false);
+            send.segment = currentNo;
+            send.end = current.length();
+         }catch(IOException e){
+            throw new SQLException("journal: " + e.getMessage());
+         }
+         pending.add(send);
+         MessengerMetrics.journalPending.set(pending.size());
+         notifyAll();
+      }
+   }//end append
+
+   /**
+    * @return the sends of a chat not yet in Postgres, oldest first
+    */
+   public synchronized List<Send> pendingOf(String chatId){
+      List<Send> result = new ArrayList<Send>();
+      for(Send s : pending)
+         if(s.chatId.equals(chatId))
+            result.add(s);
+      return result;
+   }//end pendingOf
+
+   /**
+    * @return the send of a message not yet in Postgres, or null
+    */
+   public synchronized Send pendingMessage(int msgId){
+      for(Send s : pending)
+         if(s.msgId == msgId)
+            return s;
+      return null;
+   }//end pendingMessage
+
+   /**
+    * @return true when a send of the user is not yet in Postgres
+    */
+   public synchronized boolean pendingFrom(String sender){
+      for(Send s : pending)
+         if(s.sender.equals(sender))
+            return true;
+      return false;
+   }//end pendingFrom
+
+   /**
+    * Waits until the sends of a chat, or the send of one message, are in
+    * Postgres, or a few seconds have passed
+    *
+    * @param chatId the chat, or null for the message only
+    * @param msgId the message, or -1 for the whole chat
+    */
+   public synchronized void awaitFlushed(String chatId, int msgId){
+      long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+      try{
+         while(pendingMatches(chatId, msgId) && System.currentTimeMillis() < deadline){
+            notifyAll();
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+         }
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end awaitFlushed
+
+   // caller holds this; a send stays pending until its batch is checkpointed
+   private boolean pendingMatches(String chatId, int msgId){
+      for(Send s : pending)
+         if(s.msgId == msgId || chatId != null && s.chatId.equals(chatId))
+            return true;
+      return false;
+   }
+
+   public void run(){
+      while(running){
+         try{
+            synchronized(this){
+               if(pending.size() == 0)
+                  wait();
+            }
+            // lets a burst of sends gather into one batch
+            Thread.sleep(flushMillis);
+            flush();
+         }catch(InterruptedException e){
+            return;
+         }catch(SQLException e){
+            // kept for the next round
+            System.err.println("Journal flush failed: " + e.getMessage());
+            try{
+               Thread.sleep(1000);
+            }catch(InterruptedException ie){
+               return;
+            }
+         }catch(IOException e){
+            System.err.println("Journal: " + e.getMessage());
+         }
+      }
+   }//end run
+
+   /**
+    * Writes every pending send to Postgres, batchRows at a time
+    */
+   private void flush() throws SQLException, IOException {
+      while(true){
+         List<Send> batch;
+         synchronized(this){
+            if(pending.size() == 0 || flushing)
+               return;
+            batch = new ArrayList<Send>(pending.subList(0, Math.min(batchRows, pending.size())));
+            flushing = true;
+         }
+         boolean done = false;
+         List<Send> refused = new ArrayList<Send>();
+         try{
+            try{
+               store.insertJournaled(batch);
+            }catch(SQLException e){
+               // retried as it is unless the data shows sends that can never go in
+               refused = store.refusedSends(batch);
+               if(refused.size() == 0)
+                  throw e;
+               for(Send s : refused)
+                  System.err.println("Journal: dropping message " + s.msgId + ": " + e.getMessage());
+               // the rest goes in the next round, the checkpoint moves past the dropped sends with it
+               continue;
+            }
+            Send last = batch.get(batch.size() - 1);
+            checkpoint(last.segment, last.end);
+            done = true;
+         }finally{
+            synchronized(this){
+               flushing = false;
+               if(done)
+                  pending.subList(0, batch.size()).clear();
+               else
+                  pending.removeAll(refused);
+               MessengerMetrics.journalPending.set(pending.size());
+               notifyAll();
+            }
+         }
+         MessengerMetrics.journalBatches.inc();
+      }
+   }//end flush
+
+   /*========================= files ============================*/
+
+   // caller holds this
+   private void roll() throws IOException {
+      if(current != null)
+         current.close();
+      List<Integer> nos = MessageArchive.seqs(dir, ".journal");
+      currentNo = nos.size() == 0 ? (int) Math.max(1, readCheckpoint()[0]) : nos.get(nos.size() - 1) + 1;
+      current = new RandomAccessFile(new File(dir, currentNo + ".journal"), "rw");
+   }//end roll
+
+   private void checkpoint(int segment, long end) throws IOException {
+      File tmp = new File(dir, "checkpoint.tmp");
+      RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+      try{
+         f.setLength(0);
+         f.writeInt(segment);
+         f.writeLong(end);
+         f.getChannel().force(false);
+      }finally{
+         f.close();
+      }
+      File target = new File(dir, "checkpoint");
+      if(!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target)))
+         throw new IOException("cannot replace " + target);
+      for(int no : MessageArchive.seqs(dir, ".journal"))
+         if(no < segment)
+            new File(dir, no + ".journal").delete();
+   }//end checkpoint
+
+   // (segment, offset) of the checkpoint, (0, 0) when there is none
+   private long[] readCheckpoint() throws IOException {
+      File f = new File(dir, "checkpoint");
+      if(!f.isFile())
+         return new long[]{ 0, 0 };
+      RandomAccessFile in = new RandomAccessFile(f, "r");
+      try{
+         return new long[]{ in.readInt(), in.readLong() };
+      }finally{
+         in.close();
+      }
+   }
+
+   private void replay() throws IOException {
+      long[] cp = readCheckpoint();
+      for(int no : MessageArchive.seqs(dir, ".journal")){
+         if(no < cp[0])
+            continue;
+         File file = new File(dir, no + ".journal");
+         RandomAccessFile f = new RandomAccessFile(file, "rw");
+         try{
+            byte[] all = new byte[(int) f.length()];
+            f.readFully(all);
+            ByteBuffer buf = ByteBuffer.wrap(all);
+            int pos = no == cp[0] ? (int) cp[1] : 0;
+            ByteBuffer body;
+            while((body = body(buf, pos, all.length)) != null){
+               pos += FRAME_HEADER + body.capacity();
+               Send s = decode(body);
+               s.segment = no;
+               s.end = pos;
+               pending.add(s);
+            }
+            if(pos < all.length){
+               System.err.println(file + ": dropping " + (all.length - pos) + " damaged bytes");
+               f.setLength(pos);
+            }
+         }finally{
+            f.close();
+         }
+      }
+      MessengerMetrics.journalPending.set(pending.size());
+   }//end replay
+
+   /*========================= codec ============================*/
+
+   private static byte[] frame(Send s){
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try{
+         out.writeInt(s.msgId);
+         str(out, s.chatId);
+         str(out, s.sender);
+         str(out, s.text);
+         out.writeLong(s.ts.getTime());
+         out.writeInt(s.ts.getNanos());
+         out.writeLong(s.destr == null ? Long.MIN_VALUE : s.destr.getTime());
+         out.writeInt(s.destr == null ? 0 : s.destr.getNanos());
+         out.writeInt(s.attachmentPairs.size());
+         for(String a : s.attachmentPairs)
+            str(out, a);
+         out.writeInt(s.recipients.size());
+         for(String r : s.recipients)
+            str(out, r);
+      }catch(IOException e){
+         throw new IllegalStateException(e);
+      }
+      byte[] body = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      ByteBuffer f = ByteBuffer.allocate(FRAME_HEADER + body.length);
+      f.putInt(body.length).putInt((int) crc.getValue()).put(body);
+      return f.array();
+   }//end frame
+
+   private static void str(DataOutputStream out, String v) throws IOException {
+      byte[] b = v.getBytes(UTF8);
+      out.writeInt(b.length);
+      out.write(b);
+   }
+
+   private static String str(ByteBuffer in){
+      byte[] b = new byte[in.getInt()];
+      in.get(b);
+      return new String(b, UTF8);
+   }
+
+   private static Send decode(ByteBuffer in){
+      int msgId = in.getInt();
+      String chatId = str(in);
+      String sender = str(in);
+      String text = str(in);
+      Timestamp ts = new Timestamp(in.getLong());
+      ts.setNanos(in.getInt());
+      long destrMillis = in.getLong();
+      int destrNanos = in.getInt();
+      Timestamp destr = null;
+      if(destrMillis != Long.MIN_VALUE){
+         destr = new Timestamp(destrMillis);
+         destr.setNanos(destrNanos);
+      }
+      List<String> attachmentPairs = new ArrayList<String>();
+      for(int n = in.getInt(); n > 0; n--)
+         attachmentPairs.add(str(in));
+      List<String> recipients = new ArrayList<String>();
+      for(int n = in.getInt(); n > 0; n--)
+         recipients.add(str(in));
+      return new Send(msgId, chatId, sender, text, ts, destr, attachmentPairs, recipients);
+   }//end decode
+
+   // the body of the frame at pos, or null when there is no valid frame there
+   private static ByteBuffer body(ByteBuffer buf, int pos, int limit){
+      if(pos + FRAME_HEADER > limit)
+         return null;
+      int len = buf.getInt(pos);
+      if(len <= 0 || pos + FRAME_HEADER + len > limit)
+         return null;
+      byte[] body = new byte[len];
+      ByteBuffer d = buf.duplicate();
+      d.position(pos + FRAME_HEADER);
+      d.get(body);
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if((int) crc.getValue() != buf.getInt(pos + 4))
+         return null;
+      return ByteBuffer.wrap(body);
+   }//end body
+
+}//end SendJournal
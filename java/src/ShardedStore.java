@@ -0,0 +1,418 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * MessengerStore spreading chats over several Postgres databases.
+ *
+ * The directory database, the session's own connection, keeps the users
+ * and their lists, CHAT_DIRECTORY mapping every member to their chats, and
+ * the sequences chat and message ids are taken from, so ids are unique over
+ * all shards. A chat with its members, messages, attachments and
+ * notifications lives on the shard its id hashes to. Lookups by user go to
+ * the directory first and then to the shards holding that user's chats, in
+ * parallel. The schema is set up by sql/scripts/create_sharded_db.sh.
+ */
+public class ShardedStore implements MessengerStore {
+
+   private final Messenger directory;
+   private final PostgresStore users;
+   private final List<Messenger> shards;
+   private final List<PostgresStore> stores = new ArrayList<PostgresStore>();
+   private final ExecutorService pool;
+   // ids unique over all shards, from the directory's global sequences
+   private final IdAllocator chatIds;
+   private final IdAllocator msgIds;
+
+   // one call on the store of a shard
+   private interface ShardCall<T> {
+      T call(PostgresStore shard) throws SQLException;
+   }
+
+   /**
+    * @param directory the session's connection to the directory database
+    * @param shards connections to the shard databases, in a fixed order
+    *        since it decides where each chat lives
+    */
+   public ShardedStore(Messenger directory, List<Messenger> shards){
+      this.directory = directory;
+      this.users = new PostgresStore(directory);
+      this.chatIds = new IdAllocator(directory, "global_chat_id_seq");
+      this.msgIds = new IdAllocator(directory, "global_msg_id_seq");
+      this.shards = shards;
+      for(Messenger shard : shards)
+         stores.add(new PostgresStore(shard, directory));
+      this.pool = Executors.newFixedThreadPool(shards.size(), new ThreadFactory(){
+         public Thread newThread(Runnable r){
+            Thread t = new Thread(r, "shard-query");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Connects to the shards configured by -Dmessenger.shards, a comma
+    * separated list of dbname:port
+    *
+    * @return the store, or null when no shard is configured
+    */
+   public static ShardedStore fromProperties(Messenger directory, String user, String passwd) throws SQLException {
+      String prop = System.getProperty("messenger.shards", "").trim();
+      if(prop.length() == 0)
+         return null;
+      List<Messenger> shards = new ArrayList<Messenger>();
+      for(String shard : prop.split(",")){
+         shard = shard.trim();
+         if(shard.length() == 0)
+            continue;
+         int colon = shard.lastIndexOf(':');
+         if(colon < 0)
+            throw new IllegalArgumentException("messenger.shards expects dbname:port, got " + shard);
+         shards.add(new Messenger(shard.substring(0, colon), shard.substring(colon + 1), user, passwd));
+      }
+      return new ShardedStore(directory, shards);
+   }//end fromProperties
+
+   /**
+    * Closes the shard connections, the directory belongs to the session
+    */
+   public void close(){
+      pool.shutdownNow();
+      for(Messenger shard : shards)
+         shard.cleanup();
+   }
+
+   /*========================= placement ========================*/
+
+   // spreads sequential ids evenly over the shards
+   int shardOf(int chatId){
+      int h = chatId * 0x9E3779B9;
+      h ^= h >>> 16;
+      return (h & 0x7fffffff) % shards.size();
+   }
+
+   private PostgresStore shard(String chatId){
+      return stores.get(shardOf(Integer.parseInt(chatId)));
+   }
+
+   // shards holding at least one chat of the user
+   private List<Integer> shardsOf(String login) throws SQLException {
+      boolean[] used = new boolean[shards.size()];
+      for(List<String> row : directory.executeQueryResult(String.format(
+            "select chat_id from CHAT_DIRECTORY where member = '%s'", PostgresStore.q(login))))
+         used[shardOf(Integer.parseInt(row.get(0)))] = true;
+      List<Integer> result = new ArrayList<Integer>();
+      for(int i = 0; i < used.length; i++)
+         if(used[i])
+            result.add(i);
+      return result;
+   }//end shardsOf
+
+   private List<Integer> allShards(){
+      List<Integer> result = new ArrayList<Integer>();
+      for(int i = 0; i < shards.size(); i++)
+         result.add(i);
+      return result;
+   }
+
+   /**
+    * Runs the call on the given shards in parallel
+    *
+    * @return the results in the order of the shards
+    */
+   private <T> List<T> scatter(List<Integer> on, final ShardCall<T> call) throws SQLException {
+      List<T> results = new ArrayList<T>();
+      if(on.size() == 1){
+         results.add(call.call(stores.get(on.get(0))));
+         return results;
+      }
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for(int i : on){
+         final PostgresStore store = stores.get(i);
+         futures.add(pool.submit(new Callable<T>(){
+            public T call() throws SQLException {
+               return call.call(store);
+            }
+         }));
+      }
+      try{
+         for(Future<T> f : futures)
+            results.add(f.get());
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while querying the shards");
+      }catch(ExecutionException e){
+         if(e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().toString());
+      }
+      return results;
+   }//end scatter
+
+   private boolean any(List<Boolean> results){
+      for(boolean b : results)
+         if(b)
+            return true;
+      return false;
+   }
+
+   /*========================== users ===========================*/
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      users.createUser(login, password, phone);
+   }
+
+   public boolean checkPassword(String login, String password) throws SQLException {
+      return users.checkPassword(login, password);
+   }
+
+   public List<String> getUser(String login) throws SQLException {
+      return users.getUser(login);
+   }
+
+   public boolean userExists(String login) throws SQLException {
+      return users.userExists(login);
+   }
+
+   public List<String> logins() throws SQLException {
+      return users.logins();
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      users.setStatus(login, status);
+   }
+
+   public boolean isInitSenderOfAnyChat(final String login) throws SQLException {
+      return any(scatter(shardsOf(login), new ShardCall<Boolean>(){
+         public Boolean call(PostgresStore shard) throws SQLException {
+            return shard.isInitSenderOfAnyChat(login);
+         }
+      }));
+   }
+
+   public boolean hasMessages(final String login) throws SQLException {
+      // the user may have left chats they wrote in, so every shard is asked
+      return any(scatter(allShards(), new ShardCall<Boolean>(){
+         public Boolean call(PostgresStore shard) throws SQLException {
+            return shard.hasMessages(login);
+         }
+      }));
+   }
+
+   public void deleteUser(final String login) throws SQLException {
+      // the shards cannot reference USR, this stands in for the foreign key
+      boolean notified = any(scatter(allShards(), new ShardCall<Boolean>(){
+         public Boolean call(PostgresStore shard) throws SQLException {
+            for(List<String> row : shard.notifications(login))
+               if(row.get(5).equals("0"))
+                  return true;
+            return false;
+         }
+      }));
+      if(notified)
+         throw new SQLException("notifications still reference user " + login, "23503");
+      users.deleteUser(login);
+   }//end deleteUser
+
+   /*================ contact and block lists ===================*/
+
+   public boolean listContains(int listId, String login) throws SQLException {
+      return users.listContains(listId, login);
+   }
+
+   public void addToList(int listId, String login) throws SQLException {
+      users.addToList(listId, login);
+   }
+
+   public void removeFromList(int listId, String login) throws SQLException {
+      users.removeFromList(listId, login);
+   }
+
+   public void block(String login, int blockList, String target) throws SQLException {
+      users.block(login, blockList, target);
+   }
+
+   public void unblock(String login, int blockList, String target) throws SQLException {
+      users.unblock(login, blockList, target);
+   }
+
+   public List<String> blockedBy(String login, List<String> candidates) throws SQLException {
+      return users.blockedBy(login, candidates);
+   }
+
+   public List<String> syncContacts(String login, int contactList, int blockList, List<String> phoneKeys) throws SQLException {
+      return users.syncContacts(login, contactList, blockList, phoneKeys);
+   }
+
+   public List<List<String>> listMembers(int listId, String prefix, String after, int limit) throws SQLException {
+      return users.listMembers(listId, prefix, after, limit);
+   }
+
+   /*========================== chats ===========================*/
+
+   public int createChat(String type, String initSender, List<String> members) throws SQLException {
+      int chatId = chatIds.next();
+      stores.get(shardOf(chatId)).insertChat(chatId, type, initSender, members);
+      StringBuilder rows = new StringBuilder();
+      for(int i = 0; i < members.size(); i++){
+         if(i > 0)
+            rows.append(", ");
+         rows.append(String.format("(%s, '%s')", chatId, PostgresStore.q(members.get(i))));
+      }
+      directory.executeUpdate("insert into CHAT_DIRECTORY(chat_id, member) values " + rows);
+      return chatId;
+   }//end createChat
+
+   public String findChat(List<String> members) throws SQLException {
+      StringBuilder in = new StringBuilder();
+      for(int i = 0; i < members.size(); i++){
+         if(i > 0)
+            in.append(", ");
+         in.append('\'').append(PostgresStore.q(members.get(i))).append('\'');
+      }
+      List<List<String>> rows = directory.executeQueryResult(String.format(
+         "select chat_id from CHAT_DIRECTORY where chat_id in (select chat_id from CHAT_DIRECTORY where member = '%s') " +
+         "group by chat_id having count(*) = %s and bool_and(member in (%s)) limit 1",
+         PostgresStore.q(members.get(0)), members.size(), in));
+      return rows.size() == 0 ? null : rows.get(0).get(0);
+   }//end findChat
+
+   public boolean isInitSender(String chatId, String login) throws SQLException {
+      return shard(chatId).isInitSender(chatId, login);
+   }
+
+   public boolean isMember(String chatId, String login) throws SQLException {
+      return shard(chatId).isMember(chatId, login);
+   }
+
+   public void addMember(String chatId, String login) throws SQLException {
+      shard(chatId).addMember(chatId, login);
+      directory.executeUpdate(String.format(
+         "insert into CHAT_DIRECTORY(chat_id, member) values(%s, '%s')", Integer.parseInt(chatId), PostgresStore.q(login)));
+   }
+
+   public void removeMember(String chatId, String login) throws SQLException {
+      shard(chatId).removeMember(chatId, login);
+      directory.executeUpdate(String.format(
+         "delete from CHAT_DIRECTORY where chat_id = %s and member = '%s'", Integer.parseInt(chatId), PostgresStore.q(login)));
+   }
+
+   public List<String> chatMembers(String chatId) throws SQLException {
+      return shard(chatId).chatMembers(chatId);
+   }
+
+   public void deleteChat(String chatId) throws SQLException {
+      shard(chatId).deleteChat(chatId);
+      directory.executeUpdate(String.format(
+         "delete from CHAT_DIRECTORY where chat_id = %s", Integer.parseInt(chatId)));
+   }
+
+   public List<List<String>> chatList(final String login) throws SQLException {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for(List<List<String>> rows : scatter(shardsOf(login), new ShardCall<List<List<String>>>(){
+            public List<List<String>> call(PostgresStore shard) throws SQLException {
+               return shard.chatList(login);
+            }
+         }))
+         merged.addAll(rows);
+      // every shard returns its chats newest first, the merge keeps that order
+      Collections.sort(merged, new Comparator<List<String>>(){
+         public int compare(List<String> a, List<String> b){
+            return Timestamp.valueOf(b.get(1)).compareTo(Timestamp.valueOf(a.get(1)));
+         }
+      });
+      return merged;
+   }//end chatList
+
+   public List<List<String>> chatMembersOfUser(final String login) throws SQLException {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for(List<List<String>> rows : scatter(shardsOf(login), new ShardCall<List<List<String>>>(){
+            public List<List<String>> call(PostgresStore shard) throws SQLException {
+               return shard.chatMembersOfUser(login);
+            }
+         }))
+         merged.addAll(rows);
+      return merged;
+   }//end chatMembersOfUser
+
+   /*========================= messages =========================*/
+
+   public int sendMessage(String chatId, String sender, String text, Timestamp ts, Timestamp destr,
+                          List<String> attachmentPairs, List<String> recipients) throws SQLException {
+      int msgId = msgIds.next();
+      return shard(chatId).insertMessage(msgId, chatId, sender, text, ts, destr, attachmentPairs, recipients);
+   }
+
+   public List<MessageCache.CachedMessage> messagePage(String chatId, int offset, int limit) throws SQLException {
+      return shard(chatId).messagePage(chatId, offset, limit);
+   }
+
+   public boolean hasMessageAt(String chatId, int offset) throws SQLException {
+      return shard(chatId).hasMessageAt(chatId, offset);
+   }
+
+   public boolean isSender(List<String> message, String login) throws SQLException {
+      return shard(message.get(5)).isSender(message, login);
+   }
+
+   public void editMessageText(List<String> message, String login, String text) throws SQLException {
+      shard(message.get(5)).editMessageText(message, login, text);
+   }
+
+   public void deleteMessage(List<String> message, String login) throws SQLException {
+      shard(message.get(5)).deleteMessage(message, login);
+   }
+
+   public List<List<String>> attachments(List<String> message) throws SQLException {
+      return shard(message.get(5)).attachments(message);
+   }
+
+   public void addAttachment(List<String> message, String type, String url) throws SQLException {
+      shard(message.get(5)).addAttachment(message, type, url);
+   }
+
+   public void updateAttachment(List<String> message, String mediaId, String type, String url) throws SQLException {
+      shard(message.get(5)).updateAttachment(message, mediaId, type, url);
+   }
+
+   public int purgeExpired() throws SQLException {
+      int purged = 0;
+      for(int n : scatter(allShards(), new ShardCall<Integer>(){
+            public Integer call(PostgresStore shard) throws SQLException {
+               return shard.purgeExpired();
+            }
+         }))
+         purged += n;
+      return purged;
+   }//end purgeExpired
+
+   /*====================== notifications =======================*/
+
+   public List<List<String>> notifications(final String login) throws SQLException {
+      // notifications outlive the membership, so every shard is asked
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for(List<List<String>> rows : scatter(allShards(), new ShardCall<List<List<String>>>(){
+            public List<List<String>> call(PostgresStore shard) throws SQLException {
+               return shard.notifications(login);
+            }
+         }))
+         merged.addAll(rows);
+      return merged;
+   }//end notifications
+
+   public void clearNotification(String login, List<String> notification) throws SQLException {
+      shard(notification.get(4)).clearNotification(login, notification);
+   }
+
+}//end ShardedStore
@@ -23,14 +23,16 @@ public class aUser{
 	public String status;
 	public int block_list;
 	public int contact_list;
+	// contacts for login autocompletion, null until first used or after the list changed
+	LoginIndex contacts;
 	
 	public  aUser(Messenger esql, String login){
 		this.login = login;
 //		System.out.println(login);
-		String query = String.format("SELECT * FROM Usr WHERE  login = '%s'" , login);
-		List<List<String>> al;
+		// (login, password, phoneNum, status, block_list, contact_list)
+		List<List<String>> al = new ArrayList<List<String>>();
 		try{
-			al = esql.executeQueryResult(query);
+			al.add(esql.getStore().getUser(login));
 		}catch (Exception e)
 		{
 			System.err.println(e.getMessage());
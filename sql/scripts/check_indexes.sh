@@ -0,0 +1,8 @@
+#!/bin/bash
+# Fails when one of the hot queries in check_indexes.sql is planned with a
+# sequential scan, i.e. when it lost the index it relies on.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -At < $DIR/../src/check_indexes.sql | awk '
+	/^-- / { query = substr($0, 4); next }
+	/Seq Scan/ { print "FAIL: " query ": " $0; failed = 1; next }
+	END { if (failed) exit 1; print "OK: every hot query uses an index" }'
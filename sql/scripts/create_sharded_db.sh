@@ -0,0 +1,20 @@
+#!/bin/bash
+# Sets up a sharded deployment, see java/src/ShardedStore.java.
+#   SHARDS="shard1:5432 shard2:5432" create_sharded_db.sh
+# $DB_NAME on $PGPORT becomes the directory, every dbname:port in $SHARDS a
+# chat shard. Run the client with -Dmessenger.shards=shard1:5432,shard2:5432
+# and keep the order of the shards, it decides where each chat lives.
+# Partition maintenance (maintain_partitions.sh) runs on every shard.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_directory.sql
+for SHARD in $SHARDS; do
+	SHARD_DB=${SHARD%:*}
+	SHARD_PORT=${SHARD##*:}
+	psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/create_tables.sql
+	psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/partitions.sql
+	psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/create_indexes.sql
+	psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/create_triggers.sql
+	psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/create_shard.sql
+done
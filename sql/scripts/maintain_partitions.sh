@@ -0,0 +1,8 @@
+#!/bin/bash
+# Partition maintenance job, meant to run daily from cron.
+#   maintain_partitions.sh [months_ahead] [retain_months]
+# Pre-creates the MESSAGE/NOTIFICATION partitions of the coming months and,
+# when retain_months is given, drops the months older than that.
+AHEAD=${1:-3}
+RETAIN=${2:-NULL}
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 -c "SELECT maintain_message_partitions($AHEAD, $RETAIN)"
@@ -0,0 +1,6 @@
+#!/bin/bash
+# Adds and fills the BLOCKED_BY reverse block index of an existing database
+# in one transaction, then refreshes its planner statistics.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction < $DIR/../src/migrate_blocked_by.sql || exit 1
+psql -p $PGPORT $DB_NAME -c "ANALYZE BLOCKED_BY"
@@ -0,0 +1,5 @@
+#!/bin/bash
+# Adds the deleted_at marks and the DELETION_QUEUE of an existing database in
+# one transaction.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction < $DIR/../src/migrate_deletion_queue.sql
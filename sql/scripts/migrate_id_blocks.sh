@@ -0,0 +1,5 @@
+#!/bin/bash
+# Switches the id sequences of an existing database to blocks of 64 in one
+# transaction.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction < $DIR/../src/migrate_id_blocks.sql
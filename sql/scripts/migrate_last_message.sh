@@ -0,0 +1,6 @@
+#!/bin/bash
+# Moves the last message of each chat from CHAT_LIST to CHAT and reinstalls
+# the triggers that keep it, all in one transaction: the old triggers would
+# fail on the dropped columns.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+cat $DIR/../src/migrate_last_message.sql $DIR/../src/create_triggers.sql | psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction
@@ -0,0 +1,7 @@
+#!/bin/bash
+# Migrates an existing database from char(n) to varchar columns in one
+# transaction, then refreshes the planner statistics. ALTER COLUMN TYPE
+# rewrites every table and its indexes, so the padding is gone afterwards.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction < $DIR/../src/migrate_varchar.sql || exit 1
+psql -p $PGPORT $DB_NAME -c "ANALYZE"
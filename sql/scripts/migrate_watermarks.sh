@@ -0,0 +1,6 @@
+#!/bin/bash
+# Adds the notification modes and read watermarks to an existing database in
+# one transaction, then reinstalls the triggers that initialize them.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 --single-transaction < $DIR/../src/migrate_watermarks.sql || exit 1
+psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 < $DIR/../src/create_triggers.sql
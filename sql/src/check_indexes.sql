@@ -0,0 +1,47 @@
+-- Plans of the hot client queries, checked by sql/scripts/check_indexes.sh.
+-- Sequential scans are disabled so a missing index shows up as "Seq Scan"
+-- whatever the table size.
+SET enable_seqscan = off;
+
+\echo -- history page
+EXPLAIN select * from MESSAGE where chat_id = 0 order by msg_timestamp DESC Limit 10 offset 10;
+\echo -- message search
+EXPLAIN select m.msg_id from MESSAGE m, CHAT_LIST cl, websearch_to_tsquery('english', 'lorem ipsum') q where cl.member = 'Norma' and m.chat_id = cl.chat_id and m.msg_tsv @@ q;
+\echo -- page attachments
+EXPLAIN select msg_id, media_type, URL from MEDIA_ATTACHMENT where msg_id in (1, 2, 3) order by media_id;
+\echo -- self-destruct purge
+EXPLAIN DELETE FROM MESSAGE WHERE NOT EXISTS (select 1 from NOTIFICATION where NOTIFICATION.msg_id = MESSAGE.msg_id) and destr_timestamp <= now();
+\echo -- chat list
+EXPLAIN select cl.chat_id, c.last_msg_ts, cl.unread_count from CHAT_LIST cl, CHAT c where cl.member = 'Norma' and c.chat_id = cl.chat_id and c.last_msg_ts is not null order by c.last_msg_ts DESC;
+\echo -- chat list recipients
+EXPLAIN select cl.chat_id, cl.member from CHAT_LIST cl, CHAT_LIST me where me.member = 'Norma' and cl.chat_id = me.chat_id;
+\echo -- chat members
+EXPLAIN SELECT member FROM CHAT_LIST WHERE chat_id = 0;
+\echo -- notifications of a user
+EXPLAIN select msg_id from NOTIFICATION where usr_login = 'Norma';
+\echo -- read a notification
+EXPLAIN delete from NOTIFICATION where usr_login = 'Norma' and msg_id = 1 and msg_timestamp = '2020-01-01 00:00:00';
+\echo -- messages of a sender
+EXPLAIN select * from MESSAGE where sender_login = 'Norma';
+\echo -- chats of an initial sender
+EXPLAIN select * from CHAT where init_sender = 'Norma';
+\echo -- initial sender check
+EXPLAIN select * from CHAT where chat_id = 0 and init_sender = 'Norma';
+\echo -- list membership
+EXPLAIN select * from USER_LIST_CONTAINS where list_member = 'Norma' and list_id = 0;
+\echo -- contact list
+EXPLAIN select u.list_member, USR.status from USER_LIST_CONTAINS u, USR where u.list_id = 1 and USR.login = u.list_member;
+\echo -- contact list page
+EXPLAIN select list_member from USER_LIST_CONTAINS where list_id = 1 and list_member collate "C" like 'No%' and list_member collate "C" > 'Norma' order by list_member collate "C" limit 21;
+\echo -- lists containing a user
+EXPLAIN select list_id from USER_LIST_CONTAINS where list_member = 'Norma';
+\echo -- log in
+EXPLAIN SELECT * FROM USR WHERE login = 'Norma' AND password = 'x';
+\echo -- message owner check
+EXPLAIN SELECT sender_login FROM MESSAGE WHERE msg_id = 1 AND msg_timestamp = '2020-01-01 00:00:00' AND sender_login = 'Norma';
+\echo -- contact sync
+EXPLAIN select u.login from unnest(array['11803931512', '13628805319']) k(key), USR u where regexp_replace(u.phoneNum, '[^0-9]', '', 'g') = k.key;
+\echo -- deletion queue
+EXPLAIN select job_id, kind, target from DELETION_QUEUE where finished_at is null order by job_id;
+\echo -- deletion chunk of a chat
+EXPLAIN select msg_id, msg_timestamp from MESSAGE where chat_id = 0 limit 1000;
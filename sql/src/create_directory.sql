@@ -0,0 +1,29 @@
+-- Directory database of a sharded deployment (java/src/ShardedStore.java),
+-- applied on top of create_tables.sql. Users and their contact/block lists
+-- stay in the regular tables; chats, messages and notifications live on the
+-- shards (create_shard.sql) and the CHAT/MESSAGE tables here stay empty.
+--
+-- CHAT_DIRECTORY maps every member to their chats, so lookups by user only
+-- ask the shards that hold one of the user's chats. The global sequences hand
+-- out chat_id and msg_id values unique over all shards; the shard of a chat
+-- is a hash of its id.
+
+DROP TABLE IF EXISTS CHAT_DIRECTORY;
+DROP SEQUENCE IF EXISTS global_chat_id_seq;
+DROP SEQUENCE IF EXISTS global_msg_id_seq;
+
+CREATE TABLE CHAT_DIRECTORY(
+	chat_id integer,
+	member varchar(50),
+	PRIMARY KEY(chat_id, member),
+	FOREIGN KEY(member) REFERENCES USR(login));
+
+-- chats of a user: where member = ?
+create index cd_member
+on CHAT_DIRECTORY
+using BTREE
+(member);
+
+-- stepping by blocks like the sequences of create_tables.sql, see IdAllocator
+CREATE SEQUENCE global_chat_id_seq INCREMENT BY 64;
+CREATE SEQUENCE global_msg_id_seq INCREMENT BY 64;
@@ -1,29 +1,100 @@
-Create index u_log
-on USR
-USING BTREE
-(login);
+-- Secondary indexes, one per access path used by the client (java/src).
+-- Indexes on the partitioned MESSAGE and NOTIFICATION are created on every
+-- partition, including the ones maintain_message_partitions() adds later.
+-- Lookups on a full primary key, or on its leading column, are served by the
+-- primary key index and get nothing here:
+--   USR(login), USER_LIST_CONTAINS(list_id, list_member), CHAT(chat_id),
+--   CHAT_LIST(chat_id, member), MESSAGE(msg_id, msg_timestamp),
+--   NOTIFICATION(usr_login, msg_id, msg_timestamp)
+-- sql/scripts/check_indexes.sh asserts every hot query below uses an index.
 
-Create index u_block
-on USR
-Using Btree
-(block_list);
+-- chat history pages: where chat_id = ? order by msg_timestamp desc limit/offset
+create index m_chat_ts
+on MESSAGE
+using BTREE
+(chat_id, msg_timestamp DESC);
 
-create index u_con
-on USR
+-- dProfile: does the user still own messages
+create index m_sender
+on MESSAGE
 using BTREE
-(contact_list);
+(sender_login);
 
-create index c_id
-on CHAT
+-- self-destruct purge: destr_timestamp <= now()
+create index m_destr
+on MESSAGE
+using BTREE
+(destr_timestamp);
+
+-- full-text message search: msg_tsv @@ query
+create index m_tsv
+on MESSAGE
+using GIN
+(msg_tsv);
+
+-- page attachments: msg_id in (...), and the cascade from MESSAGE
+create index ma_msg
+on MEDIA_ATTACHMENT
+using BTREE
+(msg_id, msg_timestamp);
+
+-- partition maintenance: attachments of a month about to be dropped
+create index ma_ts
+on MEDIA_ATTACHMENT
 using BTREE
-(chat_id);
+(msg_timestamp);
 
-create index cl_id
+-- purge anti-join and the cascade from MESSAGE
+create index n_msg
+on NOTIFICATION
+using BTREE
+(msg_id, msg_timestamp);
+
+-- printChats: the chats of a member (sorted by CHAT.last_msg_ts), and the
+-- member side of the existing chat search in NewMessage/cChat
+create index cl_member
+on CHAT_LIST
+using BTREE
+(member);
+
+-- cascade from USR when an account is deleted
+create index ulc_member
+on USER_LIST_CONTAINS
+using BTREE
+(list_member);
+
+-- contact/block list pages: where list_id = ? and list_member collate "C"
+-- like 'prefix%' and > last login shown, order by list_member collate "C";
+-- the primary key has the database collation and cannot serve the prefix
+create index ulc_list_member_c
+on USER_LIST_CONTAINS
+using BTREE
+(list_id, list_member COLLATE "C");
+
+-- dProfile: is the user the initial sender of a chat
+create index c_init
 on CHAT
 using BTREE
-(chat_id);
+(init_sender);
 
-create index m_id
-on MESSAGE
+-- contact sync: the digits of phoneNum = any(numbers of an address book),
+-- unique so a number differing only in its formatting is not registered twice;
+-- the expression is repeated as PhoneNumbers.SQL_KEY (java/src)
+create unique index usr_phone_key
+on USR
+using BTREE
+(regexp_replace(phoneNum, '[^0-9]', '', 'g'));
+
+-- deletion worker: the blocks of a deleted account, blocker = ?, and the
+-- cascade from USR
+create index bb_blocker
+on BLOCKED_BY
+using BTREE
+(blocker);
+
+-- deletion worker: where finished_at is null order by job_id
+create index dq_pending
+on DELETION_QUEUE
 using BTREE
-(msg_id);
+(job_id)
+where finished_at is null;
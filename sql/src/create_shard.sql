@@ -0,0 +1,22 @@
+-- Turns a database set up by create_tables.sql, partitions.sql,
+-- create_indexes.sql and create_triggers.sql into a chat shard of a sharded
+-- deployment (java/src/ShardedStore.java).
+--
+-- Users live in the directory database, so the shard drops the user tables
+-- and the foreign keys pointing at them; ShardedStore checks those
+-- references itself. chat_id and msg_id come from the directory's global
+-- sequences and are always given explicitly. The foreign keys between the
+-- chat tables stay, a chat and everything in it are on the same shard.
+
+ALTER TABLE CHAT DROP CONSTRAINT IF EXISTS chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT IF EXISTS chat_list_member_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT IF EXISTS message_sender_login_fkey;
+ALTER TABLE NOTIFICATION DROP CONSTRAINT IF EXISTS notification_usr_login_fkey;
+
+ALTER TABLE CHAT ALTER COLUMN chat_id DROP DEFAULT;
+ALTER TABLE MESSAGE ALTER COLUMN msg_id DROP DEFAULT;
+
+DROP TABLE IF EXISTS BLOCKED_BY;
+DROP TABLE IF EXISTS USER_LIST_CONTAINS;
+DROP TABLE IF EXISTS USR;
+DROP TABLE IF EXISTS USER_LIST;
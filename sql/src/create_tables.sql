@@ -1,71 +1,128 @@
+DROP TABLE DELETION_QUEUE;
 DROP TABLE NOTIFICATION;
 DROP TABLE MEDIA_ATTACHMENT;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
+DROP TABLE BLOCKED_BY;
 DROP TABLE USER_LIST_CONTAINS;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
 
 CREATE TABLE USER_LIST(
 	list_id serial,
-	list_type char(10) NOT NULL, 
+	list_type varchar(10) NOT NULL, 
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
+	login varchar(50), 
+	phoneNum varchar(16) UNIQUE NOT NULL, 
+	password varchar(50) NOT NULL,
+	status varchar(140),
 	block_list integer,
 	contact_list integer,
+	deleted_at timestamp,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
 
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
-	list_member char(50),
+	list_member varchar(50),
 	PRIMARY KEY(list_id,list_member), 
 	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
 	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
 
+-- reverse index of the block lists: blocker has blocked in their
+-- USER_LIST_CONTAINS block list. Kept in step by the client's block and
+-- unblock, so the blockers among all recipients are one primary key lookup.
+CREATE TABLE BLOCKED_BY(
+	blocked varchar(50),
+	blocker varchar(50),
+	PRIMARY KEY(blocked,blocker),
+	FOREIGN KEY(blocked) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(blocker) REFERENCES USR(login) ON DELETE CASCADE);
+
+-- notify_mode 'row' keeps one NOTIFICATION row per recipient and message;
+-- 'watermark' chats, large groups, only advance CHAT_LIST.last_read_* and
+-- compute unread messages on read (java/src/PostgresStore.java).
 CREATE TABLE CHAT(
 	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
+	chat_type varchar(50) NOT NULL,
+	init_sender varchar(50),
+	notify_mode varchar(10) NOT NULL DEFAULT 'row' CHECK (notify_mode IN ('row', 'watermark')),
+	deleted_at timestamp,
+	last_msg_id integer,
+	last_msg_ts timestamp,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
-	member char(50),
+	member varchar(50),
+	unread_count integer NOT NULL DEFAULT 0,
+	last_read_msg_id integer,
+	last_read_ts timestamp,
 	PRIMARY KEY(chat_id,member), 
 	FOREIGN KEY(member) REFERENCES USR(login), 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) on delete cascade);
 
+-- MESSAGE and NOTIFICATION are range partitioned by msg_timestamp (monthly
+-- partitions are created by maintain_message_partitions() in partitions.sql).
+-- Rows outside every monthly partition, e.g. bulk loaded history, land in
+-- the default partitions. Keys referencing a message carry its msg_timestamp
+-- since the partition key has to be part of the primary key.
+-- Requires PostgreSQL 13 or later.
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
 	destr_timestamp timestamp, 
-	sender_login char(50),
+	sender_login varchar(50),
 	chat_id integer,
-	PRIMARY KEY(msg_id), 
+	msg_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', msg_text)) STORED,
+	PRIMARY KEY(msg_id,msg_timestamp), 
 	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) On delete cascade);
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) On delete cascade)
+	PARTITION BY RANGE(msg_timestamp);
+
+CREATE TABLE MESSAGE_DEFAULT PARTITION OF MESSAGE DEFAULT;
 
 CREATE TABLE MEDIA_ATTACHMENT(
 	media_id serial, 
-	media_type char(10), 
-	URL char(256) NOT NULL,
+	media_type varchar(10), 
+	URL varchar(256) NOT NULL,
 	msg_id integer, 
+	msg_timestamp timestamp NOT NULL,
 	PRIMARY KEY(media_id), 
-	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id) on delete cascade);
+	FOREIGN KEY(msg_id,msg_timestamp) REFERENCES MESSAGE(msg_id,msg_timestamp) on delete cascade);
 
 CREATE TABLE NOTIFICATION(
-	usr_login char(50), 
+	usr_login varchar(50), 
 	msg_id integer,
-	PRIMARY KEY(usr_login,msg_id),
+	msg_timestamp timestamp NOT NULL,
+	PRIMARY KEY(usr_login,msg_id,msg_timestamp),
 	FOREIGN KEY(usr_login) REFERENCES USR(login),
-	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id) on delete cascade);
+	FOREIGN KEY(msg_id,msg_timestamp) REFERENCES MESSAGE(msg_id,msg_timestamp) on delete cascade)
+	PARTITION BY RANGE(msg_timestamp);
+
+CREATE TABLE NOTIFICATION_DEFAULT PARTITION OF NOTIFICATION DEFAULT;
+
+-- The client reserves ids a block at a time (java/src/IdAllocator.java):
+-- every nextval hands out the 64 ids starting at its value.
+ALTER SEQUENCE user_list_list_id_seq INCREMENT BY 64;
+ALTER SEQUENCE chat_chat_id_seq INCREMENT BY 64;
+ALTER SEQUENCE message_msg_id_seq INCREMENT BY 64;
+
+-- Chats and accounts deleted by the client are marked deleted_at and hidden
+-- at once; their rows are removed afterwards in bounded chunks by the
+-- background DeletionWorker (java/src), one job per chat or account, oldest
+-- first. rows_deleted reports the progress of a running job.
+CREATE TABLE DELETION_QUEUE(
+	job_id serial,
+	kind varchar(10) NOT NULL CHECK (kind IN ('chat', 'user')),
+	target varchar(50) NOT NULL,
+	queued_at timestamp NOT NULL DEFAULT now(),
+	rows_deleted bigint NOT NULL DEFAULT 0,
+	finished_at timestamp,
+	PRIMARY KEY(job_id));
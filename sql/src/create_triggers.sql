@@ -0,0 +1,139 @@
+-- Keeps the denormalized CHAT and CHAT_LIST columns current:
+--   CHAT.last_msg_id / _ts          newest message of the chat, kept once per
+--                                   chat so a send updates one row however
+--                                   many members the chat has
+--   CHAT_LIST.unread_count          NOTIFICATION rows of the member in this chat
+--   CHAT_LIST.last_read_msg_id / _ts  read watermark, set for new members here
+--                                   and advanced by the client afterwards
+-- Run after load_data.sql, the backfill at the end covers the bulk loaded rows.
+
+CREATE OR REPLACE FUNCTION chat_list_message_insert() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT
+	SET last_msg_id = NEW.msg_id, last_msg_ts = NEW.msg_timestamp
+	WHERE chat_id = NEW.chat_id
+	AND (last_msg_ts IS NULL OR last_msg_ts <= NEW.msg_timestamp);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- runs before the row is gone so the notifications removed by the cascade
+-- can still be counted against their chat
+CREATE OR REPLACE FUNCTION chat_list_message_delete() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_LIST
+	SET unread_count = GREATEST(unread_count - 1, 0)
+	WHERE chat_id = OLD.chat_id
+	AND member IN (SELECT usr_login FROM NOTIFICATION
+		WHERE msg_id = OLD.msg_id AND msg_timestamp = OLD.msg_timestamp);
+	RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_list_message_deleted() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT
+	SET (last_msg_id, last_msg_ts) = (
+		SELECT msg_id, msg_timestamp FROM MESSAGE
+		WHERE chat_id = OLD.chat_id
+		ORDER BY msg_timestamp DESC LIMIT 1)
+	WHERE chat_id = OLD.chat_id
+	AND last_msg_id = OLD.msg_id;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the chat's current last message counts as read for new members of chats
+-- in watermark mode
+CREATE OR REPLACE FUNCTION chat_list_member_insert() RETURNS trigger AS $$
+BEGIN
+	IF NEW.last_read_ts IS NULL THEN
+		SELECT last_msg_id, last_msg_ts INTO NEW.last_read_msg_id, NEW.last_read_ts
+		FROM CHAT
+		WHERE chat_id = NEW.chat_id;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_list_notification_insert() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_LIST cl
+	SET unread_count = cl.unread_count + 1
+	FROM MESSAGE m
+	WHERE m.msg_id = NEW.msg_id
+	AND m.msg_timestamp = NEW.msg_timestamp
+	AND cl.chat_id = m.chat_id
+	AND cl.member = NEW.usr_login;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- when the message itself is being deleted it is no longer visible here and
+-- chat_list_message_delete already did the accounting
+CREATE OR REPLACE FUNCTION chat_list_notification_delete() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_LIST cl
+	SET unread_count = GREATEST(cl.unread_count - 1, 0)
+	FROM MESSAGE m
+	WHERE m.msg_id = OLD.msg_id
+	AND m.msg_timestamp = OLD.msg_timestamp
+	AND cl.chat_id = m.chat_id
+	AND cl.member = OLD.usr_login;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_last_msg ON MESSAGE;
+CREATE TRIGGER message_last_msg
+AFTER INSERT ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE chat_list_message_insert();
+
+DROP TRIGGER IF EXISTS message_unread_delete ON MESSAGE;
+CREATE TRIGGER message_unread_delete
+BEFORE DELETE ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE chat_list_message_delete();
+
+DROP TRIGGER IF EXISTS message_last_msg_delete ON MESSAGE;
+CREATE TRIGGER message_last_msg_delete
+AFTER DELETE ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE chat_list_message_deleted();
+
+DROP TRIGGER IF EXISTS chat_list_last_msg ON CHAT_LIST;
+CREATE TRIGGER chat_list_last_msg
+BEFORE INSERT ON CHAT_LIST
+FOR EACH ROW EXECUTE PROCEDURE chat_list_member_insert();
+
+DROP TRIGGER IF EXISTS notification_unread_insert ON NOTIFICATION;
+CREATE TRIGGER notification_unread_insert
+AFTER INSERT ON NOTIFICATION
+FOR EACH ROW EXECUTE PROCEDURE chat_list_notification_insert();
+
+DROP TRIGGER IF EXISTS notification_unread_delete ON NOTIFICATION;
+CREATE TRIGGER notification_unread_delete
+AFTER DELETE ON NOTIFICATION
+FOR EACH ROW EXECUTE PROCEDURE chat_list_notification_delete();
+
+-- backfill
+UPDATE CHAT c
+SET last_msg_id = m.msg_id, last_msg_ts = m.msg_timestamp
+FROM (SELECT DISTINCT ON (chat_id) chat_id, msg_id, msg_timestamp
+	FROM MESSAGE
+	ORDER BY chat_id, msg_timestamp DESC) m
+WHERE c.chat_id = m.chat_id;
+
+UPDATE CHAT_LIST cl
+SET unread_count = n.cnt
+FROM (SELECT m.chat_id, n.usr_login, count(*) AS cnt
+	FROM NOTIFICATION n, MESSAGE m
+	WHERE n.msg_id = m.msg_id
+	AND n.msg_timestamp = m.msg_timestamp
+	GROUP BY m.chat_id, n.usr_login) n
+WHERE cl.chat_id = n.chat_id
+AND cl.member = n.usr_login;
+
+UPDATE CHAT_LIST cl
+SET last_read_msg_id = c.last_msg_id, last_read_ts = c.last_msg_ts
+FROM CHAT c
+WHERE c.chat_id = cl.chat_id
+AND cl.last_read_ts IS NULL;
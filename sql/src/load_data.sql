@@ -4,6 +4,12 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/tmp/svill017/data/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -11,12 +17,22 @@ COPY USER_LIST_CONTAINS
 FROM '/tmp/svill017/data/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
+INSERT INTO BLOCKED_BY(blocked, blocker)
+SELECT c.list_member, u.login
+FROM USR u, USER_LIST_CONTAINS c
+WHERE c.list_id = u.block_list;
+
 COPY CHAT
+	(chat_id,
+	chat_type,
+	init_sender)
 FROM '/tmp/svill017/data/project/data/chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
 
 COPY CHAT_LIST
+	(chat_id,
+	member)
 FROM '/tmp/svill017/data/project/data/chat_list.csv'
 WITH DELIMITER ';';
 
@@ -30,11 +46,40 @@ FROM '/tmp/svill017/data/project/data/message.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
-COPY MEDIA_ATTACHMENT
+-- attachments and notifications get the msg_timestamp of their message
+CREATE TEMP TABLE MEDIA_ATTACHMENT_LOAD(
+	media_id integer,
+	media_type varchar(10),
+	URL varchar(256),
+	msg_id integer);
+
+COPY MEDIA_ATTACHMENT_LOAD
 FROM '/tmp/svill017/data/project/data/media_attachment.csv'
 WITH DELIMITER ';';
+
+INSERT INTO MEDIA_ATTACHMENT
+	(media_id,
+	media_type,
+	URL,
+	msg_id,
+	msg_timestamp)
+SELECT a.media_id, a.media_type, a.URL, a.msg_id, m.msg_timestamp
+FROM MEDIA_ATTACHMENT_LOAD a, MESSAGE m
+WHERE m.msg_id = a.msg_id;
 ALTER SEQUENCE media_attachment_media_id_seq RESTART 2000;
 
-COPY NOTIFICATION
+CREATE TEMP TABLE NOTIFICATION_LOAD(
+	usr_login varchar(50),
+	msg_id integer);
+
+COPY NOTIFICATION_LOAD
 FROM '/tmp/svill017/data/project/data/notification.csv'
 WITH DELIMITER ';';
+
+INSERT INTO NOTIFICATION
+	(usr_login,
+	msg_id,
+	msg_timestamp)
+SELECT n.usr_login, n.msg_id, m.msg_timestamp
+FROM NOTIFICATION_LOAD n, MESSAGE m
+WHERE m.msg_id = n.msg_id;
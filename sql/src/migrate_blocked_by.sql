@@ -0,0 +1,16 @@
+-- Adds the BLOCKED_BY reverse block index of create_tables.sql to an
+-- existing database and fills it from the block lists. Run through
+-- sql/scripts/migrate_blocked_by.sh, which wraps it in a single transaction.
+
+CREATE TABLE IF NOT EXISTS BLOCKED_BY(
+	blocked varchar(50),
+	blocker varchar(50),
+	PRIMARY KEY(blocked,blocker),
+	FOREIGN KEY(blocked) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(blocker) REFERENCES USR(login) ON DELETE CASCADE);
+
+INSERT INTO BLOCKED_BY(blocked, blocker)
+SELECT c.list_member, u.login
+FROM USR u, USER_LIST_CONTAINS c
+WHERE c.list_id = u.block_list
+ON CONFLICT DO NOTHING;
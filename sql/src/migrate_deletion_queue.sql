@@ -0,0 +1,31 @@
+-- Adds the deferred deletion of create_tables.sql to an existing database:
+-- the deleted_at marks, the DELETION_QUEUE the client's DeletionWorker works
+-- through and their indexes from create_indexes.sql. Run through
+-- sql/scripts/migrate_deletion_queue.sh, which wraps it in a single
+-- transaction.
+
+ALTER TABLE USR
+	ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+
+ALTER TABLE CHAT
+	ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+
+CREATE TABLE IF NOT EXISTS DELETION_QUEUE(
+	job_id serial,
+	kind varchar(10) NOT NULL CHECK (kind IN ('chat', 'user')),
+	target varchar(50) NOT NULL,
+	queued_at timestamp NOT NULL DEFAULT now(),
+	rows_deleted bigint NOT NULL DEFAULT 0,
+	finished_at timestamp,
+	PRIMARY KEY(job_id));
+
+CREATE INDEX IF NOT EXISTS bb_blocker
+ON BLOCKED_BY
+USING BTREE
+(blocker);
+
+CREATE INDEX IF NOT EXISTS dq_pending
+ON DELETION_QUEUE
+USING BTREE
+(job_id)
+WHERE finished_at IS NULL;
@@ -0,0 +1,13 @@
+-- Lets the sequences of an existing database hand out ids in blocks of 64,
+-- as create_tables.sql and create_directory.sql set them up for the
+-- client's IdAllocator. Values already handed out stay valid; the next
+-- nextval starts a block right after them. Run through
+-- sql/scripts/migrate_id_blocks.sh.
+
+ALTER SEQUENCE user_list_list_id_seq INCREMENT BY 64;
+ALTER SEQUENCE chat_chat_id_seq INCREMENT BY 64;
+ALTER SEQUENCE message_msg_id_seq INCREMENT BY 64;
+
+-- directory database of a sharded deployment
+ALTER SEQUENCE IF EXISTS global_chat_id_seq INCREMENT BY 64;
+ALTER SEQUENCE IF EXISTS global_msg_id_seq INCREMENT BY 64;
@@ -0,0 +1,19 @@
+-- Moves the last message of a chat from every CHAT_LIST row to CHAT, so a
+-- send updates one row instead of one per member. Run through
+-- sql/scripts/migrate_last_message.sh, which reinstalls create_triggers.sql
+-- in the same transaction; its backfill fills the new CHAT columns.
+
+ALTER TABLE CHAT
+	ADD COLUMN IF NOT EXISTS last_msg_id integer,
+	ADD COLUMN IF NOT EXISTS last_msg_ts timestamp;
+
+DROP INDEX IF EXISTS cl_member_last;
+
+ALTER TABLE CHAT_LIST
+	DROP COLUMN IF EXISTS last_msg_id,
+	DROP COLUMN IF EXISTS last_msg_ts;
+
+CREATE INDEX IF NOT EXISTS cl_member
+ON CHAT_LIST
+USING BTREE
+(member);
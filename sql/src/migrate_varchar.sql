@@ -0,0 +1,52 @@
+-- Converts a database created with the old blank-padded char(n) columns to
+-- the varchar schema of create_tables.sql. Trailing blanks are stripped from
+-- the stored values. Run through sql/scripts/migrate_varchar.sh, which wraps
+-- it in a single transaction.
+
+-- foreign keys on USR(login) are dropped while both sides change type
+ALTER TABLE USER_LIST_CONTAINS DROP CONSTRAINT IF EXISTS user_list_contains_list_member_fkey;
+ALTER TABLE CHAT DROP CONSTRAINT IF EXISTS chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT IF EXISTS chat_list_member_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT IF EXISTS message_sender_login_fkey;
+ALTER TABLE NOTIFICATION DROP CONSTRAINT IF EXISTS notification_usr_login_fkey;
+
+ALTER TABLE USER_LIST
+	ALTER COLUMN list_type TYPE varchar(10) USING rtrim(list_type);
+
+ALTER TABLE USR
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN status TYPE varchar(140) USING rtrim(status);
+
+ALTER TABLE USER_LIST_CONTAINS
+	ALTER COLUMN list_member TYPE varchar(50) USING rtrim(list_member);
+
+ALTER TABLE CHAT
+	ALTER COLUMN chat_type TYPE varchar(50) USING rtrim(chat_type),
+	ALTER COLUMN init_sender TYPE varchar(50) USING rtrim(init_sender);
+
+ALTER TABLE CHAT_LIST
+	ALTER COLUMN member TYPE varchar(50) USING rtrim(member);
+
+ALTER TABLE MESSAGE
+	ALTER COLUMN msg_text TYPE varchar(300) USING rtrim(msg_text),
+	ALTER COLUMN sender_login TYPE varchar(50) USING rtrim(sender_login);
+
+ALTER TABLE MEDIA_ATTACHMENT
+	ALTER COLUMN media_type TYPE varchar(10) USING rtrim(media_type),
+	ALTER COLUMN URL TYPE varchar(256) USING rtrim(URL);
+
+ALTER TABLE NOTIFICATION
+	ALTER COLUMN usr_login TYPE varchar(50) USING rtrim(usr_login);
+
+ALTER TABLE USER_LIST_CONTAINS
+	ADD FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE;
+ALTER TABLE CHAT
+	ADD FOREIGN KEY(init_sender) REFERENCES USR(login);
+ALTER TABLE CHAT_LIST
+	ADD FOREIGN KEY(member) REFERENCES USR(login);
+ALTER TABLE MESSAGE
+	ADD FOREIGN KEY(sender_login) REFERENCES USR(login);
+ALTER TABLE NOTIFICATION
+	ADD FOREIGN KEY(usr_login) REFERENCES USR(login);
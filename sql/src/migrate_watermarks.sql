@@ -0,0 +1,13 @@
+-- Adds the read watermarks of create_tables.sql to an existing database.
+-- Every chat stays in 'row' mode until it grows past the client's member
+-- threshold. Run through sql/scripts/migrate_watermarks.sh, which wraps it
+-- in a single transaction and reinstalls create_triggers.sql; its backfill
+-- starts the watermarks at the newest message, so nothing that was read
+-- before shows up as unread.
+
+ALTER TABLE CHAT
+	ADD COLUMN IF NOT EXISTS notify_mode varchar(10) NOT NULL DEFAULT 'row' CHECK (notify_mode IN ('row', 'watermark'));
+
+ALTER TABLE CHAT_LIST
+	ADD COLUMN IF NOT EXISTS last_read_msg_id integer,
+	ADD COLUMN IF NOT EXISTS last_read_ts timestamp;
@@ -0,0 +1,132 @@
+-- Monthly range partitions of MESSAGE and NOTIFICATION.
+--
+-- maintain_message_partitions(months_ahead, retain_months) creates the
+-- partitions of the current month and the next months_ahead months, so new
+-- messages never land in the default partitions. When retain_months is not
+-- NULL, months that ended more than retain_months months ago are removed:
+-- the NOTIFICATION partition is dropped, the month's attachments deleted and
+-- the MESSAGE partition detached and dropped. Dropping fires no triggers, so
+-- the unread counts and last messages of the chats that lost messages are
+-- recomputed afterwards. Scheduled through sql/scripts/maintain_partitions.sh.
+--
+-- A partition cannot be created while the default partition holds rows of
+-- its month (e.g. history loaded before the month was set up); those rows
+-- are first moved out by move_default_rows.
+
+-- Takes the messages of [month_start, month_end) out of MESSAGE_DEFAULT
+-- together with their attachments and notifications and returns them
+-- through MESSAGE once the month's partitions exist. Deleting and inserting
+-- again keeps the triggers' CHAT and CHAT_LIST columns right.
+CREATE OR REPLACE FUNCTION move_default_rows(month_start timestamp, month_end timestamp, suffix text)
+RETURNS integer AS $$
+DECLARE
+	moved integer;
+BEGIN
+	CREATE TEMP TABLE moving_message ON COMMIT DROP AS
+		SELECT msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id
+		FROM MESSAGE_DEFAULT
+		WHERE msg_timestamp >= month_start AND msg_timestamp < month_end;
+	GET DIAGNOSTICS moved = ROW_COUNT;
+	CREATE TEMP TABLE moving_attachment ON COMMIT DROP AS
+		SELECT media_id, media_type, URL, msg_id, msg_timestamp
+		FROM MEDIA_ATTACHMENT
+		WHERE msg_timestamp >= month_start AND msg_timestamp < month_end;
+	CREATE TEMP TABLE moving_notification ON COMMIT DROP AS
+		SELECT usr_login, msg_id, msg_timestamp
+		FROM NOTIFICATION_DEFAULT
+		WHERE msg_timestamp >= month_start AND msg_timestamp < month_end;
+
+	-- the cascade takes the attachments and notifications along
+	DELETE FROM MESSAGE_DEFAULT
+	WHERE msg_timestamp >= month_start AND msg_timestamp < month_end;
+	DELETE FROM NOTIFICATION_DEFAULT
+	WHERE msg_timestamp >= month_start AND msg_timestamp < month_end;
+
+	EXECUTE format('CREATE TABLE %I PARTITION OF MESSAGE FOR VALUES FROM (%L) TO (%L)',
+		'message_' || suffix, month_start, month_end);
+	EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF NOTIFICATION FOR VALUES FROM (%L) TO (%L)',
+		'notification_' || suffix, month_start, month_end);
+
+	INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, destr_timestamp, sender_login, chat_id)
+		SELECT * FROM moving_message;
+	INSERT INTO MEDIA_ATTACHMENT(media_id, media_type, URL, msg_id, msg_timestamp)
+		SELECT * FROM moving_attachment;
+	INSERT INTO NOTIFICATION(usr_login, msg_id, msg_timestamp)
+		SELECT * FROM moving_notification;
+
+	DROP TABLE moving_message;
+	DROP TABLE moving_attachment;
+	DROP TABLE moving_notification;
+	RAISE NOTICE 'moved % messages of % out of the default partition', moved, to_char(month_start, 'YYYY-MM');
+	RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION maintain_message_partitions(months_ahead integer, retain_months integer)
+RETURNS void AS $$
+DECLARE
+	month_start timestamp;
+	cutoff timestamp;
+	suffix text;
+	part record;
+	chats integer[];
+BEGIN
+	FOR i IN 0..months_ahead LOOP
+		month_start := date_trunc('month', now()) + make_interval(months => i);
+		suffix := to_char(month_start, '"y"YYYY"m"MM');
+		IF to_regclass('message_' || suffix) IS NULL AND EXISTS (
+			SELECT 1 FROM MESSAGE_DEFAULT
+			WHERE msg_timestamp >= month_start
+			AND msg_timestamp < month_start + interval '1 month')
+		THEN
+			PERFORM move_default_rows(month_start, month_start + interval '1 month', suffix);
+		END IF;
+		EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF MESSAGE FOR VALUES FROM (%L) TO (%L)',
+			'message_' || suffix, month_start, month_start + interval '1 month');
+		EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF NOTIFICATION FOR VALUES FROM (%L) TO (%L)',
+			'notification_' || suffix, month_start, month_start + interval '1 month');
+	END LOOP;
+
+	IF retain_months IS NULL THEN
+		RETURN;
+	END IF;
+
+	cutoff := date_trunc('month', now()) - make_interval(months => retain_months);
+	FOR part IN
+		SELECT c.relname
+		FROM pg_inherits i, pg_class c
+		WHERE i.inhparent = 'message'::regclass
+		AND c.oid = i.inhrelid
+		AND c.relname LIKE 'message\_y%'
+	LOOP
+		suffix := substr(part.relname, length('message_') + 1);
+		month_start := to_timestamp(suffix, '"y"YYYY"m"MM')::timestamp;
+		IF month_start + interval '1 month' <= cutoff THEN
+			EXECUTE format('SELECT array_agg(DISTINCT chat_id) FROM %I', part.relname) INTO chats;
+			-- referencing rows go first, MESSAGE cannot detach while they exist
+			EXECUTE format('DROP TABLE IF EXISTS %I', 'notification_' || suffix);
+			DELETE FROM MEDIA_ATTACHMENT
+			WHERE msg_timestamp >= month_start
+			AND msg_timestamp < month_start + interval '1 month';
+			EXECUTE format('ALTER TABLE MESSAGE DETACH PARTITION %I', part.relname);
+			EXECUTE format('DROP TABLE %I', part.relname);
+			UPDATE CHAT_LIST cl
+			SET unread_count = (SELECT count(*) FROM NOTIFICATION n, MESSAGE m
+				WHERE n.usr_login = cl.member
+				AND m.msg_id = n.msg_id
+				AND m.msg_timestamp = n.msg_timestamp
+				AND m.chat_id = cl.chat_id)
+			WHERE cl.chat_id = ANY(chats);
+			UPDATE CHAT c
+			SET (last_msg_id, last_msg_ts) = (
+				SELECT msg_id, msg_timestamp FROM MESSAGE
+				WHERE chat_id = c.chat_id
+				ORDER BY msg_timestamp DESC LIMIT 1)
+			WHERE c.chat_id = ANY(chats);
+			RAISE NOTICE 'dropped messages of %', to_char(month_start, 'YYYY-MM');
+		END IF;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT maintain_message_partitions(3, NULL);